@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2.basic
+
+import android.util.Log
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Writes captures to disk one after the other on a background coroutine, so that taking the
+ * next picture only waits for the camera and not for the previous pictures to be saved.
+ *
+ * Captures hold buffers of the `ImageReader` they come from until they are written, and the
+ * reader runs out of buffers once too many are held. [submit] therefore suspends while
+ * [capacity] captures are already waiting, which slows down the shutter instead of starving the
+ * camera. With a single caller of [submit] at a time, at most [maxImages] captures are held
+ * by the writer and its caller. Each capture is closed once written, or when the writer is
+ * closed or cancelled before writing it.
+ *
+ * Exceptions thrown by [write] are passed to [onError], after which the writer moves on to the
+ * next capture.
+ */
+class CaptureWriter<T : Closeable>(
+        scope: CoroutineScope,
+        val capacity: Int,
+        dispatcher: CoroutineDispatcher = Dispatchers.IO,
+        private val onError: (Exception) -> Unit = { Log.e(TAG, "Unable to write capture", it) },
+        private val write: suspend (T) -> Unit
+) {
+    private val queue = Channel<T>(capacity)
+    private val pending = AtomicInteger()
+
+    /** Number of captures submitted but not written yet, including the one being written */
+    val depth: Int get() = pending.get()
+
+    /** Most captures held at once: [capacity] waiting, one being written and one in [submit] */
+    val maxImages: Int get() = capacity + 2
+
+    /** Largest [depth] reached so far, which tells whether [capacity] limited the shutter */
+    @Volatile var maxDepth = 0
+        private set
+
+    init {
+        scope.launch(dispatcher) {
+            try {
+                for (capture in queue) {
+                    try {
+                        capture.use { write(it) }
+                    } catch (exc: CancellationException) {
+                        throw exc
+                    } catch (exc: Exception) {
+                        onError(exc)
+                    } finally {
+                        pending.decrementAndGet()
+                    }
+                }
+            } finally {
+                // Release the buffers of the captures that will never be written
+                while (true) {
+                    val capture = queue.poll() ?: break
+                    capture.close()
+                }
+            }
+        }
+    }
+
+    /** Queues [capture] for writing, suspending while [capacity] captures are already waiting */
+    suspend fun submit(capture: T) {
+        val depth = pending.incrementAndGet()
+        if (depth > maxDepth) maxDepth = depth
+        try {
+            queue.send(capture)
+        } catch (exc: Throwable) {
+            pending.decrementAndGet()
+            capture.close()
+            throw exc
+        }
+    }
+
+    /** Stops accepting captures, the ones already submitted are still written */
+    fun close() {
+        queue.close()
+    }
+
+    companion object {
+        private val TAG = CaptureWriter::class.java.simpleName
+
+        /** Returns the capacity of a writer that holds at most [maxImages] captures */
+        fun capacityFor(maxImages: Int): Int {
+            require(maxImages > 2) { "A writer needs more than 2 images, got $maxImages" }
+            return maxImages - 2
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2.basic
+
+import java.nio.ByteBuffer
+import kotlin.math.abs
+
+/**
+ * Keeps the last [capacity] frames streamed by a repeating request, along with their capture
+ * results, so that pressing the shutter picks a frame that was already captured instead of
+ * waiting for a new capture to go through 3A and sensor readout (zero shutter lag).
+ *
+ * Images and results are handed over with [onImage] and [onResult] from the threads they are
+ * delivered on, and paired by sensor timestamp when a frame is [take]n. Adding an image to a
+ * full buffer closes the oldest one. Since the new image has to be acquired from the
+ * `ImageReader` first, the buffer accounts for up to [maxImages] of its buffers, and the
+ * `maxImages` of the reader must also leave room for the frames taken and not closed yet.
+ */
+class ZslRingBuffer<I : AutoCloseable, R : Any>(
+        val capacity: Int,
+        private val selection: Selection = Selection.LATEST,
+        private val sharpness: (I) -> Double = { 0.0 }
+) : AutoCloseable {
+
+    init {
+        require(capacity > 0) { "Capacity must be positive, got $capacity" }
+    }
+
+    /** Most images held at once: a full buffer plus the image acquired to replace its oldest */
+    val maxImages: Int get() = capacity + 1
+
+    /** How [take] picks a frame among the ones in the buffer */
+    enum class Selection {
+        /** The most recent frame */
+        LATEST,
+        /** The frame with the highest sharpness, e.g. the one least affected by hand shake */
+        SHARPEST
+    }
+
+    /** Frame taken out of the buffer, whose image is owned by the caller */
+    class Frame<I, R>(val timestamp: Long, val image: I, val result: R)
+
+    // Images and results in insertion order, results being kept for twice as many frames since
+    // they may arrive before or after their image
+    private val imageTimestamps = LongArray(capacity)
+    private val images = arrayOfNulls<AutoCloseable>(capacity)
+    private var nextImage = 0
+    private val resultTimestamps = LongArray(capacity * 2)
+    private val results = arrayOfNulls<Any>(capacity * 2)
+    private var nextResult = 0
+    private var closed = false
+
+    /** Adds an image captured at [timestamp], closing the oldest one if the buffer is full */
+    fun onImage(timestamp: Long, image: I) {
+        val evicted = synchronized(this) {
+            if (closed) {
+                image
+            } else {
+                val oldest = images[nextImage]
+                imageTimestamps[nextImage] = timestamp
+                images[nextImage] = image
+                nextImage = (nextImage + 1) % capacity
+                oldest
+            }
+        }
+        evicted?.close()
+    }
+
+    /** Adds the capture result of the frame captured at [timestamp] */
+    @Synchronized
+    fun onResult(timestamp: Long, result: R) {
+        resultTimestamps[nextResult] = timestamp
+        results[nextResult] = result
+        nextResult = (nextResult + 1) % results.size
+    }
+
+    /**
+     * Removes the frame picked by the [Selection] among the ones whose result has arrived, or
+     * returns null if there is none. Other frames stay in the buffer.
+     *
+     * Sharpness is computed with the lock held, so that images can't be closed while their
+     * pixels are read; it must be cheap compared to the interval between frames.
+     */
+    @Suppress("UNCHECKED_CAST")
+    @Synchronized
+    fun take(): Frame<I, R>? {
+        var chosen = -1
+        var chosenScore = 0.0
+        for (slot in 0 until capacity) {
+            if (images[slot] == null || findResult(imageTimestamps[slot]) < 0) continue
+            val score = when (selection) {
+                Selection.LATEST -> imageTimestamps[slot].toDouble()
+                Selection.SHARPEST -> sharpness(images[slot] as I)
+            }
+            if (chosen < 0 || score > chosenScore ||
+                    (score == chosenScore && imageTimestamps[slot] > imageTimestamps[chosen])) {
+                chosen = slot
+                chosenScore = score
+            }
+        }
+        if (chosen < 0) return null
+
+        val timestamp = imageTimestamps[chosen]
+        val image = images[chosen] as I
+        images[chosen] = null
+        return Frame(timestamp, image, results[findResult(timestamp)] as R)
+    }
+
+    /** Closes the images in the buffer. Images added afterwards are closed right away */
+    override fun close() {
+        val pending = synchronized(this) {
+            closed = true
+            val pending = images.filterNotNull()
+            images.fill(null)
+            results.fill(null)
+            pending
+        }
+        pending.forEach { it.close() }
+    }
+
+    private fun findResult(timestamp: Long): Int {
+        for (index in results.indices) {
+            if (results[index] != null && resultTimestamps[index] == timestamp) return index
+        }
+        return -1
+    }
+
+    companion object {
+
+        /**
+         * Scores the sharpness of an 8-bit luma plane as the mean absolute difference between
+         * neighbouring pixels over a grid of [gridSize] x [gridSize] points. Blurred images have
+         * smaller differences than sharp images of the same scene, and a sparse grid keeps the
+         * cost independent of the resolution.
+         */
+        fun lumaSharpness(
+                plane: ByteBuffer,
+                rowStride: Int,
+                pixelStride: Int,
+                width: Int,
+                height: Int,
+                gridSize: Int = DEFAULT_GRID_SIZE
+        ): Double {
+            if (width < 2 || height < 2) return 0.0
+            val base = plane.position()
+            var sum = 0L
+            var count = 0
+            for (gridY in 0 until gridSize) {
+                val y = (gridY * (height - 1L) / gridSize).toInt()
+                for (gridX in 0 until gridSize) {
+                    val x = (gridX * (width - 1L) / gridSize).toInt()
+                    val offset = base + y * rowStride + x * pixelStride
+                    val luma = plane.get(offset).toInt() and 0xFF
+                    val right = plane.get(offset + pixelStride).toInt() and 0xFF
+                    val below = plane.get(offset + rowStride).toInt() and 0xFF
+                    sum += abs(right - luma) + abs(below - luma)
+                    count++
+                }
+            }
+            return sum.toDouble() / count
+        }
+
+        private const val DEFAULT_GRID_SIZE = 64
+    }
+}
@@ -24,9 +24,9 @@ import android.hardware.camera2.CameraCaptureSession
 import android.hardware.camera2.CameraCharacteristics
 import android.hardware.camera2.CameraDevice
 import android.hardware.camera2.CameraManager
+import android.hardware.camera2.CaptureFailure
 import android.hardware.camera2.CaptureRequest
 import android.hardware.camera2.CaptureResult
-import android.hardware.camera2.DngCreator
 import android.hardware.camera2.TotalCaptureResult
 import android.media.Image
 import android.media.ImageReader
@@ -34,6 +34,7 @@ import android.os.Build
 import android.os.Bundle
 import android.os.Handler
 import android.os.HandlerThread
+import android.os.SystemClock
 import android.util.Log
 import android.view.LayoutInflater
 import android.view.Surface
@@ -48,23 +49,37 @@ import androidx.lifecycle.lifecycleScope
 import androidx.navigation.NavController
 import androidx.navigation.Navigation
 import androidx.navigation.fragment.navArgs
+import com.example.android.camera.utils.CaptureRequestCache
+import com.example.android.camera.utils.CaptureStartLatency
+import com.example.android.camera.utils.DngMetadata
+import com.example.android.camera.utils.DngWriter
+import com.example.android.camera.utils.ExifOrientationWriter
+import com.example.android.camera.utils.FrameRateMeter
+import com.example.android.camera.utils.ImageResultMatcher
+import com.example.android.camera.utils.ParallelJpegEncoder
 import com.example.android.camera.utils.computeExifOrientation
 import com.example.android.camera.utils.getPreviewOutputSize
 import com.example.android.camera.utils.AutoFitSurfaceView
 import com.example.android.camera.utils.OrientationLiveData
 import com.example.android.camera2.basic.CameraActivity
+import com.example.android.camera2.basic.CaptureWriter
 import com.example.android.camera2.basic.R
+import com.example.android.camera2.basic.ZslRingBuffer
 import kotlinx.android.synthetic.main.fragment_camera.*
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import java.io.Closeable
 import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
 import java.text.SimpleDateFormat
-import java.util.concurrent.ArrayBlockingQueue
 import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
 import java.util.Date
 import java.util.Locale
 import kotlin.RuntimeException
@@ -96,6 +111,34 @@ class CameraFragment : Fragment() {
     /** Readers used as buffers for camera still shots */
     private lateinit var imageReader: ImageReader
 
+    /** Whether pictures are picked from frames already captured, see [ZslRingBuffer] */
+    private val zslMode: Boolean by lazy { args.pixelFormat == ImageFormat.YUV_420_888 }
+
+    /** Last full resolution frames of the preview, in ZSL mode */
+    private var zslBuffer: ZslRingBuffer<Image, TotalCaptureResult>? = null
+
+    /** Pairs the images of [imageReader] with the capture results of their requests */
+    private lateinit var imageMatcher: ImageResultMatcher<Image, TotalCaptureResult>
+
+    /**
+     * Whether images and capture results are paired by sensor timestamp. Before Android Q, and
+     * for DEPTH_JPEG images, timestamps don't match (b/142011420) and they are paired in the
+     * order they arrive instead, using the counts below as keys
+     */
+    private val matchTimestamps: Boolean by lazy {
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && args.pixelFormat != ImageFormat.DEPTH_JPEG
+    }
+
+    /**
+     * Images received by [imageReader], updated on [imageReaderThread], and also on
+     * [cameraThread] to skip the image of a failed capture that will never come
+     */
+    private val imageCount = AtomicLong()
+
+    /** Captures started and finished, only updated on [cameraThread] */
+    private var startedCount = 0L
+    private var resultCount = 0L
+
     /** [HandlerThread] where all camera operations run */
     private val cameraThread = HandlerThread("CameraThread").apply { start() }
 
@@ -115,6 +158,18 @@ class CameraFragment : Fragment() {
         }
     }
 
+    /** Writes RAW captures as DNG files, uncompressed like `DngCreator` does */
+    private val dngWriter = DngWriter()
+
+    /** Encodes the YUV frames picked in ZSL mode as JPEG images, using all cores */
+    private val jpegEncoder = ParallelJpegEncoder(JPEG_QUALITY)
+
+    /** Requests of the current session, built once so the shutter only has to submit them */
+    private val requestCache = CaptureRequestCache()
+
+    /** Time from a press on the shutter to the start of the still capture */
+    private val captureStartLatency = CaptureStartLatency(TAG)
+
     /** [HandlerThread] where all buffer reading operations run */
     private val imageReaderThread = HandlerThread("imageReaderThread").apply { start() }
 
@@ -127,6 +182,35 @@ class CameraFragment : Fragment() {
     /** Overlay on top of the camera preview */
     private lateinit var overlay: View
 
+    /**
+     * Saves captures to disk in the background. Along with the capture being taken, it holds at
+     * most [IMAGE_BUFFER_SIZE] images of [imageReader]
+     */
+    private val captureWriter: CaptureWriter<CombinedCaptureResult> by lazy {
+        CaptureWriter(lifecycleScope, CaptureWriter.capacityFor(IMAGE_BUFFER_SIZE)) { result ->
+            // Save the result to disk, along with its EXIF orientation for JPEG files
+            val output = saveResult(result)
+            Log.d(TAG, "Image saved: ${output.absolutePath}")
+
+            // Display the photo taken to user, unless more photos are being taken or saved
+            withContext(Dispatchers.Main) {
+                if (captureWriter.depth == 1 && capture_button.isEnabled) {
+                    navController.navigate(CameraFragmentDirections
+                            .actionCameraToJpegViewer(output.absolutePath)
+                            .setOrientation(result.orientation)
+                            .setDepth(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+                                    result.format == ImageFormat.DEPTH_JPEG))
+                }
+            }
+        }
+    }
+
+    /**
+     * Time between consecutive shots and from pressing the shutter to the capture being queued
+     * for saving, which is the shutter latency felt by the user
+     */
+    private val shotMeter = FrameRateMeter(SHOT_METER_CAPACITY)
+
     /** The [CameraDevice] that will be opened in this fragment */
     private lateinit var camera: CameraDevice
 
@@ -199,8 +283,25 @@ class CameraFragment : Fragment() {
         val size = characteristics.get(
                 CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP)!!
                 .getOutputSizes(args.pixelFormat).maxBy { it.height * it.width }!!
-        imageReader = ImageReader.newInstance(
-                size.width, size.height, args.pixelFormat, IMAGE_BUFFER_SIZE)
+        // In ZSL mode the reader also holds the frames of the ring buffer, plus the frame that
+        // replaces the oldest of them, on top of the captures being taken and saved
+        val zsl = if (zslMode) ZslRingBuffer<Image, TotalCaptureResult>(
+                ZSL_BUFFER_SIZE, ZSL_SELECTION) { sharpness(it) } else null
+        zslBuffer = zsl
+        imageReader = ImageReader.newInstance(size.width, size.height, args.pixelFormat,
+                IMAGE_BUFFER_SIZE + (zsl?.maxImages ?: 0))
+
+        // Hand every image over to the ZSL buffer, or to the matcher which pairs it with the
+        // capture result of the still capture
+        imageMatcher = ImageResultMatcher(IMAGE_BUFFER_SIZE)
+        imageReader.setOnImageAvailableListener({ reader ->
+            val image = reader.acquireNextImage() ?: return@setOnImageAvailableListener
+            when {
+                zsl != null -> zsl.onImage(image.timestamp, image)
+                matchTimestamps -> imageMatcher.onImage(image.timestamp, image)
+                else -> imageMatcher.onImage(imageCount.getAndIncrement(), image)
+            }
+        }, imageReaderHandler)
 
         // Creates list of Surfaces where the camera will output frames
         val targets = listOf(viewFinder.holder.surface, imageReader.surface)
@@ -208,49 +309,54 @@ class CameraFragment : Fragment() {
         // Start a capture session using our open camera and list of Surfaces where frames will go
         session = createCaptureSession(camera, targets, cameraHandler)
 
-        val captureRequest = camera.createCaptureRequest(
-                CameraDevice.TEMPLATE_PREVIEW).apply { addTarget(viewFinder.holder.surface) }
+        // In ZSL mode every preview frame is also captured at full resolution into the reader
+        val template = if (zsl != null) {
+            CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG
+        } else CameraDevice.TEMPLATE_PREVIEW
+        val previewTargets = if (zsl != null) targets else listOf(viewFinder.holder.surface)
+        val captureRequest = requestCache.get(session, template, previewTargets)
+        val captureCallback = zsl?.let {
+            object : CameraCaptureSession.CaptureCallback() {
+                override fun onCaptureCompleted(
+                        session: CameraCaptureSession,
+                        request: CaptureRequest,
+                        result: TotalCaptureResult) {
+                    zsl.onResult(result.get(CaptureResult.SENSOR_TIMESTAMP)!!, result)
+                }
+            }
+        }
 
         // This will keep sending the capture request as frequently as possible until the
         // session is torn down or session.stopRepeating() is called
-        session.setRepeatingRequest(captureRequest.build(), null, cameraHandler)
+        session.setRepeatingRequest(captureRequest, captureCallback, cameraHandler)
+
+        // Build the still capture request now rather than on the first press
+        if (zsl == null) stillCaptureRequest()
 
         // Listen to the capture button
         capture_button.setOnClickListener {
 
             // Disable click listener to prevent multiple requests simultaneously in flight
             it.isEnabled = false
+            val pressedAt = SystemClock.elapsedRealtimeNanos()
+            if (!zslMode) captureStartLatency.onPressed(pressedAt)
 
-            // Perform I/O heavy operations in a different scope
+            // Only wait for the capture here, saving it happens in the background so that the
+            // next photo can be taken right away
             lifecycleScope.launch(Dispatchers.IO) {
-                takePhoto().use { result ->
-                    Log.d(TAG, "Result received: $result")
-
-                    // Save the result to disk
-                    val output = saveResult(result)
-                    Log.d(TAG, "Image saved: ${output.absolutePath}")
-
-                    // If the result is a JPEG file, update EXIF metadata with orientation info
-                    if (output.extension == "jpg") {
-                        val exif = ExifInterface(output.absolutePath)
-                        exif.setAttribute(
-                                ExifInterface.TAG_ORIENTATION, result.orientation.toString())
-                        exif.saveAttributes()
-                        Log.d(TAG, "EXIF metadata saved: ${output.absolutePath}")
-                    }
-
-                    // Display the photo taken to user
-                    lifecycleScope.launch(Dispatchers.Main) {
-                        navController.navigate(CameraFragmentDirections
-                                .actionCameraToJpegViewer(output.absolutePath)
-                                .setOrientation(result.orientation)
-                                .setDepth(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
-                                        result.format == ImageFormat.DEPTH_JPEG))
-                    }
+                val result = if (zslMode) takeZslPhoto(pressedAt) else takePhoto()
+                Log.d(TAG, "Result received: $result")
+                captureWriter.submit(result)
+
+                // Re-enable click listener once the photo is queued for saving
+                val readyAt = SystemClock.elapsedRealtimeNanos()
+                it.post {
+                    shotMeter.onFrame(pressedAt, readyAt)
+                    Log.d(TAG, "Shot to shot: $shotMeter, writer queue depth " +
+                            "${captureWriter.depth}/${captureWriter.capacity} " +
+                            "(max ${captureWriter.maxDepth})")
+                    it.isEnabled = true
                 }
-
-                // Re-enable click listener after photo is taken
-                it.post { it.isEnabled = true }
             }
         }
     }
@@ -315,24 +421,13 @@ class CameraFragment : Fragment() {
      * template. It performs synchronization between the [CaptureResult] and the [Image] resulting
      * from the single capture, and outputs a [CombinedCaptureResult] object.
      */
-    private suspend fun takePhoto():
-            CombinedCaptureResult = suspendCoroutine { cont ->
-
-        // Flush any images left in the image reader
-        @Suppress("ControlFlowWithEmptyBody")
-        while (imageReader.acquireNextImage() != null) {}
+    private suspend fun takePhoto(): CombinedCaptureResult {
 
-        // Start a new image queue
-        val imageQueue = ArrayBlockingQueue<Image>(IMAGE_BUFFER_SIZE)
-        imageReader.setOnImageAvailableListener({ reader ->
-            val image = reader.acquireNextImage()
-            Log.d(TAG, "Image available in queue: ${image.timestamp}")
-            imageQueue.add(image)
-        }, imageReaderHandler)
+        // Key under which the image and the result of this capture meet in the matcher
+        val key = CompletableDeferred<Long>()
+        var startedKey = -1L
 
-        val captureRequest = session.device.createCaptureRequest(
-                CameraDevice.TEMPLATE_STILL_CAPTURE).apply { addTarget(imageReader.surface) }
-        session.capture(captureRequest.build(), object : CameraCaptureSession.CaptureCallback() {
+        session.capture(stillCaptureRequest(), object : CameraCaptureSession.CaptureCallback() {
 
             override fun onCaptureStarted(
                     session: CameraCaptureSession,
@@ -340,7 +435,10 @@ class CameraFragment : Fragment() {
                     timestamp: Long,
                     frameNumber: Long) {
                 super.onCaptureStarted(session, request, timestamp, frameNumber)
+                captureStartLatency.onCaptureStarted(session, request, timestamp, frameNumber)
                 viewFinder.post(animationTask)
+                startedKey = if (matchTimestamps) timestamp else startedCount++
+                key.complete(startedKey)
             }
 
             override fun onCaptureCompleted(
@@ -348,67 +446,103 @@ class CameraFragment : Fragment() {
                     request: CaptureRequest,
                     result: TotalCaptureResult) {
                 super.onCaptureCompleted(session, request, result)
-                val resultTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP)
+                val resultTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP)!!
                 Log.d(TAG, "Capture result received: $resultTimestamp")
+                imageMatcher.onResult(
+                        if (matchTimestamps) resultTimestamp else resultCount++, result)
+            }
 
-                // Set a timeout in case image captured is dropped from the pipeline
-                val exc = TimeoutException("Image dequeuing took too long")
-                val timeoutRunnable = Runnable { cont.resumeWithException(exc) }
-                imageReaderHandler.postDelayed(timeoutRunnable, IMAGE_CAPTURE_TIMEOUT_MILLIS)
-
-                // Loop in the coroutine's context until an image with matching timestamp comes
-                // We need to launch the coroutine context again because the callback is done in
-                //  the handler provided to the `capture` method, not in our coroutine context
-                @Suppress("BlockingMethodInNonBlockingContext")
-                lifecycleScope.launch(cont.context) {
-                    while (true) {
-
-                        // Dequeue images while timestamps don't match
-                        val image = imageQueue.take()
-                        // TODO(owahltinez): b/142011420
-                        // if (image.timestamp != resultTimestamp) continue
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
-                                image.format != ImageFormat.DEPTH_JPEG &&
-                                image.timestamp != resultTimestamp) continue
-                         Log.d(TAG, "Matching image dequeued: ${image.timestamp}")
-
-                        // Unset the image reader listener
-                        imageReaderHandler.removeCallbacks(timeoutRunnable)
-                        imageReader.setOnImageAvailableListener(null, null)
-
-                        // Clear the queue of images, if there are left
-                        while (imageQueue.size > 0) {
-                            imageQueue.take().close()
-                        }
-
-                        // Compute EXIF orientation metadata
-                        val rotation = relativeOrientation.value ?: 0
-                        val mirrored = characteristics.get(CameraCharacteristics.LENS_FACING) ==
-                                CameraCharacteristics.LENS_FACING_FRONT
-                        val exifOrientation = computeExifOrientation(rotation, mirrored)
-
-                        // Build the result and resume progress
-                        cont.resume(CombinedCaptureResult(
-                                image, result, exifOrientation, imageReader.imageFormat))
-
-                        // There is no need to break out of the loop, this coroutine will suspend
-                    }
+            override fun onCaptureFailed(
+                    session: CameraCaptureSession,
+                    request: CaptureRequest,
+                    failure: CaptureFailure) {
+                super.onCaptureFailed(session, request, failure)
+                val exc = RuntimeException("Capture failed with reason ${failure.reason}")
+                if (!matchTimestamps) {
+                    // Every capture takes one key of each count, whether or not it started or
+                    // produced an image, so that the counts stay in step for later captures
+                    if (!key.isCompleted) startedCount++
+                    resultCount++
+                    if (!failure.wasImageCaptured()) imageCount.incrementAndGet()
                 }
+                if (!key.completeExceptionally(exc)) imageMatcher.fail(startedKey, exc)
             }
         }, cameraHandler)
+
+        // Suspend until both the image and the result are in, without blocking a thread, and
+        // give up in case the image captured is dropped from the pipeline
+        val (image, result) = withTimeoutOrNull(IMAGE_CAPTURE_TIMEOUT_MILLIS) {
+            imageMatcher.await(key.await())
+        } ?: throw TimeoutException("Image dequeuing took too long")
+        Log.d(TAG, "Matching image received: ${image.timestamp}")
+
+        return CombinedCaptureResult(image, result, exifOrientation(), imageReader.imageFormat)
+    }
+
+    /** Request capturing a still image into [imageReader] with the current session */
+    private fun stillCaptureRequest() = requestCache.get(
+            session, CameraDevice.TEMPLATE_STILL_CAPTURE, listOf(imageReader.surface))
+
+    /**
+     * Picks a frame that was already captured from the ZSL buffer, instead of capturing a new
+     * one, and reports how long before or after [pressedAt] it was captured.
+     */
+    private suspend fun takeZslPhoto(pressedAt: Long): CombinedCaptureResult {
+        val zsl = zslBuffer!!
+
+        // The buffer is only empty until the first frames come after the camera starts
+        val frame = withTimeoutOrNull(IMAGE_CAPTURE_TIMEOUT_MILLIS) {
+            var frame = zsl.take()
+            while (frame == null) {
+                delay(ZSL_RETRY_MILLIS)
+                frame = zsl.take()
+            }
+            frame
+        } ?: throw TimeoutException("No frame available in the ZSL buffer")
+        viewFinder.post(animationTask)
+
+        // Sensor timestamps can only be compared with the press time if their source is realtime
+        if (characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE) ==
+                CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) {
+            Log.d(TAG, String.format(Locale.US, "Shutter to frame: %.1f ms",
+                    (frame.timestamp - pressedAt) / 1e6))
+        }
+
+        return CombinedCaptureResult(
+                frame.image, frame.result, exifOrientation(), imageReader.imageFormat)
+    }
+
+    /** Computes the EXIF orientation of the picture taken now */
+    private fun exifOrientation(): Int {
+        val rotation = relativeOrientation.value ?: 0
+        val mirrored = characteristics.get(CameraCharacteristics.LENS_FACING) ==
+                CameraCharacteristics.LENS_FACING_FRONT
+        return computeExifOrientation(rotation, mirrored)
     }
 
     /** Helper function used to save a [CombinedCaptureResult] into a [File] */
     private suspend fun saveResult(result: CombinedCaptureResult): File = suspendCoroutine { cont ->
         when (result.format) {
 
-            // When the format is JPEG or DEPTH JPEG we can simply save the bytes as-is
+            // When the format is JPEG or DEPTH JPEG we can save the bytes as-is, straight from the
+            // image buffer and in a single write, only splicing the orientation into the EXIF data
             ImageFormat.JPEG, ImageFormat.DEPTH_JPEG -> {
                 val buffer = result.image.planes[0].buffer
-                val bytes = ByteArray(buffer.remaining()).apply { buffer.get(this) }
                 try {
                     val output = createFile(requireContext(), "jpg")
-                    FileOutputStream(output).use { it.write(bytes) }
+                    val orientationWritten = FileOutputStream(output).channel.use {
+                        ExifOrientationWriter.write(buffer, it, result.orientation)
+                    }
+
+                    // The EXIF data of the camera had no orientation tag to replace, so fall back
+                    // to rewriting the file
+                    if (!orientationWritten) {
+                        val exif = ExifInterface(output.absolutePath)
+                        exif.setAttribute(
+                                ExifInterface.TAG_ORIENTATION, result.orientation.toString())
+                        exif.saveAttributes()
+                        Log.d(TAG, "EXIF metadata saved: ${output.absolutePath}")
+                    }
                     cont.resume(output)
                 } catch (exc: IOException) {
                     Log.e(TAG, "Unable to write JPEG image to file", exc)
@@ -416,12 +550,17 @@ class CameraFragment : Fragment() {
                 }
             }
 
-            // When the format is RAW we use the DngCreator utility library
+            // When the format is RAW, stream the sensor plane to a DNG file
             ImageFormat.RAW_SENSOR -> {
-                val dngCreator = DngCreator(characteristics, result.metadata)
                 try {
                     val output = createFile(requireContext(), "dng")
-                    FileOutputStream(output).use { dngCreator.writeImage(it, result.image) }
+                    val metadata = DngMetadata.create(
+                            characteristics, result.metadata, result.orientation)
+                    val start = SystemClock.elapsedRealtime()
+                    FileOutputStream(output).channel.use {
+                        dngWriter.write(it, result.image, metadata)
+                    }
+                    Log.d(TAG, "DNG written in ${SystemClock.elapsedRealtime() - start} ms")
                     cont.resume(output)
                 } catch (exc: IOException) {
                     Log.e(TAG, "Unable to write DNG image to file", exc)
@@ -429,6 +568,22 @@ class CameraFragment : Fragment() {
                 }
             }
 
+            // When the format is YUV, i.e. in ZSL mode, the frame needs to be encoded first
+            ImageFormat.YUV_420_888 -> {
+                try {
+                    val output = createFile(requireContext(), "jpg")
+                    val start = SystemClock.elapsedRealtime()
+                    FileOutputStream(output).channel.use {
+                        jpegEncoder.encode(result.image, it, result.orientation)
+                    }
+                    Log.d(TAG, "JPEG encoded in ${SystemClock.elapsedRealtime() - start} ms")
+                    cont.resume(output)
+                } catch (exc: IOException) {
+                    Log.e(TAG, "Unable to write JPEG image to file", exc)
+                    cont.resumeWithException(exc)
+                }
+            }
+
             // No other formats are supported by this sample
             else -> {
                 val exc = RuntimeException("Unknown image format: ${result.image.format}")
@@ -441,6 +596,9 @@ class CameraFragment : Fragment() {
     override fun onStop() {
         super.onStop()
         try {
+            if (::imageMatcher.isInitialized) imageMatcher.close()
+            zslBuffer?.close()
+            requestCache.invalidate()
             camera.close()
         } catch (exc: Throwable) {
             Log.e(TAG, "Error closing camera", exc)
@@ -451,13 +609,29 @@ class CameraFragment : Fragment() {
         super.onDestroy()
         cameraThread.quitSafely()
         imageReaderThread.quitSafely()
+        jpegEncoder.shutdown()
     }
 
     companion object {
         private val TAG = CameraFragment::class.java.simpleName
 
-        /** Maximum number of images that will be held in the reader's buffer */
-        private const val IMAGE_BUFFER_SIZE: Int = 3
+        /** Maximum number of images held in the reader's buffer by captures taken or saved */
+        private const val IMAGE_BUFFER_SIZE: Int = 4
+
+        /** Number of shots over which shot to shot time and shutter latency are reported */
+        private const val SHOT_METER_CAPACITY: Int = 10
+
+        /** Number of frames kept in ZSL mode, which adds one more image to the reader */
+        private const val ZSL_BUFFER_SIZE: Int = 4
+
+        /** How the picture is picked among the frames kept in ZSL mode */
+        private val ZSL_SELECTION = ZslRingBuffer.Selection.SHARPEST
+
+        /** Time to wait before looking again for a frame when the ZSL buffer is empty */
+        private const val ZSL_RETRY_MILLIS: Long = 10
+
+        /** Quality of the JPEG images encoded from YUV frames */
+        private const val JPEG_QUALITY: Int = 95
 
         /** Maximum time allowed to wait for the result of an image capture */
         private const val IMAGE_CAPTURE_TIMEOUT_MILLIS: Long = 5000
@@ -472,6 +646,13 @@ class CameraFragment : Fragment() {
             override fun close() = image.close()
         }
 
+        /** Scores the sharpness of a YUV image from its luma plane */
+        private fun sharpness(image: Image): Double {
+            val plane = image.planes[0]
+            return ZslRingBuffer.lumaSharpness(plane.buffer, plane.rowStride, plane.pixelStride,
+                    image.width, image.height)
+        }
+
         /**
          * Create a [File] named a using formatted timestamp with the current date and time.
          *
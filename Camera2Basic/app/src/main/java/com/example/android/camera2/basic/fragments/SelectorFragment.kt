@@ -111,6 +111,16 @@ class SelectorFragment : Fragment() {
                 availableCameras.add(FormatItem(
                         "$orientation JPEG ($id)", id, ImageFormat.JPEG))
 
+                // Return cameras that can stream full resolution YUV frames along with the
+                // preview, which is what zero shutter lag mode needs
+                val hardwareLevel = characteristics.get(
+                        CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL)
+                if (hardwareLevel == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL ||
+                        hardwareLevel == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3) {
+                    availableCameras.add(FormatItem(
+                            "$orientation ZSL ($id)", id, ImageFormat.YUV_420_888))
+                }
+
                 // Return cameras that support RAW capability
                 if (capabilities.contains(
                                 CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_RAW) &&
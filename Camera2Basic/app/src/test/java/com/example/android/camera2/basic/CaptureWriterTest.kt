@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2.basic
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.yield
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.Closeable
+import java.io.IOException
+import java.util.Collections
+
+class CaptureWriterTest {
+
+    private class Capture(val id: Int) : Closeable {
+        var closed = false
+        override fun close() {
+            closed = true
+        }
+    }
+
+    @Test
+    fun capturesAreWrittenInOrderAndClosed() = runBlocking {
+        val written = Collections.synchronizedList(ArrayList<Int>())
+        val captures = List(5) { Capture(it) }
+        coroutineScope {
+            val writer = CaptureWriter<Capture>(this, 2, Dispatchers.Default) {
+                written.add(it.id)
+            }
+            captures.forEach { writer.submit(it) }
+            writer.close()
+        }
+        assertEquals(listOf(0, 1, 2, 3, 4), written)
+        assertTrue(captures.all { it.closed })
+    }
+
+    @Test
+    fun submitSuspendsOnceQueueIsFull() = runBlocking {
+        val release = CompletableDeferred<Unit>()
+        val started = CompletableDeferred<Unit>()
+        coroutineScope {
+            val writer = CaptureWriter<Capture>(this, 1, Dispatchers.Default) {
+                started.complete(Unit)
+                release.await()
+            }
+            // One capture being written and one waiting fill the writer
+            writer.submit(Capture(0))
+            started.await()
+            writer.submit(Capture(1))
+            val blocked = launch { writer.submit(Capture(2)) }
+            yield()
+            assertFalse(blocked.isCompleted)
+            assertEquals(3, writer.depth)
+
+            release.complete(Unit)
+            withTimeout(5000) { blocked.join() }
+            writer.close()
+        }
+    }
+
+    @Test
+    fun heldCapturesStayWithinMaxImages() = runBlocking {
+        val release = CompletableDeferred<Unit>()
+        val started = CompletableDeferred<Unit>()
+        val captures = List(4) { Capture(it) }
+        coroutineScope {
+            val writer = CaptureWriter<Capture>(this, CaptureWriter.capacityFor(4),
+                    Dispatchers.Default) {
+                started.complete(Unit)
+                release.await()
+            }
+            assertEquals(4, writer.maxImages)
+
+            // One capture being written, a full queue, and the next shot waiting in submit
+            writer.submit(captures[0])
+            started.await()
+            captures.drop(1).dropLast(1).forEach { writer.submit(it) }
+            val blocked = launch { writer.submit(captures.last()) }
+            yield()
+            assertFalse(blocked.isCompleted)
+            assertEquals(writer.maxImages, captures.count { !it.closed })
+
+            release.complete(Unit)
+            withTimeout(5000) { blocked.join() }
+            writer.close()
+        }
+        assertTrue(captures.all { it.closed })
+    }
+
+    @Test
+    fun failedWritesAreReportedAndSkipped() = runBlocking {
+        val errors = ArrayList<Exception>()
+        val captures = List(3) { Capture(it) }
+        coroutineScope {
+            val writer = CaptureWriter<Capture>(this, 2, Dispatchers.Default, { errors.add(it) }) {
+                if (it.id == 1) throw IOException("Disk full")
+            }
+            captures.forEach { writer.submit(it) }
+            writer.close()
+        }
+        assertEquals(1, errors.size)
+        assertTrue(captures.all { it.closed })
+    }
+
+    @Test
+    fun pendingCapturesAreClosedWhenCancelled() = runBlocking {
+        val started = CompletableDeferred<Unit>()
+        val captures = List(3) { Capture(it) }
+        val job = launch {
+            val writer = CaptureWriter<Capture>(this, 2, Dispatchers.Default) {
+                started.complete(Unit)
+                CompletableDeferred<Unit>().await()
+            }
+            captures.forEach { writer.submit(it) }
+        }
+        started.await()
+        job.cancelAndJoin()
+        assertTrue(captures.all { it.closed })
+    }
+}
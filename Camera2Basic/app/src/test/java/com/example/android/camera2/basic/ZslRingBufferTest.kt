@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2.basic
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class ZslRingBufferTest {
+
+    private class Frame(val timestamp: Long, val sharpness: Double = 0.0) : AutoCloseable {
+        var closed = false
+        override fun close() {
+            closed = true
+        }
+    }
+
+    private fun buffer(selection: ZslRingBuffer.Selection = ZslRingBuffer.Selection.LATEST) =
+            ZslRingBuffer<Frame, String>(3, selection) { it.sharpness }
+
+    @Test
+    fun oldestFramesAreClosedWhenFull() {
+        val zsl = buffer()
+        val frames = List(5) { Frame(it * 100L) }
+        frames.forEach {
+            zsl.onImage(it.timestamp, it)
+            zsl.onResult(it.timestamp, "result ${it.timestamp}")
+        }
+        assertTrue(frames[0].closed && frames[1].closed)
+        assertFalse(frames.drop(2).any { it.closed })
+
+        val taken = zsl.take()!!
+        assertEquals(400L, taken.timestamp)
+        assertEquals("result 400", taken.result)
+        assertEquals(300L, zsl.take()!!.timestamp)
+    }
+
+    @Test
+    fun heldImagesStayWithinMaxImages() {
+        val zsl = buffer()
+        val frames = List(10) { Frame(it * 100L) }
+        var mostHeld = 0
+        frames.forEachIndexed { index, frame ->
+            // The reader listener acquires each image before the buffer closes the oldest one
+            mostHeld = maxOf(mostHeld, frames.take(index + 1).count { !it.closed })
+            zsl.onImage(frame.timestamp, frame)
+        }
+        assertEquals(zsl.maxImages, mostHeld)
+    }
+
+    @Test
+    fun framesWithoutResultAreNotTaken() {
+        val zsl = buffer()
+        zsl.onResult(100L, "early result")
+        zsl.onImage(100L, Frame(100L))
+        zsl.onImage(200L, Frame(200L))
+        assertEquals(100L, zsl.take()!!.timestamp)
+        assertNull(zsl.take())
+    }
+
+    @Test
+    fun sharpestFrameIsTaken() {
+        val zsl = buffer(ZslRingBuffer.Selection.SHARPEST)
+        listOf(Frame(100L, 2.0), Frame(200L, 5.0), Frame(300L, 1.0)).forEach {
+            zsl.onImage(it.timestamp, it)
+            zsl.onResult(it.timestamp, "")
+        }
+        assertEquals(200L, zsl.take()!!.timestamp)
+    }
+
+    @Test
+    fun closeReleasesFrames() {
+        val zsl = buffer()
+        val kept = Frame(100L)
+        zsl.onImage(100L, kept)
+        zsl.close()
+        assertTrue(kept.closed)
+        val late = Frame(200L)
+        zsl.onImage(200L, late)
+        assertTrue(late.closed)
+    }
+
+    @Test
+    fun blurredLumaScoresLower() {
+        val width = 64
+        val height = 48
+        val sharp = ByteBuffer.allocate(width * height)
+        val blurred = ByteBuffer.allocate(width * height)
+        for (y in 0 until height) for (x in 0 until width) {
+            sharp.put(y * width + x, (if ((x / 2 + y / 2) % 2 == 0) 0 else 255).toByte())
+            blurred.put(y * width + x, (96 + (x + y) % 4 * 16).toByte())
+        }
+        val sharpScore = ZslRingBuffer.lumaSharpness(sharp, width, 1, width, height, 16)
+        val blurredScore = ZslRingBuffer.lumaSharpness(blurred, width, 1, width, height, 16)
+        assertTrue("$sharpScore <= $blurredScore", sharpScore > blurredScore)
+    }
+}
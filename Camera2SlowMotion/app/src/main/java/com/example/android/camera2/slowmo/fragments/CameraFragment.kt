@@ -48,6 +48,8 @@ import androidx.navigation.NavController
 import androidx.navigation.Navigation
 import androidx.navigation.fragment.navArgs
 import com.example.android.camera.utils.AutoFitSurfaceView
+import com.example.android.camera.utils.CaptureRequestCache
+import com.example.android.camera.utils.CaptureStartLatency
 import com.example.android.camera.utils.OrientationLiveData
 import com.example.android.camera.utils.SIZE_1080P
 import com.example.android.camera.utils.SmartSize
@@ -149,36 +151,30 @@ class CameraFragment : Fragment() {
     /** The [CameraDevice] that will be opened in this fragment */
     private lateinit var camera: CameraDevice
 
-    /** Requests used for preview only in the [CameraConstrainedHighSpeedCaptureSession] */
-    private val previewRequestList: List<CaptureRequest> by lazy {
-        // Capture request holds references to target surfaces
-        session.device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW).apply {
-            // Add the preview surface target
-            addTarget(viewFinder.holder.surface)
+    /** Requests of the current session, built once so the button only has to submit them */
+    private val requestCache = CaptureRequestCache()
+
+    /** Time from a press on the button to the start of the first recorded frame */
+    private val captureStartLatency = CaptureStartLatency(TAG)
+
+    /**
+     * Requests used for preview only in the [CameraConstrainedHighSpeedCaptureSession]. These are
+     * lists of highly optimized capture requests sent to the camera for a high speed video
+     * session. Important note: Must use repeating burst request type
+     */
+    private fun previewRequestList(): List<CaptureRequest> =
             // High speed capture session requires a target FPS range, even for preview only
-            set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, Range(FPS_PREVIEW_ONLY, args.fps))
-        }.let {
-            // Creates a list of highly optimized capture requests sent to the camera for a high
-            // speed video session. Important note: Must use repeating burst request type
-            session.createHighSpeedRequestList(it.build())
-        }
-    }
+            requestCache.getHighSpeed(session, CameraDevice.TEMPLATE_PREVIEW,
+                    listOf(viewFinder.holder.surface),
+                    mapOf(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE to
+                            Range(FPS_PREVIEW_ONLY, args.fps)))
 
     /** Requests used for preview and recording in the [CameraConstrainedHighSpeedCaptureSession] */
-    private val recordRequestList: List<CaptureRequest> by lazy {
-        // Capture request holds references to target surfaces
-        session.device.createCaptureRequest(CameraDevice.TEMPLATE_RECORD).apply {
-            // Add the preview and recording surface targets
-            addTarget(viewFinder.holder.surface)
-            addTarget(recorderSurface)
-            // Sets user requested FPS for all targets
-            set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, Range(args.fps, args.fps))
-        }.let {
-            // Creates a list of highly optimized capture requests sent to the camera for a high
-            // speed video session. Important note: Must use repeating burst request type
-            session.createHighSpeedRequestList(it.build())
-        }
-    }
+    private fun recordRequestList(): List<CaptureRequest> =
+            // Targets the preview and recording surfaces, with the user requested FPS for both
+            requestCache.getHighSpeed(session, CameraDevice.TEMPLATE_RECORD,
+                    listOf(viewFinder.holder.surface, recorderSurface),
+                    mapOf(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE to Range(args.fps, args.fps)))
 
     private var recordingStartMillis: Long = 0L
 
@@ -307,10 +303,14 @@ class CameraFragment : Fragment() {
 
         // Sends the capture request as frequently as possible until the session is torn down or
         // session.stopRepeating() is called
-        session.setRepeatingBurst(previewRequestList, null, cameraHandler)
+        session.setRepeatingBurst(previewRequestList(), null, cameraHandler)
+
+        // Build the record requests now rather than when the button is pressed
+        recordRequestList()
 
         // Listen to the capture button
         capture_button.setOnTouchListener { view, event ->
+            if (event.action == MotionEvent.ACTION_DOWN) captureStartLatency.onPressed()
             when (event.action) {
 
                 MotionEvent.ACTION_DOWN -> lifecycleScope.launch(Dispatchers.IO) {
@@ -321,7 +321,8 @@ class CameraFragment : Fragment() {
 
                     // Stops preview requests, and start record requests
                     session.stopRepeating()
-                    session.setRepeatingBurst(recordRequestList, null, cameraHandler)
+                    session.setRepeatingBurst(
+                            recordRequestList(), captureStartLatency, cameraHandler)
 
                     // Finalizes recorder setup and starts recording
                     recorder.apply {
@@ -440,6 +441,7 @@ class CameraFragment : Fragment() {
     override fun onStop() {
         super.onStop()
         try {
+            requestCache.invalidate()
             camera.close()
         } catch (exc: Throwable) {
             Log.e(TAG, "Error closing camera", exc)
@@ -50,6 +50,8 @@ import androidx.navigation.NavController
 import androidx.navigation.Navigation
 import androidx.navigation.fragment.navArgs
 import com.example.android.camera.utils.AutoFitSurfaceView
+import com.example.android.camera.utils.CaptureRequestCache
+import com.example.android.camera.utils.CaptureStartLatency
 import com.example.android.camera.utils.OrientationLiveData
 import com.example.android.camera.utils.getPreviewOutputSize
 import com.example.android.camera2.video.BuildConfig
@@ -149,26 +151,24 @@ class CameraFragment : Fragment() {
     /** The [CameraDevice] that will be opened in this fragment */
     private lateinit var camera: CameraDevice
 
+    /** Requests of the current session, built once so the button only has to submit them */
+    private val requestCache = CaptureRequestCache()
+
+    /** Time from a press on the button to the start of the first recorded frame */
+    private val captureStartLatency = CaptureStartLatency(TAG)
+
     /** Requests used for preview only in the [CameraCaptureSession] */
-    private val previewRequest: CaptureRequest by lazy {
-        // Capture request holds references to target surfaces
-        session.device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW).apply {
-            // Add the preview surface target
-            addTarget(viewFinder.holder.surface)
-        }.build()
-    }
+    private fun previewRequest(): CaptureRequest =
+            // Capture request holds references to target surfaces, here the preview surface
+            requestCache.get(
+                    session, CameraDevice.TEMPLATE_PREVIEW, listOf(viewFinder.holder.surface))
 
     /** Requests used for preview and recording in the [CameraCaptureSession] */
-    private val recordRequest: CaptureRequest by lazy {
-        // Capture request holds references to target surfaces
-        session.device.createCaptureRequest(CameraDevice.TEMPLATE_RECORD).apply {
-            // Add the preview and recording surface targets
-            addTarget(viewFinder.holder.surface)
-            addTarget(recorderSurface)
-            // Sets user requested FPS for all targets
-            set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, Range(args.fps, args.fps))
-        }.build()
-    }
+    private fun recordRequest(): CaptureRequest =
+            // Targets the preview and recording surfaces, with the user requested FPS for both
+            requestCache.get(session, CameraDevice.TEMPLATE_RECORD,
+                    listOf(viewFinder.holder.surface, recorderSurface),
+                    mapOf(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE to Range(args.fps, args.fps)))
 
     private var recordingStartMillis: Long = 0L
 
@@ -251,10 +251,14 @@ class CameraFragment : Fragment() {
 
         // Sends the capture request as frequently as possible until the session is torn down or
         //  session.stopRepeating() is called
-        session.setRepeatingRequest(previewRequest, null, cameraHandler)
+        session.setRepeatingRequest(previewRequest(), null, cameraHandler)
+
+        // Build the record request now rather than when the button is pressed
+        recordRequest()
 
         // React to user touching the capture button
         capture_button.setOnTouchListener { view, event ->
+            if (event.action == MotionEvent.ACTION_DOWN) captureStartLatency.onPressed()
             when (event.action) {
 
                 MotionEvent.ACTION_DOWN -> lifecycleScope.launch(Dispatchers.IO) {
@@ -265,7 +269,7 @@ class CameraFragment : Fragment() {
 
                     // Start recording repeating requests, which will stop the ongoing preview
                     //  repeating requests without having to explicitly call `session.stopRepeating`
-                    session.setRepeatingRequest(recordRequest, null, cameraHandler)
+                    session.setRepeatingRequest(recordRequest(), captureStartLatency, cameraHandler)
 
                     // Finalizes recorder setup and starts recording
                     recorder.apply {
@@ -382,6 +386,7 @@ class CameraFragment : Fragment() {
     override fun onStop() {
         super.onStop()
         try {
+            requestCache.invalidate()
             camera.close()
         } catch (exc: Throwable) {
             Log.e(TAG, "Error closing camera", exc)
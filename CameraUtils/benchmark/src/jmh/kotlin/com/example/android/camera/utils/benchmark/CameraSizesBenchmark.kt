@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera.utils.benchmark
+
+import android.util.Size
+import com.example.android.camera.utils.SIZE_1080P
+import com.example.android.camera.utils.getLargestOutputSize
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+
+/** Benchmarks the output size selection done by getPreviewOutputSize */
+@State(Scope.Thread)
+open class CameraSizesBenchmark {
+
+    /** Output sizes reported by a typical back camera, in no particular order */
+    private val outputSizes = arrayOf(
+            Size(4032, 3024), Size(4000, 3000), Size(3840, 2160), Size(3264, 2448),
+            Size(3200, 2400), Size(2976, 2976), Size(2592, 1944), Size(2688, 1512),
+            Size(2048, 1536), Size(1920, 1440), Size(1920, 1080), Size(1600, 1200),
+            Size(1440, 1080), Size(1280, 960), Size(1280, 768), Size(1280, 720),
+            Size(1024, 768), Size(800, 600), Size(864, 480), Size(800, 480),
+            Size(720, 480), Size(640, 480), Size(640, 360), Size(352, 288),
+            Size(320, 240), Size(176, 144))
+
+    @Benchmark
+    fun getLargestOutputSize(): Size = getLargestOutputSize(outputSizes, SIZE_1080P)
+}
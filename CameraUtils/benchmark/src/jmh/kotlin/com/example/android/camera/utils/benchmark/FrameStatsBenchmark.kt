@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils.benchmark
+
+import com.example.android.camera.utils.FrameStats
+import com.example.android.camera.utils.FrameStatsAnalyzer
+import com.example.android.camera.utils.YuvFrame
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+
+/** Benchmarks the single pass luma statistics of [FrameStatsAnalyzer] */
+@State(Scope.Thread)
+open class FrameStatsBenchmark {
+
+    @Param(RESOLUTION_480P, RESOLUTION_720P, RESOLUTION_1080P, RESOLUTION_4K)
+    lateinit var resolution: String
+
+    private lateinit var frame: YuvFrame
+    private val analyzer = FrameStatsAnalyzer()
+
+    @Setup
+    fun setUp() {
+        frame = createFrame(resolution, LAYOUT_NV21)
+    }
+
+    @Benchmark
+    fun analyze(): FrameStats {
+        analyzer.analyze(frame)
+        return analyzer.latest()
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera.utils.benchmark
+
+import com.example.android.camera.utils.FrameStatsAnalyzer
+import com.example.android.camera.utils.YuvFrame
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.nio.ByteBuffer
+
+/**
+ * Benchmarks the average luminosity computation of the LuminosityAnalyzer in the CameraXBasic
+ * sample, which hands the Y plane to a [FrameStatsAnalyzer], next to the boxing version it
+ * replaced.
+ */
+@State(Scope.Thread)
+open class LumaAverageBenchmark {
+
+    @Param(RESOLUTION_480P, RESOLUTION_720P, RESOLUTION_1080P, RESOLUTION_4K)
+    lateinit var resolution: String
+
+    private lateinit var frame: YuvFrame
+    private val analyzer = FrameStatsAnalyzer()
+    private val sampledAnalyzer = FrameStatsAnalyzer(sampleStep = 4)
+
+    @Setup
+    fun setUp() {
+        frame = createFrame(resolution, LAYOUT_NV21)
+    }
+
+    /** Previous LuminosityAnalyzer: copy the plane, box every pixel and average the list */
+    @Benchmark
+    fun boxedAverage(): Double {
+        val data = frame.yBuffer.toByteArray()
+        val pixels = data.map { it.toInt() and 0xFF }
+        return pixels.average()
+    }
+
+    /** Current LuminosityAnalyzer: statistics of the crop rectangle, bulk copying each row */
+    @Benchmark
+    fun frameStats(): Double {
+        analyzer.analyze(frame)
+        return analyzer.latest().mean
+    }
+
+    /** Same as [frameStats], only sampling every fourth pixel of every fourth row */
+    @Benchmark
+    fun frameStatsStep4(): Double {
+        sampledAnalyzer.analyze(frame)
+        return sampledAnalyzer.latest().mean
+    }
+
+    private fun ByteBuffer.toByteArray(): ByteArray {
+        rewind()    // Rewind the buffer to zero
+        val data = ByteArray(remaining())
+        get(data)   // Copy the buffer into a byte array
+        return data // Return the byte array
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera.utils.benchmark
+
+import com.example.android.camera.utils.YuvFrame
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+/** Resolutions covered by the benchmarks, used as the value of a JMH parameter */
+const val RESOLUTION_480P = "640x480"
+const val RESOLUTION_720P = "1280x720"
+const val RESOLUTION_1080P = "1920x1080"
+const val RESOLUTION_4K = "3840x2160"
+
+/** Chroma layouts covered by the benchmarks, used as the value of a JMH parameter */
+const val LAYOUT_NV21 = "NV21"
+const val LAYOUT_I420 = "I420"
+
+/** Many camera HALs align the row stride of each plane to this number of bytes */
+private const val ROW_ALIGNMENT = 256
+
+private fun align(value: Int) = (value + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT
+
+/** Parses a resolution in the format used by the JMH parameters, e.g. "1920x1080" */
+fun parseResolution(resolution: String): Pair<Int, Int> {
+    val (width, height) = resolution.split('x').map { it.toInt() }
+    return width to height
+}
+
+/**
+ * Creates a synthetic frame mimicking the planes of an [android.media.Image] delivered by the
+ * camera, filled with random noise so that branches in the code under test are not trivially
+ * predictable.
+ *
+ * With [LAYOUT_NV21] the U and V planes are views of one interleaved buffer with a pixel
+ * stride of 2, which is what most devices produce. With [LAYOUT_I420] the chroma planes are
+ * separate buffers with a pixel stride of 1.
+ */
+fun createFrame(resolution: String, layout: String, seed: Int = 0): YuvFrame {
+    val (width, height) = parseResolution(resolution)
+    val random = Random(seed)
+    fun ByteBuffer.fill() = apply {
+        val bytes = ByteArray(capacity()).also { random.nextBytes(it) }
+        put(bytes)
+        clear()
+    }
+
+    val yRowStride = align(width)
+    val yBuffer = ByteBuffer.allocateDirect(yRowStride * (height - 1) + width).fill()
+    val frame = YuvFrame().setSize(width, height).setPlane(0, yBuffer, yRowStride, 1)
+
+    val chromaHeight = height / 2
+    when (layout) {
+        LAYOUT_NV21 -> {
+            val rowStride = align(width)
+            val vu = ByteBuffer.allocateDirect(rowStride * chromaHeight).fill()
+            val length = rowStride * (chromaHeight - 1) + width - 1
+            val v = vu.duplicate().apply { limit(length) }.slice()
+            val u = vu.duplicate().apply { position(1); limit(length + 1) }.slice()
+            frame.setPlane(1, u, rowStride, 2).setPlane(2, v, rowStride, 2)
+        }
+        LAYOUT_I420 -> {
+            val rowStride = align(width / 2)
+            val length = rowStride * (chromaHeight - 1) + width / 2
+            val u = ByteBuffer.allocateDirect(length).fill()
+            val v = ByteBuffer.allocateDirect(length).fill()
+            frame.setPlane(1, u, rowStride, 1).setPlane(2, v, rowStride, 1)
+        }
+        else -> throw IllegalArgumentException("Unknown layout $layout")
+    }
+    return frame
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera.utils.benchmark
+
+import com.example.android.camera.utils.YuvFrame
+import com.example.android.camera.utils.YuvToRgbKernel
+import com.example.android.camera.utils.YuvToTensorPreprocessor
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Benchmarks building a 300x300 RGB model input rotated by 90 degrees, either fused with
+ * [YuvToTensorPreprocessor] or the way it was done with a bitmap: converting the whole frame,
+ * then center cropping, resizing, rotating and unpacking the channels in separate passes.
+ */
+@State(Scope.Thread)
+open class TensorPreprocessBenchmark {
+
+    @Param(RESOLUTION_480P, RESOLUTION_720P, RESOLUTION_1080P)
+    lateinit var resolution: String
+
+    private lateinit var frame: YuvFrame
+    private lateinit var argb: IntArray
+    private lateinit var cropped: IntArray
+    private val resized = IntArray(TENSOR_SIZE * TENSOR_SIZE)
+    private val rotated = IntArray(TENSOR_SIZE * TENSOR_SIZE)
+    private val kernel = YuvToRgbKernel()
+    private val preprocessor = YuvToTensorPreprocessor(TENSOR_SIZE, TENSOR_SIZE)
+    private val output = ByteBuffer.allocateDirect(preprocessor.outputSize)
+            .order(ByteOrder.nativeOrder())
+
+    @Setup
+    fun setUp() {
+        frame = createFrame(resolution, LAYOUT_NV21)
+        argb = IntArray(frame.cropWidth * frame.cropHeight)
+        val cropSize = minOf(frame.cropWidth, frame.cropHeight)
+        cropped = IntArray(cropSize * cropSize)
+    }
+
+    @Benchmark
+    fun fused(): ByteBuffer {
+        preprocessor.process(frame, 90, output)
+        return output
+    }
+
+    @Benchmark
+    fun separatePasses(): ByteBuffer {
+        val width = frame.cropWidth
+        val cropSize = minOf(width, frame.cropHeight)
+        kernel.convert(frame, argb)
+
+        val left = (width - cropSize) / 2
+        val top = (frame.cropHeight - cropSize) / 2
+        for (y in 0 until cropSize) {
+            System.arraycopy(argb, (top + y) * width + left, cropped, y * cropSize, cropSize)
+        }
+        for (y in 0 until TENSOR_SIZE) for (x in 0 until TENSOR_SIZE) {
+            val sourceX = (2 * x + 1) * cropSize / (2 * TENSOR_SIZE)
+            val sourceY = (2 * y + 1) * cropSize / (2 * TENSOR_SIZE)
+            resized[y * TENSOR_SIZE + x] = cropped[sourceY * cropSize + sourceX]
+        }
+        for (y in 0 until TENSOR_SIZE) for (x in 0 until TENSOR_SIZE) {
+            rotated[y * TENSOR_SIZE + x] = resized[(TENSOR_SIZE - 1 - x) * TENSOR_SIZE + y]
+        }
+
+        output.rewind()
+        for (pixel in rotated) {
+            output.put((pixel shr 16).toByte())
+            output.put((pixel shr 8).toByte())
+            output.put(pixel.toByte())
+        }
+        output.rewind()
+        return output
+    }
+
+    companion object {
+        /** Input size of the SSD MobileNet detector used by CameraXTfLite */
+        private const val TENSOR_SIZE = 300
+    }
+}
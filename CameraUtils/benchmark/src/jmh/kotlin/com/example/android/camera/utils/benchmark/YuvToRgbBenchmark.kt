@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camera.utils.benchmark
+
+import com.example.android.camera.utils.YuvFrame
+import com.example.android.camera.utils.YuvToRgbBandScheduler
+import com.example.android.camera.utils.YuvToRgbConverter
+import com.example.android.camera.utils.YuvToRgbKernel
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+
+/** Benchmarks for NV21 packing and YUV to ARGB conversion of a single frame */
+@State(Scope.Thread)
+open class YuvToRgbBenchmark {
+
+    @Param(RESOLUTION_480P, RESOLUTION_720P, RESOLUTION_1080P, RESOLUTION_4K)
+    lateinit var resolution: String
+
+    @Param(LAYOUT_NV21, LAYOUT_I420)
+    lateinit var layout: String
+
+    private lateinit var frame: YuvFrame
+    private lateinit var nv21: ByteArray
+    private lateinit var argb: IntArray
+    private val kernel = YuvToRgbKernel()
+    private lateinit var scheduler: YuvToRgbBandScheduler
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        frame = createFrame(resolution, layout)
+        nv21 = ByteArray(frame.cropWidth * frame.cropHeight * 3 / 2)
+        argb = IntArray(frame.cropWidth * frame.cropHeight)
+        scheduler = YuvToRgbBandScheduler(minParallelPixels = 0)
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() = scheduler.shutdown()
+
+    /** Packing into NV21, which is what the RenderScript backend does before converting */
+    @Benchmark
+    fun imageToByteArray(): ByteArray {
+        YuvToRgbConverter.imageToByteArray(frame, nv21)
+        return nv21
+    }
+
+    @Benchmark
+    fun convertSerial(): IntArray {
+        kernel.convert(frame, argb)
+        return argb
+    }
+
+    @Benchmark
+    fun convertParallel(): IntArray {
+        scheduler.convert(frame, argb)
+        return argb
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.hardware.camera2.CameraCaptureSession
+import android.hardware.camera2.CaptureRequest
+import android.os.SystemClock
+import android.util.Log
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Measures the time from a button press to the `onCaptureStarted` callback of the first capture
+ * that follows, i.e. how long the app and the camera pipeline take to start exposing a frame
+ * for the user.
+ *
+ * Call [onPressed] when the button is pressed, then submit the request with this callback, or
+ * forward `onCaptureStarted` to it from the callback of the request. Only the first capture
+ * started after each press is measured, so repeating requests can use it too. Statistics over
+ * the last [capacity] presses are logged with [tag] after each one.
+ */
+class CaptureStartLatency(
+        private val tag: String,
+        capacity: Int = DEFAULT_CAPACITY
+) : CameraCaptureSession.CaptureCallback() {
+
+    private val pressedAt = AtomicLong(0L)
+    private val meter = FrameRateMeter(capacity)
+
+    /** Records a press at [now], in the [SystemClock.elapsedRealtimeNanos] time base */
+    fun onPressed(now: Long = SystemClock.elapsedRealtimeNanos()) = pressedAt.set(now)
+
+    override fun onCaptureStarted(
+            session: CameraCaptureSession,
+            request: CaptureRequest,
+            timestamp: Long,
+            frameNumber: Long) {
+        onStarted(SystemClock.elapsedRealtimeNanos())?.let { Log.d(tag, it) }
+    }
+
+    /**
+     * Records a capture started at [now] and returns a summary of the latencies, or null if no
+     * press is waiting for a capture.
+     */
+    internal fun onStarted(now: Long): String? {
+        val pressed = pressedAt.getAndSet(0L)
+        if (pressed == 0L) return null
+        return synchronized(meter) {
+            meter.onFrame(pressed, now)
+            String.format(Locale.US,
+                    "Press to capture started: %.2f ms, p50/p95 %.2f/%.2f ms over %d presses",
+                    (now - pressed) / 1e6,
+                    meter.latencyPercentile(0.5) / 1e6,
+                    meter.latencyPercentile(0.95) / 1e6,
+                    meter.size)
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_CAPACITY = 20
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.graphics.ImageFormat
+import android.media.Image
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.TreeMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.Future
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import kotlin.math.abs
+import kotlin.math.roundToLong
+
+/**
+ * Writes RAW_SENSOR images as DNG files, streaming the pixels from the plane of the [Image]
+ * to a [FileChannel] instead of going through `DngCreator`.
+ *
+ * The image is stored in strips of [rowsPerStrip] rows, followed by a single IFD holding the
+ * [DngMetadata]. Without compression, strips are written with gathering writes of slices of the
+ * plane, so the pixels are never copied to the heap. With [Compression.DEFLATE], strips are
+ * compressed in parallel in a dedicated [ForkJoinPool] of size [parallelism] and written in
+ * order as soon as they are ready, so at most the compressed strips not written yet are held in
+ * memory.
+ *
+ * Unlike `DngCreator`, no thumbnail, lens shading map or crop is written, only what is needed to
+ * render the image. Calls to [write] are serialized.
+ */
+class DngWriter(
+        val compression: Compression = Compression.NONE,
+        val parallelism: Int = Runtime.getRuntime().availableProcessors(),
+        private val rowsPerStrip: Int = DEFAULT_ROWS_PER_STRIP,
+        private val deflateLevel: Int = Deflater.BEST_SPEED
+) {
+    init {
+        require(parallelism > 0) { "Parallelism must be positive, got $parallelism" }
+        require(rowsPerStrip > 0) { "Rows per strip must be positive, got $rowsPerStrip" }
+    }
+
+    /** How strips are stored in the file */
+    enum class Compression {
+        /** Samples are written as they come from the sensor */
+        NONE,
+        /**
+         * Samples are replaced by their difference with the previous sample of the row, then
+         * compressed with deflate. Lossless, but not all DNG readers support it
+         */
+        DEFLATE
+    }
+
+    // Started by the first deflated image, uncompressed writers never start any thread
+    private val lazyPool = lazy { ForkJoinPool(parallelism) }
+    private val pool by lazyPool
+
+    /** Writes [image], which must be a RAW_SENSOR image, along with its [metadata] */
+    fun write(channel: FileChannel, image: Image, metadata: DngMetadata): Long {
+        require(image.format == ImageFormat.RAW_SENSOR) { "Unsupported format ${image.format}" }
+        val plane = image.planes[0]
+        return write(channel, plane.buffer, image.width, image.height, plane.rowStride, metadata)
+    }
+
+    /**
+     * Writes the 16-bit little endian samples of a [width] x [height] Bayer mosaic, starting at
+     * the position of [raw] with [rowStride] bytes between rows, as a DNG file holding
+     * [metadata]. The file is written from the start of [channel], which must be empty, and its
+     * size is returned. The position of [raw] is left untouched.
+     */
+    @Synchronized
+    fun write(
+            channel: FileChannel,
+            raw: ByteBuffer,
+            width: Int,
+            height: Int,
+            rowStride: Int,
+            metadata: DngMetadata
+    ): Long {
+        require(width > 0 && height > 0) { "Invalid size ${width}x$height" }
+        require(rowStride >= width * 2 &&
+                raw.remaining().toLong() >= rowStride.toLong() * (height - 1) + width * 2) {
+            "Buffer too small for ${width}x$height samples with a row stride of $rowStride"
+        }
+        require(channel.position() == 0L) { "DNG files must be written from the start" }
+
+        // Strips come first, right after the header, and the IFD last since strip sizes are
+        // only known once they are compressed
+        val stripCount = (height + rowsPerStrip - 1) / rowsPerStrip
+        val stripOffsets = LongArray(stripCount)
+        val stripByteCounts = LongArray(stripCount)
+        var position = HEADER_SIZE.toLong()
+        channel.position(position)
+        val strips = if (compression == Compression.DEFLATE) {
+            Array<Future<ByteArray>>(stripCount) { strip ->
+                pool.submit<ByteArray> { deflateStrip(raw, width, height, rowStride, strip) }
+            }
+        } else null
+
+        for (strip in 0 until stripCount) {
+            val buffers = if (strips == null) {
+                stripSlices(raw, width, height, rowStride, strip)
+            } else try {
+                arrayOf(ByteBuffer.wrap(strips[strip].get()))
+            } catch (exc: ExecutionException) {
+                strips.forEach { it.cancel(false) }
+                throw exc.cause ?: exc
+            }
+            stripOffsets[strip] = position
+            stripByteCounts[strip] = writeFully(channel, buffers)
+            position += stripByteCounts[strip]
+        }
+
+        // The IFD must start on a word boundary
+        if (position % 2 != 0L) position += writeFully(channel, arrayOf(ByteBuffer.allocate(1)))
+        val ifd = Ifd()
+        addTags(ifd, width, height, metadata, stripOffsets, stripByteCounts)
+        position += writeFully(channel, arrayOf(ifd.toBuffer(position)))
+        require(position <= 0xFFFFFFFFL) { "DNG files are limited to 4 GiB" }
+
+        val header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        header.put('I'.toByte()).put('I'.toByte()).putShort(42)
+        header.putInt((position - ifd.size).toInt())
+        header.flip()
+        while (header.hasRemaining()) channel.write(header, header.position().toLong())
+        return position
+    }
+
+    /** Stops the compression threads. The writer cannot be used afterwards */
+    fun shutdown() {
+        if (lazyPool.isInitialized()) pool.shutdown()
+    }
+
+    private fun addTags(
+            ifd: Ifd,
+            width: Int,
+            height: Int,
+            metadata: DngMetadata,
+            stripOffsets: LongArray,
+            stripByteCounts: LongArray
+    ) {
+        val compressed = compression == Compression.DEFLATE
+        ifd.long(TAG_NEW_SUBFILE_TYPE, 0L)
+        ifd.long(TAG_IMAGE_WIDTH, width.toLong())
+        ifd.long(TAG_IMAGE_LENGTH, height.toLong())
+        ifd.short(TAG_BITS_PER_SAMPLE, 16)
+        ifd.short(TAG_COMPRESSION, if (compressed) COMPRESSION_DEFLATE else COMPRESSION_NONE)
+        ifd.short(TAG_PHOTOMETRIC_INTERPRETATION, PHOTOMETRIC_CFA)
+        ifd.ascii(TAG_MAKE, metadata.make)
+        ifd.ascii(TAG_MODEL, metadata.model)
+        ifd.long(TAG_STRIP_OFFSETS, *stripOffsets)
+        ifd.short(TAG_ORIENTATION, metadata.orientation)
+        ifd.short(TAG_SAMPLES_PER_PIXEL, 1)
+        ifd.long(TAG_ROWS_PER_STRIP, rowsPerStrip.toLong())
+        ifd.long(TAG_STRIP_BYTE_COUNTS, *stripByteCounts)
+        ifd.short(TAG_PLANAR_CONFIGURATION, 1)
+        if (compressed) ifd.short(TAG_PREDICTOR, PREDICTOR_HORIZONTAL)
+        ifd.short(TAG_CFA_REPEAT_PATTERN_DIM, 2, 2)
+        ifd.bytes(TAG_CFA_PATTERN, metadata.cfaPattern)
+        // Deflate compression is only part of the specification since DNG 1.4
+        ifd.bytes(TAG_DNG_VERSION, byteArrayOf(1, 4, 0, 0))
+        ifd.bytes(TAG_DNG_BACKWARD_VERSION, byteArrayOf(1, if (compressed) 4 else 1, 0, 0))
+        ifd.ascii(TAG_UNIQUE_CAMERA_MODEL, "${metadata.make} ${metadata.model}")
+        ifd.short(TAG_BLACK_LEVEL_REPEAT_DIM, 2, 2)
+        ifd.rational(TAG_BLACK_LEVEL, metadata.blackLevel)
+        ifd.long(TAG_WHITE_LEVEL, metadata.whiteLevel.toLong())
+        ifd.signedRational(TAG_COLOR_MATRIX1, metadata.colorMatrix1)
+        metadata.colorMatrix2?.let { ifd.signedRational(TAG_COLOR_MATRIX2, it) }
+        metadata.cameraCalibration1?.let { ifd.signedRational(TAG_CAMERA_CALIBRATION1, it) }
+        metadata.cameraCalibration2?.let { ifd.signedRational(TAG_CAMERA_CALIBRATION2, it) }
+        metadata.asShotNeutral?.let { ifd.rational(TAG_AS_SHOT_NEUTRAL, it) }
+        if (metadata.calibrationIlluminant1 != 0) {
+            ifd.short(TAG_CALIBRATION_ILLUMINANT1, metadata.calibrationIlluminant1)
+        }
+        if (metadata.calibrationIlluminant2 != 0) {
+            ifd.short(TAG_CALIBRATION_ILLUMINANT2, metadata.calibrationIlluminant2)
+        }
+        metadata.forwardMatrix1?.let { ifd.signedRational(TAG_FORWARD_MATRIX1, it) }
+        metadata.forwardMatrix2?.let { ifd.signedRational(TAG_FORWARD_MATRIX2, it) }
+    }
+
+    /** Slices of [raw] holding the rows of [strip], one per row unless rows are contiguous */
+    private fun stripSlices(
+            raw: ByteBuffer,
+            width: Int,
+            height: Int,
+            rowStride: Int,
+            strip: Int
+    ): Array<ByteBuffer> {
+        val firstRow = strip * rowsPerStrip
+        val rows = minOf(rowsPerStrip, height - firstRow)
+        val start = raw.position() + firstRow * rowStride
+        return if (rowStride == width * 2) {
+            arrayOf(slice(raw, start, start + rows * rowStride))
+        } else Array(rows) {
+            slice(raw, start + it * rowStride, start + it * rowStride + width * 2)
+        }
+    }
+
+    /** Applies the horizontal predictor to the rows of [strip], then deflates them */
+    private fun deflateStrip(
+            raw: ByteBuffer,
+            width: Int,
+            height: Int,
+            rowStride: Int,
+            strip: Int
+    ): ByteArray {
+        val firstRow = strip * rowsPerStrip
+        val rows = minOf(rowsPerStrip, height - firstRow)
+        val source = raw.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        val samples = ShortArray(width)
+        val predicted = ByteBuffer.allocate(rows * width * 2).order(ByteOrder.LITTLE_ENDIAN)
+        for (row in 0 until rows) {
+            source.position(raw.position() + (firstRow + row) * rowStride)
+            source.asShortBuffer().get(samples)
+            for (x in width - 1 downTo 1) samples[x] = (samples[x] - samples[x - 1]).toShort()
+            predicted.asShortBuffer().put(samples)
+            predicted.position(predicted.position() + width * 2)
+        }
+
+        val deflater = Deflater(deflateLevel)
+        try {
+            val output = ByteArrayOutputStream(predicted.capacity() / 2)
+            DeflaterOutputStream(output, deflater).use { it.write(predicted.array()) }
+            return output.toByteArray()
+        } finally {
+            deflater.end()
+        }
+    }
+
+    private fun slice(buffer: ByteBuffer, from: Int, to: Int): ByteBuffer =
+            buffer.duplicate().apply {
+                limit(to)
+                position(from)
+            }
+
+    private fun writeFully(channel: FileChannel, buffers: Array<ByteBuffer>): Long {
+        val total = buffers.fold(0L) { sum, it -> sum + it.remaining() }
+        var remaining = total
+        while (remaining > 0L) remaining -= channel.write(buffers)
+        return total
+    }
+
+    /** Little endian TIFF IFD, with entries sorted by tag as required by the specification */
+    private class Ifd {
+        private class Entry(val type: Int, val count: Int, val value: ByteArray)
+
+        private val entries = TreeMap<Int, Entry>()
+
+        /** Size of the IFD once serialized, valid after [toBuffer] */
+        var size = 0
+            private set
+
+        fun bytes(tag: Int, values: ByteArray) = add(tag, TYPE_BYTE, values.size, values)
+
+        fun ascii(tag: Int, value: String) {
+            val bytes = value.toByteArray(Charsets.US_ASCII) + 0
+            add(tag, TYPE_ASCII, bytes.size, bytes)
+        }
+
+        fun short(tag: Int, vararg values: Int) = add(tag, TYPE_SHORT, values.size,
+                buffer(values.size * 2).apply { values.forEach { putShort(it.toShort()) } })
+
+        fun long(tag: Int, vararg values: Long) = add(tag, TYPE_LONG, values.size,
+                buffer(values.size * 4).apply { values.forEach { putInt(it.toInt()) } })
+
+        fun rational(tag: Int, values: FloatArray) = add(tag, TYPE_RATIONAL, values.size,
+                buffer(values.size * 8).apply { values.forEach { putRational(it) } })
+
+        fun signedRational(tag: Int, values: FloatArray) = add(tag, TYPE_SRATIONAL, values.size,
+                buffer(values.size * 8).apply { values.forEach { putRational(it) } })
+
+        /** Serializes the IFD, which will be written at [offset] in the file */
+        fun toBuffer(offset: Long): ByteBuffer {
+            // Values that don't fit in the four bytes of their entry follow the IFD
+            val entriesSize = 2 + 12 * entries.size + 4
+            size = entriesSize + entries.values.sumBy { extraSize(it) }
+            val buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+            buffer.putShort(entries.size.toShort())
+            var valueOffset = offset + entriesSize
+            for ((tag, entry) in entries) {
+                buffer.putShort(tag.toShort()).putShort(entry.type.toShort()).putInt(entry.count)
+                if (entry.value.size <= 4) {
+                    buffer.put(entry.value.copyOf(4))
+                } else {
+                    buffer.putInt(valueOffset.toInt())
+                    valueOffset += extraSize(entry)
+                }
+            }
+            buffer.putInt(0)
+            for (entry in entries.values) {
+                if (entry.value.size > 4) buffer.put(entry.value.copyOf(extraSize(entry)))
+            }
+            buffer.flip()
+            return buffer
+        }
+
+        private fun add(tag: Int, type: Int, count: Int, value: ByteBuffer) =
+                add(tag, type, count, value.array())
+
+        private fun add(tag: Int, type: Int, count: Int, value: ByteArray) {
+            entries[tag] = Entry(type, count, value)
+        }
+
+        /** Word aligned size of the value of [entry] when it doesn't fit in the entry */
+        private fun extraSize(entry: Entry) =
+                if (entry.value.size <= 4) 0 else (entry.value.size + 1) and 1.inv()
+
+        private fun buffer(size: Int) = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+
+        /** Stores [value] with a fixed denominator, or as an integer if it is too large */
+        private fun ByteBuffer.putRational(value: Float) {
+            val denominator = if (abs(value) < Int.MAX_VALUE / RATIONAL_DENOMINATOR) {
+                RATIONAL_DENOMINATOR
+            } else 1
+            putInt((value.toDouble() * denominator).roundToLong().toInt()).putInt(denominator)
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_ROWS_PER_STRIP = 32
+        private const val HEADER_SIZE = 8
+        private const val RATIONAL_DENOMINATOR = 10000
+
+        private const val TYPE_BYTE = 1
+        private const val TYPE_ASCII = 2
+        private const val TYPE_SHORT = 3
+        private const val TYPE_LONG = 4
+        private const val TYPE_RATIONAL = 5
+        private const val TYPE_SRATIONAL = 10
+
+        private const val COMPRESSION_NONE = 1
+        private const val COMPRESSION_DEFLATE = 8
+        private const val PHOTOMETRIC_CFA = 32803
+        private const val PREDICTOR_HORIZONTAL = 2
+
+        private const val TAG_NEW_SUBFILE_TYPE = 254
+        private const val TAG_IMAGE_WIDTH = 256
+        private const val TAG_IMAGE_LENGTH = 257
+        private const val TAG_BITS_PER_SAMPLE = 258
+        private const val TAG_COMPRESSION = 259
+        private const val TAG_PHOTOMETRIC_INTERPRETATION = 262
+        private const val TAG_MAKE = 271
+        private const val TAG_MODEL = 272
+        private const val TAG_STRIP_OFFSETS = 273
+        private const val TAG_ORIENTATION = 274
+        private const val TAG_SAMPLES_PER_PIXEL = 277
+        private const val TAG_ROWS_PER_STRIP = 278
+        private const val TAG_STRIP_BYTE_COUNTS = 279
+        private const val TAG_PLANAR_CONFIGURATION = 284
+        private const val TAG_PREDICTOR = 317
+        private const val TAG_CFA_REPEAT_PATTERN_DIM = 33421
+        private const val TAG_CFA_PATTERN = 33422
+        private const val TAG_DNG_VERSION = 50706
+        private const val TAG_DNG_BACKWARD_VERSION = 50707
+        private const val TAG_UNIQUE_CAMERA_MODEL = 50708
+        private const val TAG_BLACK_LEVEL_REPEAT_DIM = 50713
+        private const val TAG_BLACK_LEVEL = 50714
+        private const val TAG_WHITE_LEVEL = 50717
+        private const val TAG_COLOR_MATRIX1 = 50721
+        private const val TAG_COLOR_MATRIX2 = 50722
+        private const val TAG_CAMERA_CALIBRATION1 = 50723
+        private const val TAG_CAMERA_CALIBRATION2 = 50724
+        private const val TAG_AS_SHOT_NEUTRAL = 50728
+        private const val TAG_CALIBRATION_ILLUMINANT1 = 50778
+        private const val TAG_CALIBRATION_ILLUMINANT2 = 50779
+        private const val TAG_FORWARD_MATRIX1 = 50964
+        private const val TAG_FORWARD_MATRIX2 = 50965
+    }
+}
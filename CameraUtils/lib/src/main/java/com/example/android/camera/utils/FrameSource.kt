@@ -0,0 +1,36 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import java.io.Closeable
+
+/**
+ * A stream of [YuvFrame]s that does not depend on a camera, e.g. frames recorded into a file by
+ * [YuvFrameDumpWriter] and read back by [YuvFrameDumpReader]. Analysis code written against
+ * [YuvFrame] can be fed from a source on a plain JVM, see [FrameReplayer].
+ */
+interface FrameSource : Closeable {
+
+    /** Clockwise rotation that makes the last frame read upright, like `ImageInfo` reports it */
+    val rotationDegrees: Int
+
+    /**
+     * Points [frame] at the next frame of the stream and returns true, or returns false once the
+     * stream is exhausted. The planes of [frame] are only valid until the next call.
+     */
+    fun next(frame: YuvFrame): Boolean
+}
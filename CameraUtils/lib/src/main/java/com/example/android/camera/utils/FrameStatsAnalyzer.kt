@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.media.Image
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Computes [FrameStats] for the Y plane of camera frames: luma histogram, mean and variance,
+ * average luma of each tile of a [tileColumns] by [tileRows] grid, and a Laplacian based
+ * sharpness score.
+ *
+ * All statistics are computed in a single pass over the crop rectangle. Rows are bulk copied
+ * into a ring of three scratch rows, so the Laplacian of each row is computed as soon as the
+ * row below it has been read. No memory is allocated per frame once the scratch rows have grown
+ * to the width of the frame.
+ *
+ * Setting [sampleStep] to N only visits every Nth pixel of every Nth row, which is usually
+ * plenty for exposure decisions. The statistics are then those of the subsampled image, e.g.
+ * the Laplacian is computed between samples N pixels apart.
+ *
+ * Results are published using three [FrameStats] instances that rotate between the analyzer,
+ * the latest published result and the reader, exchanged through an [AtomicReference]. Neither
+ * side ever waits for the other: [analyze] always has a buffer of its own to write into, and
+ * [latest] returns the most recent result that is not being written to. [analyze] and [latest]
+ * may be called from different threads, but each must only be called from one thread at a time.
+ */
+class FrameStatsAnalyzer(
+        val tileColumns: Int = DEFAULT_GRID_SIZE,
+        val tileRows: Int = DEFAULT_GRID_SIZE,
+        val sampleStep: Int = 1
+) {
+    init {
+        require(tileColumns > 0 && tileRows > 0) { "Invalid grid ${tileColumns}x$tileRows" }
+        require(sampleStep > 0) { "Sample step must be positive, got $sampleStep" }
+    }
+
+    private val yuvFrame = YuvFrame()
+    private var frameCount = 0L
+
+    /** Statistics being written by the analyzer, published one and the reader's current one */
+    private var back = FrameStats(tileColumns, tileRows)
+    private val published = AtomicReference(FrameStats(tileColumns, tileRows))
+    private var front = FrameStats(tileColumns, tileRows)
+
+    private val rows = Array(3) { ByteArray(0) }
+    private val tileSums = LongArray(tileColumns * tileRows)
+    private val tileEdges = IntArray(tileColumns + 1)
+
+    /** Analyzes the Y plane of [image], which must be in YUV_420_888 format */
+    fun analyze(image: Image) = analyze(yuvFrame.set(image))
+
+    /** Analyzes the Y plane of [frame] and publishes the result, see [latest] */
+    fun analyze(frame: YuvFrame) {
+        val stats = back
+        val histogram = stats.histogram
+        val tileSums = tileSums
+        val tileEdges = tileEdges
+        histogram.fill(0)
+        tileSums.fill(0L)
+
+        // Subsampling amounts to analyzing a smaller frame with larger strides
+        val width = (frame.cropWidth + sampleStep - 1) / sampleStep
+        val height = (frame.cropHeight + sampleStep - 1) / sampleStep
+        val buffer = frame.yBuffer
+        val pixelStride = frame.yPixelStride * sampleStep
+        val rowStride = frame.yRowStride * sampleStep
+        val rowLength = if (width == 0) 0 else (width - 1) * pixelStride + 1
+        for (i in rows.indices) if (rows[i].size < rowLength) rows[i] = ByteArray(rowLength)
+        for (column in 0..tileColumns) tileEdges[column] = column * width / tileColumns
+
+        var sum = 0L
+        var sumSquares = 0L
+        var laplacianSum = 0L
+        var laplacianSumSquares = 0L
+
+        for (y in 0 until height) {
+            val below = rows[y % 3]
+            if (rowLength > 0) {
+                buffer.position(frame.cropTop * frame.yRowStride + y * rowStride +
+                        frame.cropLeft * frame.yPixelStride)
+                buffer.get(below, 0, rowLength)
+            }
+
+            // Histogram and moments of the row just read, split by the tiles it crosses
+            val tileOffset = y * tileRows / height * tileColumns
+            for (column in 0 until tileColumns) {
+                var tileSum = 0L
+                for (x in tileEdges[column] until tileEdges[column + 1]) {
+                    val value = below[x * pixelStride].toInt() and 0xFF
+                    histogram[value]++
+                    tileSum += value
+                    sumSquares += value * value
+                }
+                tileSums[tileOffset + column] += tileSum
+                sum += tileSum
+            }
+
+            // Now that the row below it is available, the Laplacian of the previous row can be
+            // computed for all pixels that have four neighbours
+            if (y >= 2) {
+                val above = rows[(y - 2) % 3]
+                val center = rows[(y - 1) % 3]
+                for (x in 1 until width - 1) {
+                    val i = x * pixelStride
+                    val laplacian = 4 * (center[i].toInt() and 0xFF) -
+                            (center[i - pixelStride].toInt() and 0xFF) -
+                            (center[i + pixelStride].toInt() and 0xFF) -
+                            (above[i].toInt() and 0xFF) -
+                            (below[i].toInt() and 0xFF)
+                    laplacianSum += laplacian
+                    laplacianSumSquares += laplacian * laplacian
+                }
+            }
+        }
+        buffer.rewind()
+
+        stats.timestamp = frame.timestamp
+        stats.width = frame.cropWidth
+        stats.height = frame.cropHeight
+        stats.mean = mean(sum, width.toLong() * height)
+        stats.variance = variance(sum, sumSquares, width.toLong() * height)
+        val laplacianCount = maxOf(0L, (width - 2).toLong() * (height - 2))
+        stats.sharpness = variance(laplacianSum, laplacianSumSquares, laplacianCount)
+
+        // Rows are assigned to tiles by rounding down, so the first row of each tile is rounded up
+        for (row in 0 until tileRows) {
+            val tileHeight = firstRowOfTile(row + 1, height) - firstRowOfTile(row, height)
+            for (column in 0 until tileColumns) {
+                val tileWidth = tileEdges[column + 1] - tileEdges[column]
+                val index = row * tileColumns + column
+                stats.tileMeans[index] = mean(tileSums[index], tileWidth.toLong() * tileHeight)
+            }
+        }
+
+        // Hand the result over and take back whichever buffer was published before
+        stats.frameNumber = ++frameCount
+        back = published.getAndSet(stats)
+    }
+
+    /**
+     * Returns the statistics of the most recently analyzed frame. The returned object is owned by
+     * the caller until the next call to this method, and has a [FrameStats.frameNumber] of zero
+     * if no frame has been analyzed yet.
+     */
+    fun latest(): FrameStats {
+        // Only this method can publish an older buffer, so if the analyzer replaces the buffer
+        // while it is being checked, the swap still returns a result newer than the current one
+        if (published.get().frameNumber > front.frameNumber) {
+            front = published.getAndSet(front)
+        }
+        return front
+    }
+
+    /** Returns the smallest row of a frame of the given [height] that falls in [tileRow] */
+    private fun firstRowOfTile(tileRow: Int, height: Int) =
+            (tileRow * height + tileRows - 1) / tileRows
+
+    companion object {
+        /** Default number of tiles in each direction of the grid */
+        const val DEFAULT_GRID_SIZE = 8
+
+        private fun mean(sum: Long, count: Long) = if (count == 0L) 0.0 else sum.toDouble() / count
+
+        private fun variance(sum: Long, sumSquares: Long, count: Long): Double {
+            if (count == 0L) return 0.0
+            val mean = sum.toDouble() / count
+            return maxOf(0.0, sumSquares.toDouble() / count - mean * mean)
+        }
+    }
+}
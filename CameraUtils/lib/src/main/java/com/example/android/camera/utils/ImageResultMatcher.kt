@@ -0,0 +1,222 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Pairs images coming from an `ImageReader` with the capture results of the requests that
+ * produced them, e.g. `Image` with `TotalCaptureResult`, using their sensor timestamp as key.
+ *
+ * Images and results are handed over with [onImage] and [onResult] from whichever threads they
+ * are delivered on, in any order, and [await] suspends until both halves for a timestamp are
+ * there, without blocking a thread. Entries live in [capacity] slots indexed by a primitive
+ * array of timestamps, which is scanned on every call: since images hold buffers of the reader,
+ * [capacity] is at most its `maxImages` and a scan is cheaper than hashing.
+ *
+ * A capture that failed is recorded with [fail], so that [await] fails for it even if it is
+ * called afterwards, and its image is closed whenever it comes.
+ *
+ * When all slots are taken, the oldest entry nobody waits for is dropped and its image closed,
+ * so images whose result never arrives, or that nobody asked for, don't starve the reader.
+ * Images returned by [await] are owned by the caller, which must close them.
+ */
+class ImageResultMatcher<I : AutoCloseable, R : Any>(val capacity: Int) : AutoCloseable {
+
+    init {
+        require(capacity > 0) { "Capacity must be positive, got $capacity" }
+    }
+
+    private val timestamps = LongArray(capacity)
+    private val used = BooleanArray(capacity)
+    private val images = arrayOfNulls<AutoCloseable>(capacity)
+    private val results = arrayOfNulls<Any>(capacity)
+    private val waiters = arrayOfNulls<CancellableContinuation<Pair<I, R>>>(capacity)
+    private val failures = arrayOfNulls<Throwable>(capacity)
+    private var closed = false
+
+    /** Number of images closed because their slot was needed before they were matched */
+    @Volatile var droppedImages: Long = 0L
+        private set
+
+    /** Hands over an image captured at [timestamp]. It is closed if the matcher is closed */
+    fun onImage(timestamp: Long, image: I) {
+        val actions = ArrayList<() -> Unit>(2)
+        synchronized(this) {
+            val slot = if (closed) -1 else slotFor(timestamp, actions)
+            if (slot < 0 || failures[slot] != null) {
+                actions.add { image.close() }
+            } else {
+                images[slot]?.let { previous -> actions.add { previous.close() } }
+                images[slot] = image
+                complete(slot, actions)
+            }
+        }
+        actions.forEach { it() }
+    }
+
+    /** Hands over the capture result of the frame captured at [timestamp] */
+    fun onResult(timestamp: Long, result: R) {
+        val actions = ArrayList<() -> Unit>(2)
+        synchronized(this) {
+            if (closed) return
+            val slot = slotFor(timestamp, actions)
+            if (failures[slot] != null) return
+            results[slot] = result
+            complete(slot, actions)
+        }
+        actions.forEach { it() }
+    }
+
+    /**
+     * Fails the caller of [await] for [timestamp] with [cause], e.g. when the capture of that
+     * frame failed and its image may never come. If nobody waits for it yet, the failure is kept
+     * until [await] is called or the entry is evicted. Its image is closed, now or on arrival.
+     */
+    fun fail(timestamp: Long, cause: Throwable) {
+        val actions = ArrayList<() -> Unit>(2)
+        synchronized(this) {
+            if (closed) return
+            val slot = slotFor(timestamp, actions)
+            images[slot]?.let { image -> actions.add { image.close() } }
+            val waiter = waiters[slot]
+            if (waiter != null) {
+                release(slot)
+                actions.add { waiter.resumeWithException(cause) }
+            } else {
+                images[slot] = null
+                results[slot] = null
+                failures[slot] = cause
+            }
+        }
+        actions.forEach { it() }
+    }
+
+    /**
+     * Returns the image and the result captured at [timestamp], suspending until both have been
+     * handed over. If the caller is cancelled, e.g. by a timeout, whatever was handed over for
+     * [timestamp] is left for eviction.
+     */
+    suspend fun await(timestamp: Long): Pair<I, R> = suspendCancellableCoroutine { cont ->
+        val actions = ArrayList<() -> Unit>(2)
+        synchronized(this) {
+            check(!closed) { "Matcher is closed" }
+            val slot = slotFor(timestamp, actions)
+            val failure = failures[slot]
+            if (failure != null) {
+                release(slot)
+                actions.add { cont.resumeWithException(failure) }
+            } else {
+                check(waiters[slot] == null) { "Frame $timestamp is already awaited" }
+                waiters[slot] = cont
+                complete(slot, actions)
+            }
+        }
+        cont.invokeOnCancellation {
+            synchronized(this) {
+                val slot = find(timestamp)
+                if (slot >= 0 && waiters[slot] === cont) waiters[slot] = null
+            }
+        }
+        actions.forEach { it() }
+    }
+
+    /** Closes the images that were not returned yet and cancels the callers of [await] */
+    override fun close() {
+        val actions = ArrayList<() -> Unit>()
+        synchronized(this) {
+            closed = true
+            for (slot in 0 until capacity) {
+                if (!used[slot]) continue
+                val image = images[slot]
+                val waiter = waiters[slot]
+                actions.add {
+                    image?.close()
+                    waiter?.cancel()
+                }
+                release(slot)
+            }
+        }
+        actions.forEach { it() }
+    }
+
+    /**
+     * Frees [slot] and adds the resumption of its waiter to [actions] if its image and result
+     * are both there. Actions run once the lock is released, so that waiters don't resume in it
+     */
+    @Suppress("UNCHECKED_CAST", "EXPERIMENTAL_API_USAGE")
+    private fun complete(slot: Int, actions: MutableList<() -> Unit>) {
+        val waiter = waiters[slot] ?: return
+        val image = images[slot] as I? ?: return
+        val result = results[slot] as R? ?: return
+        release(slot)
+        // The image goes back to the reader if the waiter was cancelled in the meantime
+        actions.add { waiter.resume(image to result) { image.close() } }
+    }
+
+    private fun find(timestamp: Long): Int {
+        for (slot in 0 until capacity) {
+            if (used[slot] && timestamps[slot] == timestamp) return slot
+        }
+        return -1
+    }
+
+    /** Returns the slot of [timestamp], taking a free one or evicting the oldest if needed */
+    private fun slotFor(timestamp: Long, actions: MutableList<() -> Unit>): Int {
+        val existing = find(timestamp)
+        if (existing >= 0) return existing
+
+        var slot = used.indexOfFirst { !it }
+        if (slot < 0) {
+            slot = oldest(awaited = false)
+            if (slot < 0) slot = oldest(awaited = true)
+            val image = images[slot]
+            val waiter = waiters[slot]
+            if (image != null) droppedImages++
+            actions.add {
+                image?.close()
+                waiter?.resumeWithException(
+                        IllegalStateException("Frame evicted before it was matched"))
+            }
+            release(slot)
+        }
+        used[slot] = true
+        timestamps[slot] = timestamp
+        return slot
+    }
+
+    /** Returns the used slot with the smallest timestamp among those [awaited] or not, or -1 */
+    private fun oldest(awaited: Boolean): Int {
+        var oldest = -1
+        for (slot in 0 until capacity) {
+            if (!used[slot] || (waiters[slot] != null) != awaited) continue
+            if (oldest < 0 || timestamps[slot] < timestamps[oldest]) oldest = slot
+        }
+        return oldest
+    }
+
+    private fun release(slot: Int) {
+        used[slot] = false
+        images[slot] = null
+        results[slot] = null
+        waiters[slot] = null
+        failures[slot] = null
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.media.Image
+import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.Future
+import kotlin.math.abs
+
+/**
+ * Encodes [YuvFrame]s as baseline JPEG images using several cores.
+ *
+ * The crop rectangle of the frame is split into strips of MCU rows, 16 pixel rows each, which
+ * are entropy coded concurrently in a dedicated [ForkJoinPool] of size [parallelism]. A restart
+ * interval of one strip is declared in a DRI segment, so each strip starts with fresh DC
+ * predictors and the strips can simply be concatenated with `RSTn` markers in between. Strips
+ * are written to the channel in order as soon as they are ready.
+ *
+ * Camera YUV_420_888 frames are full range BT.601, i.e. exactly the YCbCr 4:2:0 data a JFIF
+ * image holds, so pixels go from the planes to the DCT without any color conversion. The
+ * standard quantization tables scaled to [quality] and the standard Huffman tables are used.
+ * Calls to [encode] are serialized.
+ */
+class ParallelJpegEncoder(
+        val quality: Int = DEFAULT_QUALITY,
+        val parallelism: Int = Runtime.getRuntime().availableProcessors()
+) {
+    init {
+        require(quality in 1..100) { "Quality must be in [1, 100], got $quality" }
+        require(parallelism > 0) { "Parallelism must be positive, got $parallelism" }
+    }
+
+    // Started by the first encode, so that an encoder that is never used costs no thread
+    private val lazyPool = lazy { ForkJoinPool(parallelism) }
+    private val pool by lazyPool
+
+    // Quantization tables in zigzag order for the DQT segment, and the factors applied to the
+    // output of the DCT in natural order, which fold the quantization and the DCT scaling
+    private val lumaTable = scaledTable(LUMA_QUANTIZATION)
+    private val chromaTable = scaledTable(CHROMA_QUANTIZATION)
+    private val lumaFactors = dctFactors(lumaTable)
+    private val chromaFactors = dctFactors(chromaTable)
+
+    private val headerTemplate = header()
+
+    /** Encodes the YUV_420_888 [image] and writes it into [channel], see [encode] */
+    fun encode(image: Image, channel: GatheringByteChannel, orientation: Int = 0) =
+            encode(YuvFrame().set(image), channel, orientation)
+
+    /**
+     * Encodes the crop rectangle of [frame] and writes the resulting JPEG into [channel],
+     * returning its size in bytes. If [orientation] is one of the `ExifInterface.ORIENTATION_*`
+     * constants, it is recorded in an EXIF segment.
+     */
+    @Synchronized
+    fun encode(frame: YuvFrame, channel: GatheringByteChannel, orientation: Int = 0): Long {
+        val width = frame.cropWidth
+        val height = frame.cropHeight
+        require(width in 1..0xFFFF && height in 1..0xFFFF) { "Invalid size ${width}x$height" }
+
+        // Aim for a few strips per worker to balance the load, within the 16-bit interval
+        val mcusPerRow = (width + 15) / 16
+        val mcuRows = (height + 15) / 16
+        val targetStrips = if (parallelism == 1) 1 else parallelism * STRIPS_PER_WORKER
+        val rowsPerStrip = ((mcuRows + targetStrips - 1) / targetStrips)
+                .coerceIn(1, 0xFFFF / mcusPerRow)
+        val stripCount = (mcuRows + rowsPerStrip - 1) / rowsPerStrip
+
+        val strips = Array<Future<ByteArray>>(stripCount) { strip ->
+            pool.submit<ByteArray> {
+                encodeStrip(frame, strip * rowsPerStrip,
+                        minOf(mcuRows, (strip + 1) * rowsPerStrip))
+            }
+        }
+
+        val header = headerTemplate.duplicate()
+        header.putShort(SOF_HEIGHT_OFFSET, height.toShort())
+        header.putShort(SOF_WIDTH_OFFSET, width.toShort())
+        header.putShort(DRI_INTERVAL_OFFSET, (mcusPerRow * rowsPerStrip).toShort())
+        val exif = if (orientation > 0) ExifOrientationWriter.exifSegment(orientation) else null
+
+        // JFIF requires its APP0 segment to come first, the EXIF segment goes right after
+        var written = write(channel, header.duplicate().apply { limit(APP0_END) },
+                exif ?: ByteBuffer.allocate(0), header.duplicate().apply { position(APP0_END) })
+        for (strip in 0 until stripCount) {
+            val data = try {
+                strips[strip].get()
+            } catch (exc: ExecutionException) {
+                strips.forEach { it.cancel(false) }
+                throw exc.cause ?: exc
+            }
+            val marker = if (strip < stripCount - 1) {
+                byteArrayOf(0xFF.toByte(), (MARKER_RST0 + strip % 8).toByte())
+            } else byteArrayOf(0xFF.toByte(), MARKER_EOI.toByte())
+            written += write(channel, ByteBuffer.wrap(data), ByteBuffer.wrap(marker))
+        }
+        return written
+    }
+
+    /** Stops the worker threads. The encoder cannot be used afterwards */
+    fun shutdown() {
+        if (lazyPool.isInitialized()) pool.shutdown()
+    }
+
+    /** Entropy codes the MCU rows from [firstRow] to [lastRow], exclusive */
+    private fun encodeStrip(frame: YuvFrame, firstRow: Int, lastRow: Int): ByteArray {
+        val width = frame.cropWidth
+        val height = frame.cropHeight
+        val mcusPerRow = (width + 15) / 16
+        val bits = BitWriter(mcusPerRow * (lastRow - firstRow) * 256)
+        val block = FloatArray(64)
+        val predictors = IntArray(3)
+
+        for (mcuRow in firstRow until lastRow) {
+            for (mcu in 0 until mcusPerRow) {
+                val x = mcu * 16
+                val y = mcuRow * 16
+                for (index in 0 until 4) {
+                    val blockX = x + (index and 1) * 8
+                    val blockY = y + (index shr 1) * 8
+                    for (row in 0 until 8) for (col in 0 until 8) {
+                        val pixelX = frame.cropLeft + minOf(blockX + col, width - 1)
+                        val pixelY = frame.cropTop + minOf(blockY + row, height - 1)
+                        block[row * 8 + col] = sample(frame.yBuffer, frame.yRowStride,
+                                frame.yPixelStride, pixelX, pixelY)
+                    }
+                    predictors[0] = encodeBlock(bits, block, lumaFactors, predictors[0],
+                            LUMA_DC, LUMA_AC)
+                }
+
+                // Chroma blocks cover the same 16x16 pixels, subsampled
+                for (component in 1..2) {
+                    val buffer = if (component == 1) frame.uBuffer else frame.vBuffer
+                    val rowStride = if (component == 1) frame.uRowStride else frame.vRowStride
+                    val pixelStride =
+                            if (component == 1) frame.uPixelStride else frame.vPixelStride
+                    for (row in 0 until 8) for (col in 0 until 8) {
+                        val pixelX = frame.cropLeft + minOf(x + col * 2, width - 1)
+                        val pixelY = frame.cropTop + minOf(y + row * 2, height - 1)
+                        block[row * 8 + col] =
+                                sample(buffer, rowStride, pixelStride, pixelX / 2, pixelY / 2)
+                    }
+                    predictors[component] = encodeBlock(bits, block, chromaFactors,
+                            predictors[component], CHROMA_DC, CHROMA_AC)
+                }
+            }
+        }
+        return bits.finish()
+    }
+
+    /** Level shifted sample of a plane, read with an absolute get so planes can be shared */
+    private fun sample(buffer: ByteBuffer, rowStride: Int, pixelStride: Int, x: Int, y: Int) =
+            (buffer.get(y * rowStride + x * pixelStride).toInt() and 0xFF) - 128f
+
+    /** Transforms, quantizes and codes [block], returning its DC value for the next block */
+    private fun encodeBlock(
+            bits: BitWriter,
+            block: FloatArray,
+            factors: FloatArray,
+            predictor: Int,
+            dcTable: HuffmanTable,
+            acTable: HuffmanTable
+    ): Int {
+        forwardDct(block)
+
+        val dc = quantize(block, factors, 0)
+        bits.writeValue(dc - predictor, dcTable, 0)
+
+        var run = 0
+        for (k in 1 until 64) {
+            val index = ZIGZAG[k]
+            val value = quantize(block, factors, index)
+            if (value == 0) {
+                run++
+                continue
+            }
+            while (run > 15) {
+                bits.write(acTable.codes[ZERO_RUN], acTable.sizes[ZERO_RUN])
+                run -= 16
+            }
+            bits.writeValue(value, acTable, run shl 4)
+            run = 0
+        }
+        if (run > 0) bits.write(acTable.codes[END_OF_BLOCK], acTable.sizes[END_OF_BLOCK])
+        return dc
+    }
+
+    private fun quantize(block: FloatArray, factors: FloatArray, index: Int): Int {
+        val value = block[index] * factors[index]
+        return (if (value < 0f) value - 0.5f else value + 0.5f).toInt()
+    }
+
+    /** Header up to the start of the scan, with placeholders for size and restart interval */
+    private fun header(): ByteBuffer {
+        val header = ByteBuffer.allocate(HEADER_SIZE)
+        header.putShort(0xFFD8.toShort())
+
+        // JFIF 1.1, no density
+        header.putShort(0xFFE0.toShort()).putShort(16)
+        header.put(byteArrayOf(0x4A, 0x46, 0x49, 0x46, 0, 1, 1, 0)).putShort(1).putShort(1)
+        header.put(0).put(0)
+
+        header.putShort(0xFFDB.toShort()).putShort((2 + 2 * 65).toShort())
+        header.put(0).put(lumaTable)
+        header.put(1).put(chromaTable)
+
+        // Baseline, 8-bit, Y subsampled 2x2 relative to Cb and Cr
+        header.putShort(0xFFC0.toShort()).putShort(17).put(8)
+        header.putShort(0).putShort(0).put(3)
+        header.put(1).put(0x22).put(0)
+        header.put(2).put(0x11).put(1)
+        header.put(3).put(0x11).put(1)
+
+        header.putShort(0xFFC4.toShort())
+        header.putShort((2 + listOf(LUMA_DC, LUMA_AC, CHROMA_DC, CHROMA_AC)
+                .sumBy { 17 + it.values.size }).toShort())
+        for ((id, table) in listOf(0x00 to LUMA_DC, 0x10 to LUMA_AC, 0x01 to CHROMA_DC,
+                0x11 to CHROMA_AC)) {
+            header.put(id.toByte()).put(table.counts).put(table.values)
+        }
+
+        header.putShort(0xFFDD.toShort()).putShort(4).putShort(0)
+
+        header.putShort(0xFFDA.toShort()).putShort(12).put(3)
+        header.put(1).put(0x00).put(2).put(0x11).put(3).put(0x11)
+        header.put(0).put(63).put(0)
+
+        check(!header.hasRemaining())
+        header.flip()
+        return header
+    }
+
+    private fun scaledTable(base: IntArray): ByteArray {
+        val scale = if (quality < 50) 5000 / quality else 200 - quality * 2
+        return ByteArray(64) { ((base[ZIGZAG[it]] * scale + 50) / 100).coerceIn(1, 255).toByte() }
+    }
+
+    /** Factors applied to the scaled output of [forwardDct] to quantize it, in natural order */
+    private fun dctFactors(table: ByteArray): FloatArray {
+        val factors = FloatArray(64)
+        for (k in 0 until 64) {
+            val index = ZIGZAG[k]
+            val quantizer = table[k].toInt() and 0xFF
+            factors[index] = 1f / (quantizer * DCT_SCALE[index / 8] * DCT_SCALE[index % 8] * 8f)
+        }
+        return factors
+    }
+
+    /** Writes [buffers] fully and returns the number of bytes written */
+    private fun write(channel: GatheringByteChannel, vararg buffers: ByteBuffer): Long {
+        val total = buffers.fold(0L) { sum, it -> sum + it.remaining() }
+        var remaining = total
+        while (remaining > 0L) remaining -= channel.write(buffers)
+        return total
+    }
+
+    /** Codes and sizes of the symbols of a Huffman table, built from its DHT definition */
+    private class HuffmanTable(val counts: ByteArray, val values: ByteArray) {
+        val codes = IntArray(256)
+        val sizes = IntArray(256)
+
+        init {
+            var code = 0
+            var index = 0
+            for (length in 1..16) {
+                repeat(counts[length - 1].toInt()) {
+                    val symbol = values[index++].toInt() and 0xFF
+                    codes[symbol] = code++
+                    sizes[symbol] = length
+                }
+                code = code shl 1
+            }
+        }
+    }
+
+    /** Entropy coded segment being written, with 0xFF bytes stuffed as the format requires */
+    private class BitWriter(capacity: Int) {
+        private var data = ByteArray(maxOf(capacity, 16))
+        private var size = 0
+        private var buffer = 0
+        private var count = 0
+
+        fun write(code: Int, length: Int) {
+            buffer = (buffer shl length) or (code and ((1 shl length) - 1))
+            count += length
+            while (count >= 8) {
+                count -= 8
+                put((buffer ushr count) and 0xFF)
+            }
+            buffer = buffer and ((1 shl count) - 1)
+        }
+
+        /** Writes the category of [value] with [table], then its bits */
+        fun writeValue(value: Int, table: HuffmanTable, run: Int) {
+            val magnitude = abs(value)
+            val category = 32 - Integer.numberOfLeadingZeros(magnitude)
+            val symbol = run or category
+            write(table.codes[symbol], table.sizes[symbol])
+            if (category > 0) write(if (value < 0) value - 1 else value, category)
+        }
+
+        /** Pads the last byte with ones and returns the segment */
+        fun finish(): ByteArray {
+            if (count > 0) write(0x7F, 8 - count)
+            return data.copyOf(size)
+        }
+
+        private fun put(byte: Int) {
+            if (size + 2 > data.size) data = data.copyOf(data.size * 2)
+            data[size++] = byte.toByte()
+            if (byte == 0xFF) data[size++] = 0
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_QUALITY = 95
+        private const val STRIPS_PER_WORKER = 4
+
+        private const val MARKER_RST0 = 0xD0
+        private const val MARKER_EOI = 0xD9
+        private const val ZERO_RUN = 0xF0
+        private const val END_OF_BLOCK = 0x00
+
+        // Layout of the header built by header()
+        private const val APP0_END = 2 + 18
+        private const val DQT_END = APP0_END + 4 + 2 * 65
+        private const val SOF_HEIGHT_OFFSET = DQT_END + 5
+        private const val SOF_WIDTH_OFFSET = DQT_END + 7
+        private const val DHT_END = DQT_END + 19 + 4 + 4 * 17 + 12 + 162 + 12 + 162
+        private const val DRI_INTERVAL_OFFSET = DHT_END + 4
+        private const val HEADER_SIZE = DHT_END + 6 + 14
+
+        /** Natural index of each coefficient in zigzag order */
+        private val ZIGZAG = intArrayOf(
+                0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+                12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+                35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+                58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63)
+
+        /** Scale factors of the outputs of [forwardDct], cos(k * pi / 16) * sqrt(2) */
+        private val DCT_SCALE = floatArrayOf(1f, 1.3870399f, 1.306563f, 1.1758755f, 1f,
+                0.78569496f, 0.5411961f, 0.27589938f)
+
+        /** Quantization tables from Annex K of the JPEG specification, in natural order */
+        private val LUMA_QUANTIZATION = intArrayOf(
+                16, 11, 10, 16, 24, 40, 51, 61,
+                12, 12, 14, 19, 26, 58, 60, 55,
+                14, 13, 16, 24, 40, 57, 69, 56,
+                14, 17, 22, 29, 51, 87, 80, 62,
+                18, 22, 37, 56, 68, 109, 103, 77,
+                24, 35, 55, 64, 81, 104, 113, 92,
+                49, 64, 78, 87, 103, 121, 120, 101,
+                72, 92, 95, 98, 112, 100, 103, 99)
+        private val CHROMA_QUANTIZATION = IntArray(64) {
+            val row = it / 8
+            val col = it % 8
+            when {
+                row == 0 && col < 4 -> intArrayOf(17, 18, 24, 47)[col]
+                row == 1 && col < 4 -> intArrayOf(18, 21, 26, 66)[col]
+                row == 2 && col < 3 -> intArrayOf(24, 26, 56)[col]
+                row == 3 && col < 2 -> intArrayOf(47, 66)[col]
+                else -> 99
+            }
+        }
+
+        /** Huffman tables from Annex K of the JPEG specification */
+        private val LUMA_DC = HuffmanTable(
+                bytes(0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0),
+                bytes(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11))
+        private val CHROMA_DC = HuffmanTable(
+                bytes(0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0),
+                bytes(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11))
+        private val LUMA_AC = HuffmanTable(
+                bytes(0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7D),
+                bytes(0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+                        0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+                        0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xA1, 0x08,
+                        0x23, 0x42, 0xB1, 0xC1, 0x15, 0x52, 0xD1, 0xF0,
+                        0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0A, 0x16,
+                        0x17, 0x18, 0x19, 0x1A, 0x25, 0x26, 0x27, 0x28,
+                        0x29, 0x2A, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+                        0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+                        0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+                        0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+                        0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+                        0x7A, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+                        0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+                        0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5, 0xA6, 0xA7,
+                        0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6,
+                        0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3, 0xC4, 0xC5,
+                        0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4,
+                        0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA, 0xE1, 0xE2,
+                        0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA,
+                        0xF1, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+                        0xF9, 0xFA))
+        private val CHROMA_AC = HuffmanTable(
+                bytes(0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77),
+                bytes(0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+                        0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+                        0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+                        0xA1, 0xB1, 0xC1, 0x09, 0x23, 0x33, 0x52, 0xF0,
+                        0x15, 0x62, 0x72, 0xD1, 0x0A, 0x16, 0x24, 0x34,
+                        0xE1, 0x25, 0xF1, 0x17, 0x18, 0x19, 0x1A, 0x26,
+                        0x27, 0x28, 0x29, 0x2A, 0x35, 0x36, 0x37, 0x38,
+                        0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+                        0x49, 0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+                        0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+                        0x69, 0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+                        0x79, 0x7A, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+                        0x88, 0x89, 0x8A, 0x92, 0x93, 0x94, 0x95, 0x96,
+                        0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5,
+                        0xA6, 0xA7, 0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4,
+                        0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3,
+                        0xC4, 0xC5, 0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2,
+                        0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA,
+                        0xE2, 0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9,
+                        0xEA, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+                        0xF9, 0xFA))
+
+        private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+        /**
+         * In-place 2D DCT of an 8x8 block using the AAN algorithm, whose outputs are scaled by
+         * [DCT_SCALE] for each dimension and by 8 overall; [dctFactors] undoes that scaling.
+         */
+        private fun forwardDct(block: FloatArray) {
+            for (pass in 0..1) {
+                // Rows first, then columns
+                val step = if (pass == 0) 1 else 8
+                val stride = if (pass == 0) 8 else 1
+                for (line in 0 until 8) {
+                    val o = line * stride
+                    val tmp0 = block[o] + block[o + 7 * step]
+                    val tmp7 = block[o] - block[o + 7 * step]
+                    val tmp1 = block[o + step] + block[o + 6 * step]
+                    val tmp6 = block[o + step] - block[o + 6 * step]
+                    val tmp2 = block[o + 2 * step] + block[o + 5 * step]
+                    val tmp5 = block[o + 2 * step] - block[o + 5 * step]
+                    val tmp3 = block[o + 3 * step] + block[o + 4 * step]
+                    val tmp4 = block[o + 3 * step] - block[o + 4 * step]
+
+                    // Even part
+                    var tmp10 = tmp0 + tmp3
+                    val tmp13 = tmp0 - tmp3
+                    var tmp11 = tmp1 + tmp2
+                    var tmp12 = tmp1 - tmp2
+                    block[o] = tmp10 + tmp11
+                    block[o + 4 * step] = tmp10 - tmp11
+                    val z1 = (tmp12 + tmp13) * 0.70710677f
+                    block[o + 2 * step] = tmp13 + z1
+                    block[o + 6 * step] = tmp13 - z1
+
+                    // Odd part
+                    tmp10 = tmp4 + tmp5
+                    tmp11 = tmp5 + tmp6
+                    tmp12 = tmp6 + tmp7
+                    val z5 = (tmp10 - tmp12) * 0.38268343f
+                    val z2 = 0.5411961f * tmp10 + z5
+                    val z4 = 1.306563f * tmp12 + z5
+                    val z3 = tmp11 * 0.70710677f
+                    val z11 = tmp7 + z3
+                    val z13 = tmp7 - z3
+                    block[o + 5 * step] = z13 + z2
+                    block[o + 3 * step] = z13 - z2
+                    block[o + step] = z11 + z4
+                    block[o + 7 * step] = z11 - z4
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.graphics.ImageFormat
+import android.media.Image
+import java.nio.ByteBuffer
+
+/**
+ * Framework-independent view of a [ImageFormat.YUV_420_888] frame: the three plane buffers
+ * with their strides, plus the crop rectangle and timestamp of the frame.
+ *
+ * The object is mutable so that a single instance can be reused for every frame of a stream,
+ * which avoids allocating a wrapper per frame. Since it only depends on [ByteBuffer], code
+ * written against it can also be exercised on a plain JVM using synthetic planes.
+ */
+class YuvFrame {
+
+    /** Full width of the frame, in pixels */
+    var width: Int = 0
+        private set
+
+    /** Full height of the frame, in pixels */
+    var height: Int = 0
+        private set
+
+    /** Crop rectangle, using the same conventions as [android.graphics.Rect] */
+    var cropLeft: Int = 0
+        private set
+    var cropTop: Int = 0
+        private set
+    var cropRight: Int = 0
+        private set
+    var cropBottom: Int = 0
+        private set
+
+    val cropWidth get() = cropRight - cropLeft
+    val cropHeight get() = cropBottom - cropTop
+
+    /** Timestamp of the frame in nanoseconds, using the time base of its source */
+    var timestamp: Long = 0L
+
+    lateinit var yBuffer: ByteBuffer
+        private set
+    var yRowStride: Int = 0
+        private set
+    var yPixelStride: Int = 0
+        private set
+
+    lateinit var uBuffer: ByteBuffer
+        private set
+    var uRowStride: Int = 0
+        private set
+    var uPixelStride: Int = 0
+        private set
+
+    lateinit var vBuffer: ByteBuffer
+        private set
+    var vRowStride: Int = 0
+        private set
+    var vPixelStride: Int = 0
+        private set
+
+    /** Points this frame at the planes of [image], which must be in YUV_420_888 format */
+    fun set(image: Image): YuvFrame {
+        require(image.format == ImageFormat.YUV_420_888) { "Unsupported format ${image.format}" }
+        val planes = image.planes
+        val crop = image.cropRect
+        setSize(image.width, image.height)
+        setCrop(crop.left, crop.top, crop.right, crop.bottom)
+        setPlane(0, planes[0].buffer, planes[0].rowStride, planes[0].pixelStride)
+        setPlane(1, planes[1].buffer, planes[1].rowStride, planes[1].pixelStride)
+        setPlane(2, planes[2].buffer, planes[2].rowStride, planes[2].pixelStride)
+        timestamp = image.timestamp
+        return this
+    }
+
+    /**
+     * Copies the geometry of [other] into this frame, using duplicates of its plane buffers so
+     * that both frames can be read concurrently with independent buffer positions.
+     */
+    fun set(other: YuvFrame): YuvFrame {
+        setSize(other.width, other.height)
+        setCrop(other.cropLeft, other.cropTop, other.cropRight, other.cropBottom)
+        setPlane(0, other.yBuffer.duplicate(), other.yRowStride, other.yPixelStride)
+        setPlane(1, other.uBuffer.duplicate(), other.uRowStride, other.uPixelStride)
+        setPlane(2, other.vBuffer.duplicate(), other.vRowStride, other.vPixelStride)
+        timestamp = other.timestamp
+        return this
+    }
+
+    /** Sets the full size of the frame and resets the crop rectangle to cover all of it */
+    fun setSize(width: Int, height: Int): YuvFrame {
+        this.width = width
+        this.height = height
+        return setCrop(0, 0, width, height)
+    }
+
+    /** Sets the crop rectangle, which must be contained in the frame */
+    fun setCrop(left: Int, top: Int, right: Int, bottom: Int): YuvFrame {
+        require(left in 0..right && top in 0..bottom && right <= width && bottom <= height) {
+            "Invalid crop [$left, $top, $right, $bottom] for ${width}x$height frame"
+        }
+        cropLeft = left
+        cropTop = top
+        cropRight = right
+        cropBottom = bottom
+        return this
+    }
+
+    /** Sets the plane at [index], using the same ordering as [Image.getPlanes] i.e. Y, U, V */
+    fun setPlane(index: Int, buffer: ByteBuffer, rowStride: Int, pixelStride: Int): YuvFrame {
+        when (index) {
+            0 -> {
+                yBuffer = buffer
+                yRowStride = rowStride
+                yPixelStride = pixelStride
+            }
+            1 -> {
+                uBuffer = buffer
+                uRowStride = rowStride
+                uPixelStride = pixelStride
+            }
+            2 -> {
+                vBuffer = buffer
+                vRowStride = rowStride
+                vPixelStride = pixelStride
+            }
+            else -> throw IllegalArgumentException("Invalid plane index $index")
+        }
+        return this
+    }
+}
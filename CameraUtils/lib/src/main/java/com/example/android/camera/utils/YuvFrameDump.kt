@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import java.nio.ByteBuffer
+
+/**
+ * Layout of YUV frame dump files, shared by the classes that write and read them.
+ *
+ * A dump starts with a [FILE_HEADER_SIZE] bytes header holding [MAGIC] and [VERSION], followed
+ * by one record per frame. Each record is a [RECORD_HEADER_SIZE] bytes header describing the
+ * frame, followed by the contents of its Y, U and V plane buffers as they were in memory,
+ * padding and strides included, so that a frame read back is laid out exactly like the original
+ * one. A record size of zero, or the end of the file, marks the end of the dump. All values are
+ * little endian.
+ *
+ * Dumps recorded into a ring buffer, see [YuvFrameRecorder], store a slot size and count in the
+ * file header instead of zeros. Records then start at the beginning of each slot, in the order
+ * the slots were last overwritten, and are read back by increasing sequence number.
+ */
+internal object YuvFrameDump {
+
+    /** "YUVD" read as a little endian int */
+    const val MAGIC = 0x44565559
+    const val VERSION = 1
+
+    const val FILE_HEADER_SIZE = 32
+    const val RECORD_HEADER_SIZE = 96
+
+    // Offsets within the file header
+    const val MAGIC_OFFSET = 0
+    const val VERSION_OFFSET = 4
+    const val SLOT_SIZE_OFFSET = 8
+    const val SLOT_COUNT_OFFSET = 12
+
+    // Offsets within a record header. Each plane is described by its row stride, pixel stride
+    // and length in bytes, one plane after the other
+    const val RECORD_SIZE_OFFSET = 0
+    const val ROTATION_OFFSET = 4
+    const val SEQUENCE_OFFSET = 8
+    const val TIMESTAMP_OFFSET = 16
+    const val WIDTH_OFFSET = 24
+    const val HEIGHT_OFFSET = 28
+    const val CROP_OFFSET = 32
+    const val PLANES_OFFSET = 48
+    const val PLANE_HEADER_SIZE = 12
+
+    /** Writes the file header into [buffer] at [offset], with no slots for sequential dumps */
+    fun putFileHeader(buffer: ByteBuffer, offset: Int, slotSize: Int = 0, slotCount: Int = 0) {
+        buffer.putInt(offset + MAGIC_OFFSET, MAGIC)
+        buffer.putInt(offset + VERSION_OFFSET, VERSION)
+        buffer.putInt(offset + SLOT_SIZE_OFFSET, slotSize)
+        buffer.putInt(offset + SLOT_COUNT_OFFSET, slotCount)
+    }
+
+    /** Throws if [buffer] does not hold a supported file header at [offset] */
+    fun checkFileHeader(buffer: ByteBuffer, offset: Int) {
+        require(buffer.getInt(offset + MAGIC_OFFSET) == MAGIC) { "Not a YUV frame dump" }
+        val version = buffer.getInt(offset + VERSION_OFFSET)
+        require(version == VERSION) { "Unsupported YUV frame dump version $version" }
+    }
+
+    /** Number of bytes of the plane [buffer] stored in a record, from its start to its limit */
+    fun planeLength(buffer: ByteBuffer) = buffer.limit()
+
+    /** Total size of the record of [frame], header included */
+    fun recordSize(frame: YuvFrame) = RECORD_HEADER_SIZE + planeLength(frame.yBuffer) +
+            planeLength(frame.uBuffer) + planeLength(frame.vBuffer)
+
+    /**
+     * Writes the record header of [frame] into [buffer] at [offset]. The record size goes last,
+     * so that a record being written into a mapped file is never seen as complete before it is.
+     */
+    fun putRecordHeader(
+            buffer: ByteBuffer,
+            offset: Int,
+            frame: YuvFrame,
+            rotationDegrees: Int,
+            sequence: Long
+    ) {
+        buffer.putInt(offset + ROTATION_OFFSET, rotationDegrees)
+        buffer.putLong(offset + SEQUENCE_OFFSET, sequence)
+        buffer.putLong(offset + TIMESTAMP_OFFSET, frame.timestamp)
+        buffer.putInt(offset + WIDTH_OFFSET, frame.width)
+        buffer.putInt(offset + HEIGHT_OFFSET, frame.height)
+        buffer.putInt(offset + CROP_OFFSET, frame.cropLeft)
+        buffer.putInt(offset + CROP_OFFSET + 4, frame.cropTop)
+        buffer.putInt(offset + CROP_OFFSET + 8, frame.cropRight)
+        buffer.putInt(offset + CROP_OFFSET + 12, frame.cropBottom)
+        putPlaneHeader(buffer, offset, 0, frame.yBuffer, frame.yRowStride, frame.yPixelStride)
+        putPlaneHeader(buffer, offset, 1, frame.uBuffer, frame.uRowStride, frame.uPixelStride)
+        putPlaneHeader(buffer, offset, 2, frame.vBuffer, frame.vRowStride, frame.vPixelStride)
+        buffer.putInt(offset + RECORD_SIZE_OFFSET, recordSize(frame))
+    }
+
+    private fun putPlaneHeader(
+            buffer: ByteBuffer,
+            offset: Int,
+            index: Int,
+            plane: ByteBuffer,
+            rowStride: Int,
+            pixelStride: Int
+    ) {
+        val planeOffset = offset + PLANES_OFFSET + index * PLANE_HEADER_SIZE
+        buffer.putInt(planeOffset, rowStride)
+        buffer.putInt(planeOffset + 4, pixelStride)
+        buffer.putInt(planeOffset + 8, planeLength(plane))
+    }
+
+    fun rowStride(buffer: ByteBuffer, offset: Int, index: Int) =
+            buffer.getInt(offset + PLANES_OFFSET + index * PLANE_HEADER_SIZE)
+
+    fun pixelStride(buffer: ByteBuffer, offset: Int, index: Int) =
+            buffer.getInt(offset + PLANES_OFFSET + index * PLANE_HEADER_SIZE + 4)
+
+    fun planeLength(buffer: ByteBuffer, offset: Int, index: Int) =
+            buffer.getInt(offset + PLANES_OFFSET + index * PLANE_HEADER_SIZE + 8)
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+
+/**
+ * Reads back the frames of a YUV frame dump written by [YuvFrameDumpWriter] or recorded by
+ * [YuvFrameRecorder], in the order they were written. For ring buffer dumps, that is from the
+ * oldest frame still in the ring to the newest one.
+ *
+ * Planes are read into direct buffers that are reused for every frame and only grow when a
+ * frame needs more room, so replaying a dump allocates nothing per frame once its largest frame
+ * has been read. A record cut short, e.g. when the app writing the dump was killed, ends the
+ * dump.
+ */
+class YuvFrameDumpReader(private val channel: FileChannel) : FrameSource {
+
+    private val header = ByteBuffer.allocate(YuvFrameDump.RECORD_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN)
+    private val planes = Array<ByteBuffer>(3) { ByteBuffer.allocateDirect(0) }
+    private var position = YuvFrameDump.FILE_HEADER_SIZE.toLong()
+
+    // Offsets of the records of a ring buffer dump by increasing sequence number, and the index
+    // of the next one to read. Null for sequential dumps
+    private val ringOffsets: LongArray?
+    private var ringIndex = 0
+
+    override var rotationDegrees: Int = 0
+        private set
+
+    /** Sequence number of the last frame read, i.e. its index in the recorded stream */
+    var sequence: Long = -1L
+        private set
+
+    init {
+        val fileHeader = ByteBuffer.allocate(YuvFrameDump.FILE_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN)
+        require(readFully(fileHeader, 0L)) { "Not a YUV frame dump" }
+        YuvFrameDump.checkFileHeader(fileHeader, 0)
+        val slotSize = fileHeader.getInt(YuvFrameDump.SLOT_SIZE_OFFSET)
+        val slotCount = fileHeader.getInt(YuvFrameDump.SLOT_COUNT_OFFSET)
+        ringOffsets = if (slotCount > 0) sortSlots(slotSize, slotCount) else null
+    }
+
+    override fun next(frame: YuvFrame): Boolean {
+        if (ringOffsets != null) {
+            if (ringIndex == ringOffsets.size) return false
+            position = ringOffsets[ringIndex++]
+        }
+        header.clear()
+        if (!readFully(header, position)) return false
+        val recordSize = header.getInt(YuvFrameDump.RECORD_SIZE_OFFSET)
+        if (recordSize < YuvFrameDump.RECORD_HEADER_SIZE) return false
+
+        var planePosition = position + YuvFrameDump.RECORD_HEADER_SIZE
+        for (index in 0 until 3) {
+            val length = YuvFrameDump.planeLength(header, 0, index)
+            if (planes[index].capacity() < length) planes[index] = ByteBuffer.allocateDirect(length)
+            val plane = planes[index].apply {
+                clear()
+                limit(length)
+            }
+            if (!readFully(plane, planePosition)) return false
+            plane.rewind()
+            planePosition += length
+        }
+
+        val crop = YuvFrameDump.CROP_OFFSET
+        frame.setSize(header.getInt(YuvFrameDump.WIDTH_OFFSET),
+                header.getInt(YuvFrameDump.HEIGHT_OFFSET))
+        frame.setCrop(header.getInt(crop), header.getInt(crop + 4), header.getInt(crop + 8),
+                header.getInt(crop + 12))
+        for (index in 0 until 3) {
+            frame.setPlane(index, planes[index], YuvFrameDump.rowStride(header, 0, index),
+                    YuvFrameDump.pixelStride(header, 0, index))
+        }
+        frame.timestamp = header.getLong(YuvFrameDump.TIMESTAMP_OFFSET)
+        rotationDegrees = header.getInt(YuvFrameDump.ROTATION_OFFSET)
+        sequence = header.getLong(YuvFrameDump.SEQUENCE_OFFSET)
+        position += recordSize
+        return true
+    }
+
+    /** Goes back to the first frame of the dump, e.g. to replay it in a loop */
+    fun rewind() {
+        position = YuvFrameDump.FILE_HEADER_SIZE.toLong()
+        ringIndex = 0
+    }
+
+    override fun close() = channel.close()
+
+    /** Returns the offsets of the slots holding a complete record, by increasing sequence */
+    private fun sortSlots(slotSize: Int, slotCount: Int): LongArray {
+        val sequences = HashMap<Long, Long>()
+        for (slot in 0 until slotCount) {
+            val offset = YuvFrameDump.FILE_HEADER_SIZE + slot.toLong() * slotSize
+            header.clear()
+            if (!readFully(header, offset)) break
+            if (header.getInt(YuvFrameDump.RECORD_SIZE_OFFSET) == 0) continue
+            sequences[header.getLong(YuvFrameDump.SEQUENCE_OFFSET)] = offset
+        }
+        return sequences.keys.sorted().map { sequences.getValue(it) }.toLongArray()
+    }
+
+    /** Fills [buffer] from [offset] in the file, returning false if the file ends before */
+    private fun readFully(buffer: ByteBuffer, offset: Long): Boolean {
+        var read = 0L
+        while (buffer.hasRemaining()) {
+            val count = channel.read(buffer, offset + read)
+            if (count < 0) return false
+            read += count
+        }
+        return true
+    }
+
+    companion object {
+        /** Opens the dump in [file] for reading */
+        fun open(file: File) = YuvFrameDumpReader(RandomAccessFile(file, "r").channel)
+    }
+}
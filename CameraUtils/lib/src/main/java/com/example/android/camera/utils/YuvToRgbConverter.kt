@@ -19,13 +19,13 @@ package com.example.android.camera.utils
 import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.ImageFormat
-import android.graphics.Rect
 import android.media.Image
 import android.renderscript.Allocation
 import android.renderscript.Element
 import android.renderscript.RenderScript
 import android.renderscript.ScriptIntrinsicYuvToRGB
 import android.renderscript.Type
+import java.nio.ByteBuffer
 
 /**
  * Helper class used to efficiently convert a [Media.Image] object from
@@ -35,22 +35,85 @@ import android.renderscript.Type
  * analysis use case on a Pixel 3 XL device at the default analyzer resolution,
  * which is 30 FPS with 640x480.
  *
+ * Two conversion backends are available, see [Backend]. The default [Backend.JVM] reads the
+ * image planes directly with [YuvToRgbKernel], while [Backend.RENDERSCRIPT] first packs the
+ * image into an NV21 buffer and then uses [ScriptIntrinsicYuvToRGB].
+ *
+ * With the JVM backend, a [parallelism] greater than one splits each frame into bands of rows
+ * that are converted concurrently by a [YuvToRgbBandScheduler]; frames with fewer than
+ * [minParallelPixels] pixels are still converted on the calling thread.
+ *
  * NOTE: This has been tested in a limited number of devices and is not
  * considered production-ready code. It was created for illustration purposes,
  * since this is not an efficient camera pipeline due to the multiple copies
  * required to convert each frame.
  */
-class YuvToRgbConverter(context: Context) {
-    private val rs = RenderScript.create(context)
-    private val scriptYuvToRgb = ScriptIntrinsicYuvToRGB.create(rs, Element.U8_4(rs))
+class YuvToRgbConverter(
+        context: Context,
+        private val backend: Backend = Backend.JVM,
+        parallelism: Int = 1,
+        minParallelPixels: Int = YuvToRgbBandScheduler.DEFAULT_MIN_PARALLEL_PIXELS
+) {
+
+    /** Implementations available to perform the conversion */
+    enum class Backend {
+        /** Fixed-point conversion in Kotlin, reading the image planes without extra copies */
+        JVM,
+        /** Deprecated RenderScript intrinsic, which requires repacking the image as NV21 */
+        RENDERSCRIPT
+    }
+
+    // RenderScript is only initialized if that backend is used
+    private val rs by lazy { RenderScript.create(context) }
+    private val scriptYuvToRgb by lazy { ScriptIntrinsicYuvToRGB.create(rs, Element.U8_4(rs)) }
 
     private var pixelCount: Int = -1
     private lateinit var yuvBuffer: ByteArray
     private lateinit var inputAllocation: Allocation
     private lateinit var outputAllocation: Allocation
 
+    private val yuvFrame = YuvFrame()
+    private val kernel = YuvToRgbKernel()
+    private var rgbBuffer = IntArray(0)
+    private val bandScheduler = if (parallelism > 1) {
+        YuvToRgbBandScheduler(parallelism, minParallelPixels)
+    } else {
+        null
+    }
+
     @Synchronized
-    fun yuvToRgb(image: Image, output: Bitmap) {
+    fun yuvToRgb(image: Image, output: Bitmap) = when (backend) {
+        Backend.JVM -> jvmYuvToRgb(image, output)
+        Backend.RENDERSCRIPT -> renderScriptYuvToRgb(image, output)
+    }
+
+    /**
+     * Converts the crop rectangle of [frame] into [output] as packed ARGB pixels, without
+     * touching any Android framework class. The output must hold at least
+     * `cropWidth * cropHeight` pixels.
+     */
+    @Synchronized
+    fun yuvToRgb(frame: YuvFrame, output: IntArray) {
+        if (bandScheduler != null) {
+            bandScheduler.convert(frame, output)
+        } else {
+            kernel.convert(frame, output)
+        }
+    }
+
+    private fun jvmYuvToRgb(image: Image, output: Bitmap) {
+        yuvFrame.set(image)
+        val width = yuvFrame.cropWidth
+        val height = yuvFrame.cropHeight
+
+        // The pixel buffer is reused across frames and only grows if the crop size increases
+        if (rgbBuffer.size < width * height) rgbBuffer = IntArray(width * height)
+
+        yuvToRgb(yuvFrame, rgbBuffer)
+        output.setPixels(rgbBuffer, 0, width, 0, 0, width, height)
+    }
+
+    private fun renderScriptYuvToRgb(image: Image, output: Bitmap) {
 
         // Ensure that the intermediate output byte buffer is allocated
         if (!::yuvBuffer.isInitialized) {
@@ -62,7 +125,7 @@ class YuvToRgbConverter(context: Context) {
         }
 
         // Get the YUV data in byte array form using NV21 format
-        imageToByteArray(image, yuvBuffer)
+        imageToByteArray(yuvFrame.set(image), yuvBuffer)
 
         // Ensure that the RenderScript inputs and outputs are allocated
         if (!::inputAllocation.isInitialized) {
@@ -81,117 +144,197 @@ class YuvToRgbConverter(context: Context) {
         outputAllocation.copyTo(output)
     }
 
-    private fun imageToByteArray(image: Image, outputBuffer: ByteArray) {
-        assert(image.format == ImageFormat.YUV_420_888)
-
-        val imageCrop = image.cropRect
-        val imagePlanes = image.planes
-
-        imagePlanes.forEachIndexed { planeIndex, plane ->
-            // How many values are read in input for each output value written
-            // Only the Y plane has a value for every pixel, U and V have half the resolution i.e.
-            //
-            // Y Plane            U Plane    V Plane
-            // ===============    =======    =======
-            // Y Y Y Y Y Y Y Y    U U U U    V V V V
-            // Y Y Y Y Y Y Y Y    U U U U    V V V V
-            // Y Y Y Y Y Y Y Y    U U U U    V V V V
-            // Y Y Y Y Y Y Y Y    U U U U    V V V V
-            // Y Y Y Y Y Y Y Y
-            // Y Y Y Y Y Y Y Y
-            // Y Y Y Y Y Y Y Y
-            val outputStride: Int
-
-            // The index in the output buffer the next value will be written at
-            // For Y it's zero, for U and V we start at the end of Y and interleave them i.e.
-            //
-            // First chunk        Second chunk
-            // ===============    ===============
-            // Y Y Y Y Y Y Y Y    V U V U V U V U
-            // Y Y Y Y Y Y Y Y    V U V U V U V U
-            // Y Y Y Y Y Y Y Y    V U V U V U V U
-            // Y Y Y Y Y Y Y Y    V U V U V U V U
-            // Y Y Y Y Y Y Y Y
-            // Y Y Y Y Y Y Y Y
-            // Y Y Y Y Y Y Y Y
-            var outputOffset: Int
-
-            when (planeIndex) {
-                0 -> {
-                    outputStride = 1
-                    outputOffset = 0
+    /** Stops the worker threads of the parallel mode. The converter cannot be used afterwards */
+    fun shutdown() {
+        bandScheduler?.shutdown()
+    }
+
+    companion object {
+
+        /**
+         * Packs the crop rectangle of [frame] into [outputBuffer] using the NV21 layout, i.e. the
+         * full resolution Y plane followed by interleaved, subsampled V and U values.
+         */
+        @JvmStatic
+        fun imageToByteArray(frame: YuvFrame, outputBuffer: ByteArray) {
+            val pixelCount = frame.cropWidth * frame.cropHeight
+
+            // Most devices deliver chroma planes that are views of a single NV21 buffer, in
+            // which case whole rows of interleaved chroma can be copied without unpacking them
+            val interleavedChroma = isSemiPlanar(frame)
+
+            for (planeIndex in 0 until if (interleavedChroma) 1 else 3) {
+                // How many values are read in input for each output value written
+                // Only the Y plane has a value for every pixel, U and V have half the resolution
+                // i.e.
+                //
+                // Y Plane            U Plane    V Plane
+                // ===============    =======    =======
+                // Y Y Y Y Y Y Y Y    U U U U    V V V V
+                // Y Y Y Y Y Y Y Y    U U U U    V V V V
+                // Y Y Y Y Y Y Y Y    U U U U    V V V V
+                // Y Y Y Y Y Y Y Y    U U U U    V V V V
+                // Y Y Y Y Y Y Y Y
+                // Y Y Y Y Y Y Y Y
+                // Y Y Y Y Y Y Y Y
+                val outputStride: Int
+
+                // The index in the output buffer the next value will be written at
+                // For Y it's zero, for U and V we start at the end of Y and interleave them i.e.
+                //
+                // First chunk        Second chunk
+                // ===============    ===============
+                // Y Y Y Y Y Y Y Y    V U V U V U V U
+                // Y Y Y Y Y Y Y Y    V U V U V U V U
+                // Y Y Y Y Y Y Y Y    V U V U V U V U
+                // Y Y Y Y Y Y Y Y    V U V U V U V U
+                // Y Y Y Y Y Y Y Y
+                // Y Y Y Y Y Y Y Y
+                // Y Y Y Y Y Y Y Y
+                var outputOffset: Int
+
+                when (planeIndex) {
+                    0 -> {
+                        outputStride = 1
+                        outputOffset = 0
+                    }
+                    1 -> {
+                        outputStride = 2
+                        // For NV21 format, U is in odd-numbered indices
+                        outputOffset = pixelCount + 1
+                    }
+                    2 -> {
+                        outputStride = 2
+                        // For NV21 format, V is in even-numbered indices
+                        outputOffset = pixelCount
+                    }
+                    else -> throw IllegalStateException("Invalid plane index $planeIndex")
                 }
-                1 -> {
-                    outputStride = 2
-                    // For NV21 format, U is in odd-numbered indices
-                    outputOffset = pixelCount + 1
+
+                val planeBuffer: ByteBuffer
+                val rowStride: Int
+                val pixelStride: Int
+                when (planeIndex) {
+                    0 -> {
+                        planeBuffer = frame.yBuffer
+                        rowStride = frame.yRowStride
+                        pixelStride = frame.yPixelStride
+                    }
+                    1 -> {
+                        planeBuffer = frame.uBuffer
+                        rowStride = frame.uRowStride
+                        pixelStride = frame.uPixelStride
+                    }
+                    else -> {
+                        planeBuffer = frame.vBuffer
+                        rowStride = frame.vRowStride
+                        pixelStride = frame.vPixelStride
+                    }
                 }
-                2 -> {
-                    outputStride = 2
-                    // For NV21 format, V is in even-numbered indices
-                    outputOffset = pixelCount
+
+                // We have to divide the width and height by two if it's not the Y plane
+                val divisor = if (planeIndex == 0) 1 else 2
+                val planeLeft = frame.cropLeft / divisor
+                val planeTop = frame.cropTop / divisor
+                val planeWidth = frame.cropRight / divisor - planeLeft
+                val planeHeight = frame.cropBottom / divisor - planeTop
+
+                // Intermediate buffer used to store the bytes of each row
+                val rowBuffer = ByteArray(rowStride)
+
+                // Size of each row in bytes
+                val rowLength = if (pixelStride == 1 && outputStride == 1) {
+                    planeWidth
+                } else {
+                    // Take into account that the stride may include data from pixels other than
+                    // this particular plane and row, and that could be between pixels and not
+                    // after every pixel:
+                    //
+                    // |---- Pixel stride ----|                    Row ends here --> |
+                    // | Pixel 1 | Other Data | Pixel 2 | Other Data | ... | Pixel N |
+                    //
+                    // We need to get (N-1) * (pixel stride bytes) per row + 1 byte for the last
+                    // pixel
+                    (planeWidth - 1) * pixelStride + 1
                 }
-                else -> {
-                    // Image contains more than 3 planes, something strange is going on
-                    return@forEachIndexed
+
+                for (row in 0 until planeHeight) {
+                    // Move buffer position to the beginning of this row
+                    planeBuffer.position((row + planeTop) * rowStride + planeLeft * pixelStride)
+
+                    if (pixelStride == 1 && outputStride == 1) {
+                        // When there is a single stride value for pixel and output, we can just
+                        // copy the entire row in a single step
+                        planeBuffer.get(outputBuffer, outputOffset, rowLength)
+                        outputOffset += rowLength
+                    } else {
+                        // When either pixel or output have a stride > 1 we must copy pixel by pixel
+                        planeBuffer.get(rowBuffer, 0, rowLength)
+                        for (col in 0 until planeWidth) {
+                            outputBuffer[outputOffset] = rowBuffer[col * pixelStride]
+                            outputOffset += outputStride
+                        }
+                    }
                 }
             }
 
-            val planeBuffer = plane.buffer
-            val rowStride = plane.rowStride
-            val pixelStride = plane.pixelStride
+            if (interleavedChroma) copySemiPlanarChroma(frame, outputBuffer, pixelCount)
+        }
 
-            // We have to divide the width and height by two if it's not the Y plane
-            val planeCrop = if (planeIndex == 0) {
-                imageCrop
-            } else {
-                Rect(
-                    imageCrop.left / 2,
-                    imageCrop.top / 2,
-                    imageCrop.right / 2,
-                    imageCrop.bottom / 2
-                )
-            }
+        /** Returns true if the U and V planes of [frame] share the layout of interleaved chroma */
+        private fun isSemiPlanar(frame: YuvFrame): Boolean =
+                frame.uPixelStride == 2 && frame.vPixelStride == 2 &&
+                        frame.uRowStride == frame.vRowStride
 
-            val planeWidth = planeCrop.width()
-            val planeHeight = planeCrop.height()
+        /**
+         * Copies the chroma of [frame], whose planes must satisfy [isSemiPlanar], into the second
+         * chunk of an NV21 [outputBuffer].
+         *
+         * Each row of the V plane view is copied in bulk, which yields the whole row of NV21
+         * chroma when the planes are views of a single VU buffer. Buffer addresses are not
+         * accessible from Kotlin and camera buffers must never be written to, so that aliasing
+         * can't be proven: every U value is then read in bulk as well and written over the byte
+         * that followed its V value. This keeps the right colours for NV12 ordered or separate
+         * planes, and still avoids reading the planes one value at a time.
+         */
+        private fun copySemiPlanarChroma(
+                frame: YuvFrame,
+                outputBuffer: ByteArray,
+                pixelCount: Int
+        ) {
+            val vBuffer = frame.vBuffer
+            val uBuffer = frame.uBuffer
+            val rowStride = frame.vRowStride
+            val planeLeft = frame.cropLeft / 2
+            val planeTop = frame.cropTop / 2
+            val planeWidth = frame.cropRight / 2 - planeLeft
+            val planeHeight = frame.cropBottom / 2 - planeTop
+            if (planeWidth <= 0 || planeHeight <= 0) return
 
-            // Intermediate buffer used to store the bytes of each row
-            val rowBuffer = ByteArray(plane.rowStride)
+            // Number of bytes of a row that can be read from either plane view, from its first
+            // value to its last one
+            val rowLength = planeWidth * 2 - 1
+            val uRow = ByteArray(rowLength)
 
-            // Size of each row in bytes
-            val rowLength = if (pixelStride == 1 && outputStride == 1) {
-                planeWidth
+            if (planeLeft == 0 && rowStride == planeWidth * 2) {
+                // Rows are contiguous in both input and output, copy the whole block at once
+                vBuffer.position(planeTop * rowStride)
+                vBuffer.get(outputBuffer, pixelCount, planeHeight * rowStride - 1)
             } else {
-                // Take into account that the stride may include data from pixels other than this
-                // particular plane and row, and that could be between pixels and not after every
-                // pixel:
-                //
-                // |---- Pixel stride ----|                    Row ends here --> |
-                // | Pixel 1 | Other Data | Pixel 2 | Other Data | ... | Pixel N |
-                //
-                // We need to get (N-1) * (pixel stride bytes) per row + 1 byte for the last pixel
-                (planeWidth - 1) * pixelStride + 1
+                var outputOffset = pixelCount
+                for (row in planeTop until planeTop + planeHeight) {
+                    vBuffer.position(row * rowStride + planeLeft * 2)
+                    vBuffer.get(outputBuffer, outputOffset, rowLength)
+                    outputOffset += rowLength + 1
+                }
             }
 
-            for (row in 0 until planeHeight) {
-                // Move buffer position to the beginning of this row
-                planeBuffer.position(
-                    (row + planeCrop.top) * rowStride + planeCrop.left * pixelStride)
-
-                if (pixelStride == 1 && outputStride == 1) {
-                    // When there is a single stride value for pixel and output, we can just copy
-                    // the entire row in a single step
-                    planeBuffer.get(outputBuffer, outputOffset, rowLength)
-                    outputOffset += rowLength
-                } else {
-                    // When either pixel or output have a stride > 1 we must copy pixel by pixel
-                    planeBuffer.get(rowBuffer, 0, rowLength)
-                    for (col in 0 until planeWidth) {
-                        outputBuffer[outputOffset] = rowBuffer[col * pixelStride]
-                        outputOffset += outputStride
-                    }
-                }
+            var outputOffset = pixelCount + 1
+            for (row in planeTop until planeTop + planeHeight) {
+                uBuffer.position(row * rowStride + planeLeft * 2)
+                uBuffer.get(uRow, 0, rowLength)
+                for (col in 0 until rowLength step 2) outputBuffer[outputOffset + col] = uRow[col]
+                outputOffset += rowLength + 1
             }
         }
     }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.hardware.camera2.CameraDevice
+import android.hardware.camera2.CaptureRequest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class CaptureRequestCacheTest {
+
+    private val cache = CaptureRequestCache()
+    private val session = Any()
+
+    private fun key(
+            template: Int = CameraDevice.TEMPLATE_PREVIEW,
+            overrides: Map<CaptureRequest.Key<*>, Any> = emptyMap()
+    ) = CaptureRequestCache.Key(template, emptyList(), overrides, false)
+
+    private fun get(session: Any, key: CaptureRequestCache.Key) =
+            cache.getOrBuild(session, key) { Any() }
+
+    @Test
+    fun requestsAreBuiltOnce() {
+        val preview = get(session, key())
+        assertSame(preview, get(session, key()))
+        assertEquals(1, cache.buildCount)
+        assertEquals(1, cache.hitCount)
+    }
+
+    @Test
+    fun templatesAndOverridesAreDistinct() {
+        val preview = get(session, key())
+        val still = get(session, key(CameraDevice.TEMPLATE_STILL_CAPTURE))
+        val auto = key(overrides = mapOf(CaptureRequest.CONTROL_AE_MODE to 1))
+        val manual = key(overrides = mapOf(CaptureRequest.CONTROL_AE_MODE to 0))
+        assertNotSame(preview, still)
+        assertNotSame(get(session, auto), get(session, manual))
+        assertSame(get(session, auto),
+                get(session, key(overrides = mapOf(CaptureRequest.CONTROL_AE_MODE to 1))))
+        assertEquals(4, cache.buildCount)
+    }
+
+    @Test
+    fun newSessionInvalidatesRequests() {
+        val first = get(session, key())
+        val reconfigured = Any()
+        assertNotSame(first, get(reconfigured, key()))
+
+        // Requests of the previous session are gone too
+        assertNotSame(first, get(session, key()))
+        cache.invalidate()
+        get(session, key())
+        assertEquals(4, cache.buildCount)
+        assertEquals(0, cache.hitCount)
+    }
+}
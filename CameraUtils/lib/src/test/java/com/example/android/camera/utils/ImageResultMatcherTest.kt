@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.async
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlinx.coroutines.yield
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+
+// Starting coroutines UNDISPATCHED is still experimental, but it's the simplest way to have
+// them suspend in await before the test goes on
+@Suppress("EXPERIMENTAL_API_USAGE")
+class ImageResultMatcherTest {
+
+    private class TestImage(val timestamp: Long) : AutoCloseable {
+        var closed = false
+        override fun close() {
+            closed = true
+        }
+    }
+
+    private val matcher = ImageResultMatcher<TestImage, String>(capacity = 3)
+
+    @Test
+    fun matchesWhateverArrivesFirst() = runBlocking {
+        // Image first, then result, before anyone waits
+        val first = TestImage(100L)
+        matcher.onImage(100L, first)
+        matcher.onResult(100L, "first")
+        val (image, result) = matcher.await(100L)
+        assertSame(first, image)
+        assertEquals("first", result)
+
+        // Waiting first, then result, then image
+        val second = TestImage(200L)
+        val match = async(start = CoroutineStart.UNDISPATCHED) { matcher.await(200L) }
+        matcher.onResult(200L, "second")
+        yield()
+        assertFalse(match.isCompleted)
+        matcher.onImage(200L, second)
+        assertSame(second, match.await().first)
+        assertFalse(second.closed)
+    }
+
+    @Test
+    fun otherTimestampsDoNotMatch() = runBlocking {
+        matcher.onImage(100L, TestImage(100L))
+        matcher.onResult(200L, "other")
+        assertNull(withTimeoutOrNull(50L) { matcher.await(100L) })
+    }
+
+    @Test
+    fun oldestUnclaimedImagesAreClosedWhenFull() = runBlocking {
+        val images = List(4) { TestImage(it * 100L) }
+        val awaited = async(start = CoroutineStart.UNDISPATCHED) { matcher.await(0L) }
+        images.forEach { matcher.onImage(it.timestamp, it) }
+
+        // The awaited frame is kept, the oldest of the others makes room for the last one
+        assertEquals(1L, matcher.droppedImages)
+        assertFalse(images[0].closed)
+        assertTrue(images[1].closed)
+        matcher.onResult(0L, "awaited")
+        assertSame(images[0], awaited.await().first)
+    }
+
+    @Test
+    fun failedCaptureFailsItsWaiter() = runBlocking {
+        val image = TestImage(100L)
+        matcher.onImage(100L, image)
+        var failure: Exception? = null
+        val match = launch(start = CoroutineStart.UNDISPATCHED) {
+            try {
+                matcher.await(100L)
+            } catch (exc: IOException) {
+                failure = exc
+            }
+        }
+        matcher.fail(100L, IOException("Capture failed"))
+        match.join()
+        assertTrue(image.closed)
+        assertTrue(failure is IOException)
+    }
+
+    @Test
+    fun failureBeforeAwaitFailsLaterWaiter() = runBlocking {
+        // The capture fails between the key being known and the caller waiting for it
+        matcher.fail(100L, IOException("Capture failed"))
+        val late = TestImage(100L)
+        matcher.onImage(100L, late)
+        matcher.onResult(100L, "late")
+        assertTrue(late.closed)
+
+        var failure: Exception? = null
+        try {
+            matcher.await(100L)
+        } catch (exc: IOException) {
+            failure = exc
+        }
+        assertTrue(failure is IOException)
+
+        // The failure is only reported once, and its slot is free again
+        matcher.onImage(100L, TestImage(100L))
+        matcher.onResult(100L, "retry")
+        assertEquals("retry", matcher.await(100L).second)
+    }
+
+    @Test
+    fun closeReleasesPendingImages() {
+        val pending = TestImage(100L)
+        matcher.onImage(100L, pending)
+        matcher.close()
+        assertTrue(pending.closed)
+
+        val late = TestImage(200L)
+        matcher.onImage(200L, late)
+        assertTrue(late.closed)
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.awt.image.BufferedImage
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import javax.imageio.IIOImage
+import javax.imageio.ImageIO
+import javax.imageio.ImageWriteParam
+import kotlin.math.log10
+import kotlin.math.roundToInt
+import kotlin.math.sin
+
+class ParallelJpegEncoderTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val encoder = ParallelJpegEncoder(quality = 90, parallelism = 4)
+
+    @After
+    fun tearDown() = encoder.shutdown()
+
+    // Odd sizes so that the last MCU row and column are padded
+    private val width = 150
+    private val height = 101
+
+    /** Smooth synthetic scene, with some detail so that AC coefficients are coded */
+    private fun lumaAt(x: Int, y: Int) =
+            (128 + 60 * sin(x / 9.0) * sin(y / 13.0) + (x - y) / 4.0).roundToInt().coerceIn(0, 255)
+    private fun cbAt(x: Int, y: Int) = (128 + 40 * sin((x + y) / 20.0)).roundToInt()
+    private fun crAt(x: Int, y: Int) = (128 + 40 * sin((x - 2 * y) / 25.0)).roundToInt()
+
+    /** NV21-like frame of the scene, with chroma planes aliasing a single VU buffer */
+    private fun frame(): YuvFrame {
+        val rowStride = width + 10
+        val chromaHeight = (height + 1) / 2
+        val y = ByteBuffer.allocateDirect(rowStride * height)
+        val vu = ByteBuffer.allocateDirect(rowStride * chromaHeight)
+        for (row in 0 until height) for (col in 0 until width) {
+            y.put(row * rowStride + col, lumaAt(col, row).toByte())
+        }
+        for (row in 0 until chromaHeight) for (col in 0 until (width + 1) / 2) {
+            vu.put(row * rowStride + col * 2, crAt(col * 2, row * 2).toByte())
+            vu.put(row * rowStride + col * 2 + 1, cbAt(col * 2, row * 2).toByte())
+        }
+        val u = vu.duplicate().apply { position(1) }.slice()
+        return YuvFrame().setSize(width, height)
+                .setPlane(0, y, rowStride, 1)
+                .setPlane(1, u, rowStride, 2)
+                .setPlane(2, vu, rowStride, 2)
+    }
+
+    /** The scene in RGB, using the full range BT.601 conversion of JFIF */
+    private fun reference() = BufferedImage(width, height, BufferedImage.TYPE_INT_RGB).apply {
+        for (y in 0 until height) for (x in 0 until width) {
+            val luma = lumaAt(x, y)
+            val cb = cbAt(x and 1.inv(), y and 1.inv()) - 128
+            val cr = crAt(x and 1.inv(), y and 1.inv()) - 128
+            val r = (luma + 1.402 * cr).roundToInt().coerceIn(0, 255)
+            val g = (luma - 0.344136 * cb - 0.714136 * cr).roundToInt().coerceIn(0, 255)
+            val b = (luma + 1.772 * cb).roundToInt().coerceIn(0, 255)
+            setRGB(x, y, (r shl 16) or (g shl 8) or b)
+        }
+    }
+
+    private fun encode(encoder: ParallelJpegEncoder, frame: YuvFrame, orientation: Int = 0): File {
+        val file = folder.newFile()
+        val size = FileOutputStream(file).channel.use { encoder.encode(frame, it, orientation) }
+        assertEquals(file.length(), size)
+        return file
+    }
+
+    private fun psnr(image: BufferedImage, reference: BufferedImage): Double {
+        var sum = 0.0
+        for (y in 0 until height) for (x in 0 until width) {
+            val a = image.getRGB(x, y)
+            val b = reference.getRGB(x, y)
+            for (shift in intArrayOf(0, 8, 16)) {
+                val diff = (a shr shift and 0xFF) - (b shr shift and 0xFF)
+                sum += diff * diff
+            }
+        }
+        return 10 * log10(255.0 * 255.0 / (sum / (width * height * 3)))
+    }
+
+    @Test
+    fun decodesAsWellAsReferenceEncoder() {
+        val reference = reference()
+        val decoded = ImageIO.read(encode(encoder, frame()))
+        assertEquals(width, decoded.width)
+        assertEquals(height, decoded.height)
+
+        // Encode the same scene with the JDK encoder at the same quality
+        val referenceFile = folder.newFile("reference.jpg")
+        val writer = ImageIO.getImageWritersByFormatName("jpeg").next()
+        ImageIO.createImageOutputStream(referenceFile).use { output ->
+            writer.output = output
+            val param = writer.defaultWriteParam.apply {
+                compressionMode = ImageWriteParam.MODE_EXPLICIT
+                compressionQuality = 0.9f
+            }
+            writer.write(null, IIOImage(reference, null, null), param)
+        }
+        writer.dispose()
+
+        val psnr = psnr(decoded, reference)
+        val referencePsnr = psnr(ImageIO.read(referenceFile), reference)
+        assertTrue("PSNR $psnr dB", psnr > 35.0)
+        assertTrue("PSNR $psnr dB, reference $referencePsnr dB", psnr > referencePsnr - 1.0)
+    }
+
+    @Test
+    fun stripsDecodeLikeSingleScan() {
+        val sequential = ParallelJpegEncoder(quality = 90, parallelism = 1)
+        val single = encode(sequential, frame())
+        sequential.shutdown()
+        val striped = encode(encoder, frame())
+
+        // 7 MCU rows in 7 strips, separated by 6 restart markers
+        val bytes = striped.readBytes()
+        val markers = (0 until bytes.size - 1).count {
+            bytes[it] == 0xFF.toByte() && (bytes[it + 1].toInt() and 0xF8) == 0xD0
+        }
+        assertEquals(6, markers)
+
+        val expected = ImageIO.read(single)
+        val actual = ImageIO.read(striped)
+        assertArrayEquals(expected.getRGB(0, 0, width, height, null, 0, width),
+                actual.getRGB(0, 0, width, height, null, 0, width))
+    }
+
+    @Test
+    fun cropAndOrientationAreApplied() {
+        val frame = frame().setCrop(20, 10, 120, 90)
+        val file = encode(encoder, frame, orientation = 6)
+        val decoded = ImageIO.read(file)
+        assertEquals(100, decoded.width)
+        assertEquals(80, decoded.height)
+
+        val jpeg = ByteBuffer.wrap(file.readBytes())
+        assertEquals(6, ExifOrientationWriter.read(jpeg))
+        val reference = reference().getSubimage(20, 10, 100, 80)
+        val expected = reference.getRGB(50, 40)
+        val actual = decoded.getRGB(50, 40)
+        for (shift in intArrayOf(0, 8, 16)) {
+            val diff = (expected shr shift and 0xFF) - (actual shr shift and 0xFF)
+            assertTrue("Channel differs by $diff", diff in -8..8)
+        }
+    }
+}
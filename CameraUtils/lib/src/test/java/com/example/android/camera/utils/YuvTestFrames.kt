@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import java.nio.ByteBuffer
+
+/** Deterministic test pattern covering the whole range of each channel */
+fun lumaAt(x: Int, y: Int) = (x * 7 + y * 13) % 256
+fun uAt(x: Int, y: Int) = (x * 11 + y * 3 + 64) % 256
+fun vAt(x: Int, y: Int) = (x * 5 + y * 17 + 32) % 256
+
+/**
+ * Builds a synthetic frame. When [semiPlanar] is true the chroma planes have a pixel stride of
+ * two and, unless [aliased] is false, are views of a single interleaved VU buffer as most camera
+ * HALs deliver them. Otherwise the chroma planes are fully planar.
+ */
+fun createTestFrame(
+        width: Int,
+        height: Int,
+        rowPadding: Int,
+        semiPlanar: Boolean,
+        aliased: Boolean = true
+): YuvFrame {
+    val yRowStride = width + rowPadding
+    val y = ByteBuffer.allocateDirect(yRowStride * height)
+    for (row in 0 until height) for (col in 0 until width) {
+        y.put(row * yRowStride + col, lumaAt(col, row).toByte())
+    }
+
+    val frame = YuvFrame().setSize(width, height).setPlane(0, y, yRowStride, 1)
+    val chromaWidth = width / 2
+    val chromaHeight = height / 2
+
+    if (semiPlanar) {
+        val rowStride = width + rowPadding
+        val vu = ByteBuffer.allocateDirect(rowStride * chromaHeight)
+        for (row in 0 until chromaHeight) for (col in 0 until chromaWidth) {
+            vu.put(row * rowStride + col * 2, vAt(col, row).toByte())
+            vu.put(row * rowStride + col * 2 + 1, uAt(col, row).toByte())
+        }
+        val v = vu.duplicate().apply { limit(rowStride * (chromaHeight - 1) + width - 1) }
+        val u = vu.duplicate().apply { position(1) }.slice()
+        if (!aliased) {
+            // Give each plane its own copy of the interleaved data
+            val copy = ByteBuffer.allocateDirect(vu.capacity()).put(vu.duplicate())
+            copy.clear()
+            frame.setPlane(1, u, rowStride, 2).setPlane(2, copy, rowStride, 2)
+            return frame
+        }
+        frame.setPlane(1, u, rowStride, 2).setPlane(2, v.slice(), rowStride, 2)
+    } else {
+        val rowStride = chromaWidth + rowPadding
+        val u = ByteBuffer.allocateDirect(rowStride * chromaHeight)
+        val v = ByteBuffer.allocateDirect(rowStride * chromaHeight)
+        for (row in 0 until chromaHeight) for (col in 0 until chromaWidth) {
+            u.put(row * rowStride + col, uAt(col, row).toByte())
+            v.put(row * rowStride + col, vAt(col, row).toByte())
+        }
+        frame.setPlane(1, u, rowStride, 1).setPlane(2, v, rowStride, 1)
+    }
+    return frame
+}
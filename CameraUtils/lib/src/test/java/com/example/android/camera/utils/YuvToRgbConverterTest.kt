@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class YuvToRgbConverterTest {
+
+    /** Builds the expected NV21 representation of the crop rectangle of [frame] */
+    private fun expectedNv21(frame: YuvFrame): ByteArray {
+        val output = ArrayList<Byte>()
+        for (row in frame.cropTop until frame.cropBottom) {
+            for (col in frame.cropLeft until frame.cropRight) output.add(lumaAt(col, row).toByte())
+        }
+        for (row in frame.cropTop / 2 until frame.cropBottom / 2) {
+            for (col in frame.cropLeft / 2 until frame.cropRight / 2) {
+                output.add(vAt(col, row).toByte())
+                output.add(uAt(col, row).toByte())
+            }
+        }
+        return output.toByteArray()
+    }
+
+    private fun assertPacksAsNv21(frame: YuvFrame) {
+        val expected = expectedNv21(frame)
+        val actual = ByteArray(expected.size)
+        YuvToRgbConverter.imageToByteArray(frame, actual)
+        assertArrayEquals(expected, actual)
+    }
+
+    @Test
+    fun planarFrame() = assertPacksAsNv21(createTestFrame(64, 48, 16, semiPlanar = false))
+
+    @Test
+    fun interleavedFrameWithoutPadding() =
+            assertPacksAsNv21(createTestFrame(64, 48, 0, semiPlanar = true))
+
+    @Test
+    fun interleavedFrameWithPadding() =
+            assertPacksAsNv21(createTestFrame(64, 48, 32, semiPlanar = true))
+
+    @Test
+    fun interleavedFrameWithCrop() = assertPacksAsNv21(
+            createTestFrame(64, 48, 0, semiPlanar = true).setCrop(8, 4, 56, 44))
+
+    @Test
+    fun nonAliasedSemiPlanarFrame() = assertPacksAsNv21(
+            createTestFrame(64, 48, 16, semiPlanar = true, aliased = false))
+
+    @Test
+    fun readOnlyInterleavedFrame() {
+        val frame = createTestFrame(64, 48, 16, semiPlanar = true)
+        frame.setPlane(0, frame.yBuffer.asReadOnlyBuffer(), frame.yRowStride, 1)
+                .setPlane(1, frame.uBuffer.asReadOnlyBuffer(), frame.uRowStride, 2)
+                .setPlane(2, frame.vBuffer.asReadOnlyBuffer(), frame.vRowStride, 2)
+        assertPacksAsNv21(frame)
+    }
+
+    @Test
+    fun semiPlanarFrameWithUnrelatedPlanes() {
+        // The V plane has its own buffer, where the bytes between V values are not U values
+        val frame = createTestFrame(64, 48, 16, semiPlanar = true, aliased = false)
+        val vBuffer = frame.vBuffer
+        for (offset in 1 until vBuffer.limit() step 2) vBuffer.put(offset, 0)
+        assertPacksAsNv21(frame)
+    }
+
+    @Test
+    fun nv12FrameWithMatchingChromaAtSomeOffsets() {
+        // U at the base of the shared buffer and V one byte after, the opposite of NV21
+        val width = 64
+        val height = 48
+        val rowStride = width + 16
+        val uv = ByteBuffer.allocateDirect(rowStride * height / 2)
+        for (row in 0 until height / 2) for (col in 0 until width / 2) {
+            uv.put(row * rowStride + col * 2, uAt(col, row).toByte())
+            uv.put(row * rowStride + col * 2 + 1, vAt(col, row).toByte())
+        }
+        // Flat chroma at 16 offsets spread over the planes makes the byte after V equal U there,
+        // as it would for NV21, while the rest of the frame is saturated
+        val overlap = uv.capacity() - 2
+        for (sample in 0 until 16) {
+            val offset = (overlap - 1) * sample / 15
+            uv.put(offset, 128.toByte())
+            uv.put(offset + 2, 128.toByte())
+        }
+        val frame = createTestFrame(width, height, 16, semiPlanar = false)
+                .setPlane(1, uv.duplicate(), rowStride, 2)
+                .setPlane(2, uv.duplicate().apply { position(1) }.slice(), rowStride, 2)
+
+        val expected = ByteArray(width * height * 3 / 2)
+        for (row in 0 until height) for (col in 0 until width) {
+            expected[row * width + col] = lumaAt(col, row).toByte()
+        }
+        for (row in 0 until height / 2) for (col in 0 until width / 2) {
+            val output = width * height + row * width + col * 2
+            expected[output] = uv.get(row * rowStride + col * 2 + 1)
+            expected[output + 1] = uv.get(row * rowStride + col * 2)
+        }
+        val actual = ByteArray(expected.size)
+        YuvToRgbConverter.imageToByteArray(frame, actual)
+        assertArrayEquals(expected, actual)
+    }
+}
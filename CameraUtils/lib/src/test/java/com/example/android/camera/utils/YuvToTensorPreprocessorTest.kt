@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.floor
+
+class YuvToTensorPreprocessorTest {
+
+    @Test
+    fun matchesOpChainForEveryRotation() {
+        val frame = createTestFrame(64, 48, rowPadding = 16, semiPlanar = true)
+        for (rotation in listOf(0, 90, 180, 270)) {
+            assertArrayEquals("Rotation $rotation",
+                    referenceTensor(frame, rotation, 20, 20), fusedTensor(frame, rotation, 20, 20))
+        }
+    }
+
+    @Test
+    fun matchesOpChainForNonSquareTensors() {
+        val frame = createTestFrame(48, 64, rowPadding = 0, semiPlanar = false)
+        for (rotation in listOf(0, 90, 180, 270)) {
+            assertArrayEquals("Rotation $rotation",
+                    referenceTensor(frame, rotation, 24, 14), fusedTensor(frame, rotation, 24, 14))
+        }
+    }
+
+    @Test
+    fun matchesOpChainWhenUpscalingCroppedFrames() {
+        val frame = createTestFrame(40, 30, rowPadding = 8, semiPlanar = true)
+                .setCrop(2, 4, 38, 28)
+        assertArrayEquals(referenceTensor(frame, 90, 50, 50), fusedTensor(frame, 90, 50, 50))
+    }
+
+    @Test
+    fun geometryChangesAreApplied() {
+        val preprocessor = YuvToTensorPreprocessor(16, 16)
+        val output = ByteBuffer.allocateDirect(preprocessor.outputSize)
+        val landscape = createTestFrame(64, 48, rowPadding = 0, semiPlanar = true)
+        val portrait = createTestFrame(48, 64, rowPadding = 0, semiPlanar = true)
+
+        preprocessor.process(landscape, 90, output)
+        preprocessor.process(portrait, 0, output)
+
+        val result = ByteArray(preprocessor.outputSize).also { output.get(it) }
+        assertArrayEquals(referenceTensor(portrait, 0, 16, 16), result)
+        assertEquals(0, output.rewind().position())
+    }
+
+    @Test
+    fun floatOutputIsNormalizedTensor() {
+        val frame = createTestFrame(64, 48, rowPadding = 0, semiPlanar = true)
+        val preprocessor = YuvToTensorPreprocessor(20, 12)
+        val output = ByteBuffer.allocateDirect(preprocessor.floatOutputSize)
+                .order(ByteOrder.nativeOrder())
+
+        // A second call with other parameters must not reuse the previous normalization
+        preprocessor.processFloat(frame, 90, output, 0f, 1f)
+        preprocessor.processFloat(frame, 90, output, 127.5f, 127.5f)
+
+        val expected = referenceTensor(frame, 90, 20, 12)
+        assertEquals(0, output.position())
+        for (i in expected.indices) {
+            val value = ((expected[i].toInt() and 0xFF) - 127.5f) / 127.5f
+            assertEquals(value, output.asFloatBuffer().get(i), 0f)
+        }
+    }
+
+    @Test
+    fun lumaMatchesSampledPixels() {
+        val frame = createTestFrame(64, 48, rowPadding = 4, semiPlanar = false)
+                .setCrop(4, 2, 60, 46)
+        val preprocessor = YuvToTensorPreprocessor(24, 16)
+        val luma = ByteArray(24 * 16)
+        for (rotation in listOf(0, 90, 180, 270)) {
+            preprocessor.processLuma(frame, rotation, luma)
+            val expected = referenceSamples(frame, rotation, 24, 16) { x, y ->
+                lumaAt(frame.cropLeft + x, frame.cropTop + y)
+            }
+            val actual = Array(16) { y -> IntArray(24) { x -> luma[y * 24 + x].toInt() and 0xFF } }
+            assertArrayEquals("Rotation $rotation", expected, actual)
+        }
+    }
+
+    private fun fusedTensor(frame: YuvFrame, rotation: Int, width: Int, height: Int): ByteArray {
+        val preprocessor = YuvToTensorPreprocessor(width, height)
+        val output = ByteBuffer.allocateDirect(preprocessor.outputSize)
+        preprocessor.process(frame, rotation, output)
+        return ByteArray(preprocessor.outputSize).also { output.get(it) }
+    }
+
+    /**
+     * Applies the same steps as CameraXTfLite did with a bitmap and the TFLite support ops:
+     * full frame conversion, ResizeWithCropOrPadOp to a centered square, nearest neighbor
+     * ResizeOp, Rot90Op and finally loading the RGB channels into a UINT8 tensor.
+     */
+    private fun referenceTensor(
+            frame: YuvFrame,
+            rotation: Int,
+            width: Int,
+            height: Int
+    ): ByteArray {
+        val argb = IntArray(frame.cropWidth * frame.cropHeight)
+        YuvToRgbKernel().convert(frame, argb)
+        val image = referenceSamples(frame, rotation, width, height) { x, y ->
+            argb[y * frame.cropWidth + x]
+        }
+
+        val tensor = ByteArray(width * height * 3)
+        for (y in 0 until height) for (x in 0 until width) {
+            val pixel = image[y][x]
+            tensor[(y * width + x) * 3] = (pixel shr 16).toByte()
+            tensor[(y * width + x) * 3 + 1] = (pixel shr 8).toByte()
+            tensor[(y * width + x) * 3 + 2] = pixel.toByte()
+        }
+        return tensor
+    }
+
+    /** Center crops, resizes and rotates the [pixel]s of the crop rectangle of [frame] */
+    private fun referenceSamples(
+            frame: YuvFrame,
+            rotation: Int,
+            width: Int,
+            height: Int,
+            pixel: (Int, Int) -> Int
+    ): Array<IntArray> {
+        val cropSize = minOf(frame.cropWidth, frame.cropHeight)
+        val left = (frame.cropWidth - cropSize) / 2
+        val top = (frame.cropHeight - cropSize) / 2
+        val cropped = Array(cropSize) { y ->
+            IntArray(cropSize) { x -> pixel(left + x, top + y) }
+        }
+
+        // Rot90Op is applied last, so the resize targets the size of the tensor before rotation
+        val rotated = rotation % 180 != 0
+        val resizedWidth = if (rotated) height else width
+        val resizedHeight = if (rotated) width else height
+        val resized = Array(resizedHeight) { y ->
+            IntArray(resizedWidth) { x ->
+                val sourceX = floor((x + 0.5) * cropSize / resizedWidth).toInt()
+                val sourceY = floor((y + 0.5) * cropSize / resizedHeight).toInt()
+                cropped[sourceY][sourceX]
+            }
+        }
+
+        var image = resized
+        repeat(rotation / 90) { image = rotateClockwise(image) }
+        return image
+    }
+
+    private fun rotateClockwise(image: Array<IntArray>): Array<IntArray> {
+        val height = image.size
+        val width = image[0].size
+        return Array(width) { y -> IntArray(height) { x -> image[height - 1 - x][y] } }
+    }
+}
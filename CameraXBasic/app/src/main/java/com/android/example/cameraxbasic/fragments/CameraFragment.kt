@@ -66,12 +66,14 @@ import com.android.example.cameraxbasic.utils.ANIMATION_SLOW_MILLIS
 import com.android.example.cameraxbasic.utils.simulateClick
 import com.bumptech.glide.Glide
 import com.bumptech.glide.request.RequestOptions
+import com.example.android.camera.utils.FrameRateMeter
+import com.example.android.camera.utils.FrameStats
+import com.example.android.camera.utils.FrameStatsAnalyzer
+import com.example.android.camera.utils.YuvFrame
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import java.io.File
-import java.nio.ByteBuffer
 import java.text.SimpleDateFormat
-import java.util.ArrayDeque
 import java.util.Locale
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
@@ -83,6 +85,12 @@ import kotlin.math.min
 /** Helper type alias used for analysis use case callbacks */
 typealias LumaListener = (luma: Double) -> Unit
 
+/**
+ * Helper type alias used for analysis callbacks interested in the full statistics of the frame.
+ * The statistics are reused for a later frame, so they are only valid during the callback
+ */
+typealias FrameStatsListener = (stats: FrameStats) -> Unit
+
 /**
  * Main fragment for this app. Implements all camera operations including:
  * - Viewfinder
@@ -321,6 +329,19 @@ class CameraFragment : Fragment() {
                         // We log image analysis results here - you should do something useful
                         // instead!
                         Log.d(TAG, "Average luminosity: $luma")
+                    }.apply {
+                        // Percentiles of the same frame come from the histogram built by the
+                        // analyzer, e.g. to detect clipped highlights when choosing exposure
+                        onStatsComputed { stats ->
+                            Log.d(TAG, "Luminosity 5th/95th percentiles: " +
+                                    "${stats.percentile(0.05)}/${stats.percentile(0.95)}")
+                        }
+                        // Report the analysis frame rate once per window of the meter
+                        onFrameAnalyzed {
+                            if (frameRateMeter.frameCount % frameRateMeter.capacity == 0L) {
+                                Log.d(TAG, "Analysis frame rate: $frameRateMeter")
+                            }
+                        }
                     })
                 }
 
@@ -508,14 +529,24 @@ class CameraFragment : Fragment() {
      *
      * <p>All we need to do is override the function `analyze` with our desired operations. Here,
      * we compute the average luminosity of the image by looking at the Y plane of the YUV frame.
+     *
+     * <p>The plane is handed to a [FrameStatsAnalyzer] from the shared camera utils, which scans
+     * the crop rectangle in a single pass without allocating memory per frame. The average and
+     * any percentile are derived from the luma histogram it builds. Setting [sampleStep] to N
+     * only samples every Nth pixel of every Nth row, which is usually plenty for exposure
+     * decisions.
      */
-    private class LuminosityAnalyzer(listener: LumaListener? = null) : ImageAnalysis.Analyzer {
-        private val frameRateWindow = 8
-        private val frameTimestamps = ArrayDeque<Long>(5)
+    private class LuminosityAnalyzer(
+            listener: LumaListener? = null,
+            sampleStep: Int = 1
+    ) : ImageAnalysis.Analyzer {
         private val listeners = ArrayList<LumaListener>().apply { listener?.let { add(it) } }
-        private var lastAnalyzedTimestamp = 0L
-        var framesPerSecond: Double = -1.0
-            private set
+        private val statsListeners = ArrayList<FrameStatsListener>()
+        private val statsAnalyzer = FrameStatsAnalyzer(sampleStep = sampleStep)
+        private val frame = YuvFrame()
+
+        /** Frame rate and latency of the frames analyzed, measured once each one is processed */
+        val frameRateMeter = FrameRateMeter()
 
         /**
          * Used to add listeners that will be called with each luma computed
@@ -523,14 +554,10 @@ class CameraFragment : Fragment() {
         fun onFrameAnalyzed(listener: LumaListener) = listeners.add(listener)
 
         /**
-         * Helper extension function used to extract a byte array from an image plane buffer
+         * Used to add listeners that will be called with the statistics of each frame, including
+         * its luma histogram
          */
-        private fun ByteBuffer.toByteArray(): ByteArray {
-            rewind()    // Rewind the buffer to zero
-            val data = ByteArray(remaining())
-            get(data)   // Copy the buffer into a byte array
-            return data // Return the byte array
-        }
+        fun onStatsComputed(listener: FrameStatsListener) = statsListeners.add(listener)
 
         /**
          * Analyzes an image to produce a result.
@@ -550,41 +577,36 @@ class CameraFragment : Fragment() {
          */
         override fun analyze(image: ImageProxy) {
             // If there are no listeners attached, we don't need to perform analysis
-            if (listeners.isEmpty()) {
+            if (listeners.isEmpty() && statsListeners.isEmpty()) {
                 image.close()
                 return
             }
 
-            // Keep track of frames analyzed
-            val currentTime = System.currentTimeMillis()
-            frameTimestamps.push(currentTime)
-
-            // Compute the FPS using a moving average
-            while (frameTimestamps.size >= frameRateWindow) frameTimestamps.removeLast()
-            val timestampFirst = frameTimestamps.peekFirst() ?: currentTime
-            val timestampLast = frameTimestamps.peekLast() ?: currentTime
-            framesPerSecond = 1.0 / ((timestampFirst - timestampLast) /
-                    frameTimestamps.size.coerceAtLeast(1).toDouble()) * 1000.0
-
             // Analysis could take an arbitrarily long amount of time
             // Since we are running in a different thread, it won't stall other use cases
 
-            lastAnalyzedTimestamp = frameTimestamps.first
-
-            // Since format in ImageAnalysis is YUV, image.planes[0] contains the luminance plane
-            val buffer = image.planes[0].buffer
-
-            // Extract image data from callback object
-            val data = buffer.toByteArray()
-
-            // Convert the data into an array of pixel values ranging 0-255
-            val pixels = data.map { it.toInt() and 0xFF }
+            // Since format in ImageAnalysis is YUV, image.planes[0] contains the luminance plane.
+            // Rows may be padded past the width of the image, and only the crop rectangle holds
+            // valid pixels
+            val crop = image.cropRect
+            frame.setSize(image.width, image.height)
+                    .setCrop(crop.left, crop.top, crop.right, crop.bottom)
+            image.planes.forEachIndexed { index, plane ->
+                frame.setPlane(index, plane.buffer, plane.rowStride, plane.pixelStride)
+            }
+            frame.timestamp = image.imageInfo.timestamp
+            statsAnalyzer.analyze(frame)
+            val stats = statsAnalyzer.latest()
 
             // Compute average luminance for the image
-            val luma = pixels.average()
+            val luma = stats.mean
+
+            // Keep track of frames analyzed, before listeners so that they can report the rate
+            frameRateMeter.onFrame(image.imageInfo.timestamp)
 
             // Call all listeners with new value
             listeners.forEach { it(luma) }
+            statsListeners.forEach { it(stats) }
 
             image.close()
         }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+import android.content.Context
+import android.util.Log
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.tensorflow.lite.Interpreter
+import org.tensorflow.lite.support.common.FileUtil
+import kotlin.random.Random
+
+/**
+ * Measures the throughput of [ObjectDetectionHelper.predictBatch] on the CPU interpreter for
+ * several batch sizes. Results are logged with the tag of this class, e.g.
+ * `adb logcat -s BatchInferenceBenchmark`.
+ *
+ * The post-processing of the bundled SSD model only handles a single frame, so with it every
+ * batch falls back to running frames one at a time and [batchesMatchSingleFrames] is skipped.
+ * Both tests are meant for models whose every op runs on batches.
+ */
+@RunWith(AndroidJUnit4::class)
+class BatchInferenceBenchmark {
+
+    private lateinit var tflite: Interpreter
+    private lateinit var detector: ObjectDetectionHelper
+
+    @Before
+    fun setUp() {
+        val context: Context = ApplicationProvider.getApplicationContext()
+        tflite = Interpreter(
+            FileUtil.loadMappedFile(context, CameraActivity.MODEL_PATH),
+            Interpreter.Options().setNumThreads(Runtime.getRuntime().availableProcessors()))
+        detector = ObjectDetectionHelper(
+            tflite, FileUtil.loadLabels(context, CameraActivity.LABELS_PATH))
+    }
+
+    @After
+    fun tearDown() = tflite.close()
+
+    @Test
+    fun batchesMatchSingleFrames() {
+        val batch = randomBatch(BATCH_SIZES.last())
+        val batched = List(BATCH_SIZES.last()) { DetectionResults(detector.maxDetections) }
+        detector.predictBatch(batch, batched)
+        // Otherwise the frames were run one at a time, and would only be compared to themselves
+        assumeTrue("Model can't run batches", detector.batchingSupported)
+
+        batched.forEachIndexed { i, expected ->
+            val single = detector.allocateBatch(1)
+            for (j in 0 until detector.frameInputSize) {
+                single.put(j, batch.get(i * detector.frameInputSize + j))
+            }
+            val actual = DetectionResults(detector.maxDetections)
+            detector.predictBatch(single, listOf(actual))
+            assertEquals(expected.count, actual.count)
+            assertArrayEquals(expected.classIds, actual.classIds)
+            assertArrayEquals(expected.scores, actual.scores, SCORE_TOLERANCE)
+        }
+    }
+
+    @Test
+    fun throughputPerBatchSize() {
+        for (batchSize in BATCH_SIZES) {
+            val batch = randomBatch(batchSize)
+            val results = List(batchSize) { DetectionResults(detector.maxDetections) }
+
+            // Warm up, which also resizes the interpreter for this batch size
+            repeat(WARMUP_RUNS) { detector.predictBatch(batch, results) }
+
+            val start = System.nanoTime()
+            repeat(MEASURED_FRAMES / batchSize) { detector.predictBatch(batch, results) }
+            val frames = MEASURED_FRAMES / batchSize * batchSize
+            val nanosPerFrame = (System.nanoTime() - start).toDouble() / frames
+            Log.i(TAG, String.format("Batch size %d: %.2f ms per frame, %.1f frames/s%s",
+                batchSize, nanosPerFrame / 1e6, 1e9 / nanosPerFrame,
+                if (detector.batchingSupported) "" else " (sequential fallback)"))
+        }
+    }
+
+    /** Fills a batch with noise, which is enough to exercise every op of the model */
+    private fun randomBatch(frames: Int) = detector.allocateBatch(frames).apply {
+        val random = Random(frames)
+        while (hasRemaining()) put(random.nextInt(256).toByte())
+        rewind()
+    }
+
+    companion object {
+        private val TAG = BatchInferenceBenchmark::class.java.simpleName
+
+        private val BATCH_SIZES = listOf(1, 2, 4, 8)
+        private const val WARMUP_RUNS = 3
+        private const val MEASURED_FRAMES = 64
+        private const val SCORE_TOLERANCE = 1e-4f
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+import android.graphics.RectF
+
+/**
+ * Maps boxes coming out of the model, in [0, 1] coordinates of its square input, to pixels of
+ * the view that displays the preview.
+ *
+ * Box centers go through an affine transform that scales them to the view and mirrors them for
+ * the front camera. Box extents are scaled separately, compensating for the square crop of the
+ * model input shown in a view of [cropAspectRatio] plus a small margin, which stretches the
+ * long side of the view and shrinks the short one. Both are computed by [configure] only when
+ * the view size or the lens change, so that mapping a box takes a few multiplications and
+ * allocates nothing.
+ */
+class BoxMapper(
+    private val cropAspectRatio: Float = DEFAULT_CROP_ASPECT_RATIO,
+    private val margin: Float = DEFAULT_MARGIN
+) {
+    // Configuration the transform below was computed for
+    private var viewWidth = -1
+    private var viewHeight = -1
+    private var mirrored = false
+
+    // Centers are mapped to x' = centerScaleX * x + centerOffsetX, and likewise for y
+    private var centerScaleX = 0f
+    private var centerOffsetX = 0f
+    private var centerScaleY = 0f
+
+    // Half extents are mapped to w' = extentScaleX * w, and likewise for h
+    private var extentScaleX = 0f
+    private var extentScaleY = 0f
+
+    /**
+     * Updates the transform for a view of [width] by [height] pixels showing a preview that is
+     * [mirrored] or not. Does nothing if neither changed.
+     */
+    fun configure(width: Int, height: Int, mirrored: Boolean) {
+        if (width == viewWidth && height == viewHeight && mirrored == this.mirrored) return
+        viewWidth = width
+        viewHeight = height
+        this.mirrored = mirrored
+
+        centerScaleX = if (mirrored) -width.toFloat() else width.toFloat()
+        centerOffsetX = if (mirrored) width.toFloat() else 0f
+        centerScaleY = height.toFloat()
+
+        val stretch = (1f + margin) * cropAspectRatio
+        val shrink = 1f - margin
+        extentScaleX = width * if (width < height) stretch else shrink
+        extentScaleY = height * if (width < height) shrink else stretch
+    }
+
+    /** Forces the next [configure] to recompute the transform, e.g. after a camera switch */
+    fun invalidate() {
+        viewWidth = -1
+        viewHeight = -1
+    }
+
+    /** Maps the box given by [left], [top], [right] and [bottom] into [out] */
+    fun map(left: Float, top: Float, right: Float, bottom: Float, out: RectF): RectF {
+        val centerX = centerScaleX * (left + right) / 2f + centerOffsetX
+        val centerY = centerScaleY * (top + bottom) / 2f
+        val halfWidth = extentScaleX * (right - left) / 2f
+        val halfHeight = extentScaleY * (bottom - top) / 2f
+        out.set(centerX - halfWidth, centerY - halfHeight, centerX + halfWidth,
+            centerY + halfHeight)
+        return out
+    }
+
+    /** Maps [location] in place */
+    fun map(location: RectF): RectF =
+        map(location.left, location.top, location.right, location.bottom, location)
+
+    /**
+     * Maps [count] boxes stored as left, top, right, bottom in [source] from [sourceOffset] into
+     * [destination] from [destinationOffset]. Both arrays can be the same.
+     */
+    fun map(
+        source: FloatArray,
+        sourceOffset: Int,
+        destination: FloatArray,
+        destinationOffset: Int,
+        count: Int
+    ) {
+        for (i in 0 until count) {
+            val s = sourceOffset + 4 * i
+            val d = destinationOffset + 4 * i
+            val centerX = centerScaleX * (source[s] + source[s + 2]) / 2f + centerOffsetX
+            val centerY = centerScaleY * (source[s + 1] + source[s + 3]) / 2f
+            val halfWidth = extentScaleX * (source[s + 2] - source[s]) / 2f
+            val halfHeight = extentScaleY * (source[s + 3] - source[s + 1]) / 2f
+            destination[d] = centerX - halfWidth
+            destination[d + 1] = centerY - halfHeight
+            destination[d + 2] = centerX + halfWidth
+            destination[d + 3] = centerY + halfHeight
+        }
+    }
+
+    companion object {
+        /** Aspect ratio of the preview, whose center square is fed to the model */
+        const val DEFAULT_CROP_ASPECT_RATIO = 4f / 3f
+
+        /** Relative margin added around boxes along the long side of the view */
+        const val DEFAULT_MARGIN = 0.1f
+    }
+}
@@ -25,7 +25,6 @@ import android.graphics.Matrix
 import android.graphics.RectF
 import android.os.Bundle
 import android.util.Log
-import android.util.Size
 import android.view.View
 import android.view.ViewGroup
 import androidx.appcompat.app.AppCompatActivity
@@ -39,19 +38,16 @@ import androidx.core.app.ActivityCompat
 import androidx.core.content.ContextCompat
 import androidx.lifecycle.LifecycleOwner
 import com.android.example.camerax.tflite.R
+import com.example.android.camera.utils.FrameRateMeter
 import com.example.android.camera.utils.YuvToRgbConverter
+import com.example.android.camera.utils.YuvToTensorPreprocessor
 import kotlinx.android.synthetic.main.activity_camera.*
 import org.tensorflow.lite.DataType
-import org.tensorflow.lite.Interpreter
-import org.tensorflow.lite.nnapi.NnApiDelegate
 import org.tensorflow.lite.support.common.FileUtil
-import org.tensorflow.lite.support.common.ops.NormalizeOp
-import org.tensorflow.lite.support.image.ImageProcessor
-import org.tensorflow.lite.support.image.TensorImage
-import org.tensorflow.lite.support.image.ops.ResizeOp
-import org.tensorflow.lite.support.image.ops.ResizeWithCropOrPadOp
-import org.tensorflow.lite.support.image.ops.Rot90Op
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.math.min
 import kotlin.random.Random
 
@@ -63,51 +59,138 @@ class CameraActivity : AppCompatActivity() {
     private lateinit var bitmapBuffer: Bitmap
 
     private val executor = Executors.newSingleThreadExecutor()
+    private val modelExecutor = Executors.newSingleThreadExecutor()
     private val permissions = listOf(Manifest.permission.CAMERA)
     private val permissionsRequestCode = Random.nextInt(0, 10000)
 
     private var lensFacing: Int = CameraSelector.LENS_FACING_BACK
     private val isFrontFacing get() = lensFacing == CameraSelector.LENS_FACING_FRONT
 
-    private var pauseAnalysis = false
+    @Volatile private var pauseAnalysis = false
+    @Volatile private var freezeRequested = false
     private var imageRotationDegrees: Int = 0
-    private val tfImageBuffer = TensorImage(DataType.UINT8)
-
-    private val tfImageProcessor by lazy {
-        val cropSize = minOf(bitmapBuffer.width, bitmapBuffer.height)
-        ImageProcessor.Builder()
-            .add(ResizeWithCropOrPadOp(cropSize, cropSize))
-            .add(ResizeOp(
-                tfInputSize.height, tfInputSize.width, ResizeOp.ResizeMethod.NEAREST_NEIGHBOR))
-            .add(Rot90Op(-imageRotationDegrees / 90))
-            .add(NormalizeOp(0f, 1f))
-            .build()
+
+    /** Measures the rate and the latency of the entire pipeline, used by its last stage */
+    private val frameRateMeter = FrameRateMeter()
+
+    /** Converts the frozen frame, split across all available cores */
+    private val lazyConverter = lazy {
+        YuvToRgbConverter(this, parallelism = Runtime.getRuntime().availableProcessors())
+    }
+    private val converter by lazyConverter
+
+    /**
+     * Runs preprocessing, inference, smoothing and reporting of consecutive frames concurrently.
+     * Preprocessing happens on the analyzer thread while the image is still open, and every other
+     * stage has a thread of its own
+     */
+    private val pipeline = StagedPipeline(
+        sourceName = "preprocess",
+        stages = listOf(
+            StagedPipeline.Stage<DetectionFrame>("infer") { frame ->
+                trackingDetector.process(frame.input, frame.luma, frame.results)
+            },
+            StagedPipeline.Stage("smooth") { frame -> smooth(frame) },
+            StagedPipeline.Stage("report") { frame -> onFrameProcessed(frame) }
+        ),
+        slotFactory = { DetectionFrame() }
+    )
+
+    /** Buffers and results of a frame going through the pipeline, recycled for later frames */
+    private class DetectionFrame {
+        lateinit var input: ByteBuffer
+        val luma = ByteArray(TRACKING_SIZE * TRACKING_SIZE)
+        var sensorTimestamp = 0L
+        lateinit var results: DetectionResults
+
+        /** Smoothed top detection, only valid if hasOverlay is set */
+        val overlay = ObjectDetectionHelper.ObjectPrediction()
+        var hasOverlay = false
+
+        /** Allocates the buffers of this slot for [detector] the first time it is used */
+        fun allocate(detector: ObjectDetector) {
+            if (!::input.isInitialized) {
+                input = ByteBuffer.allocateDirect(detector.frameInputSize)
+                    .order(ByteOrder.nativeOrder())
+                results = DetectionResults(detector.maxDetections)
+            }
+        }
     }
 
-    private val tflite by lazy {
-        Interpreter(
-            FileUtil.loadMappedFile(this, MODEL_PATH),
-            Interpreter.Options().addDelegate(NnApiDelegate()))
+    /**
+     * Crops, resizes and rotates each frame straight from YUV into the RGB input of the model,
+     * in one pass over the sampled pixels only
+     */
+    private val tfPreprocessor by lazy {
+        detector!!.let { YuvToTensorPreprocessor(it.inputWidth, it.inputHeight) }
+    }
+
+    /** Picks the fastest of CPU, XNNPACK and NNAPI for the model on this device */
+    private val interpreterFactory by lazy {
+        InterpreterFactory(FileUtil.loadMappedFile(this, MODEL_PATH))
     }
 
-    private val detector by lazy {
-        ObjectDetectionHelper(
-            tflite,
-            FileUtil.loadLabels(this, LABELS_PATH)
-        )
+    /** Maps boxes from model to view coordinates, along with the rect it writes into */
+    private val boxMapper = BoxMapper()
+    private val mappedLocation = RectF()
+
+    /** Stabilizes detections across frames, used by the smoothing stage of the pipeline */
+    private val smoother by lazy {
+        DetectionSmoother(capacity = detector!!.maxDetections, minScore = MIN_DETECTION_SCORE)
     }
 
-    private val tfInputSize by lazy {
-        val inputIndex = 0
-        val inputShape = tflite.getInputTensor(inputIndex).shape()
-        Size(inputShape[2], inputShape[1]) // Order of axis is: {1, height, width, 3}
+    // The overlay shown next, written by the pipeline and read on the UI thread. A single update
+    // is posted at a time, and it shows whatever overlay is the latest when it runs
+    private val overlayLock = Any()
+    private val pendingOverlay = ObjectDetectionHelper.ObjectPrediction()
+    private var pendingOverlayVisible = false
+    private val shownOverlay = ObjectDetectionHelper.ObjectPrediction()
+    private val overlayPosted = AtomicBoolean(false)
+    private val overlayUpdate = Runnable {
+        // Cleared before reading, so that any overlay published from now on is posted again
+        overlayPosted.set(false)
+        val visible = synchronized(overlayLock) {
+            if (pendingOverlayVisible) copyPrediction(pendingOverlay, shownOverlay)
+            pendingOverlayVisible
+        }
+        reportPrediction(if (visible) shownOverlay else null)
     }
 
+    /** Samples the same pixels as [tfPreprocessor] at a lower resolution, for the tracker */
+    private val trackingPreprocessor = YuvToTensorPreprocessor(TRACKING_SIZE, TRACKING_SIZE)
+
+    /**
+     * Runs the detector every [DETECTION_INTERVAL] frames, or sooner if tracking confidence drops
+     * below [REDETECT_THRESHOLD], and tracks the top detection on the frames in between
+     */
+    private val trackingDetector by lazy {
+        TrackingDetector(
+            detect = { input, results -> detector!!.predict(input, results) },
+            tracker = TemplateTracker(TRACKING_SIZE, TRACKING_SIZE),
+            detectionInterval = DETECTION_INTERVAL,
+            redetectThreshold = REDETECT_THRESHOLD,
+            minScore = ACCURACY_THRESHOLD)
+    }
+
+    /**
+     * Null until the inference backend is ready, frames are skipped until then. Input size and
+     * type come from the model, so it can be replaced without changing the code
+     */
+    @Volatile private var detector: ObjectDetector? = null
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_camera)
         container = findViewById(R.id.camera_container)
 
+        // Select and warm up the inference backend while the camera starts, so that neither the
+        // analyzer nor the first frames stall on it
+        modelExecutor.execute {
+            detector = ObjectDetectionHelper(
+                interpreterFactory.create(), FileUtil.loadLabels(this, LABELS_PATH))
+            Log.i(TAG, "Inference backend: ${interpreterFactory.selection}")
+        }
+
         camera_capture_button.setOnClickListener {
 
             // Disable all camera controls
@@ -119,16 +202,10 @@ class CameraActivity : AppCompatActivity() {
                 image_predicted.visibility = View.GONE
 
             } else {
-                // Otherwise, pause image analysis and freeze image
-                pauseAnalysis = true
-                val matrix = Matrix().apply {
-                    postRotate(imageRotationDegrees.toFloat())
-                    if (isFrontFacing) postScale(-1f, 1f)
-                }
-                val uprightImage = Bitmap.createBitmap(
-                    bitmapBuffer, 0, 0, bitmapBuffer.width, bitmapBuffer.height, matrix, true)
-                image_predicted.setImageBitmap(uprightImage)
-                image_predicted.visibility = View.VISIBLE
+                // Otherwise, ask the analyzer to convert the next frame to RGB and pause. Only
+                // that frame is converted, the pipeline never needs a bitmap
+                freezeRequested = true
+                return@setOnClickListener
             }
 
             // Re-enable camera controls
@@ -136,10 +213,28 @@ class CameraActivity : AppCompatActivity() {
         }
     }
 
+    /** Displays the frame converted when analysis was paused, on the UI thread */
+    private fun showFrozenFrame() {
+        val matrix = Matrix().apply {
+            postRotate(imageRotationDegrees.toFloat())
+            if (isFrontFacing) postScale(-1f, 1f)
+        }
+        val uprightImage = Bitmap.createBitmap(
+            bitmapBuffer, 0, 0, bitmapBuffer.width, bitmapBuffer.height, matrix, true)
+        image_predicted.setImageBitmap(uprightImage)
+        image_predicted.visibility = View.VISIBLE
+
+        // Re-enable camera controls
+        camera_capture_button.isEnabled = true
+    }
+
     /** Declare and bind preview and analysis use cases */
     @SuppressLint("UnsafeExperimentalUsageError")
     private fun bindCameraUseCases() = view_finder.post {
 
+        // The lens may have changed, so the transform of detected boxes has to be recomputed
+        boxMapper.invalidate()
+
         val cameraProviderFuture = ProcessCameraProvider.getInstance(this)
         cameraProviderFuture.addListener(Runnable {
 
@@ -159,46 +254,47 @@ class CameraActivity : AppCompatActivity() {
                 .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
                 .build()
 
-            var frameCounter = 0
-            var lastFpsTimestamp = System.currentTimeMillis()
-            val converter = YuvToRgbConverter(this)
-
             imageAnalysis.setAnalyzer(executor, ImageAnalysis.Analyzer { image ->
-                if (!::bitmapBuffer.isInitialized) {
-                    // The image rotation and RGB image buffer are initialized only once
-                    // the analyzer has started running
-                    imageRotationDegrees = image.imageInfo.rotationDegrees
-                    bitmapBuffer = Bitmap.createBitmap(
-                        image.width, image.height, Bitmap.Config.ARGB_8888)
-                }
+                // The image rotation is known only once the analyzer has started running
+                imageRotationDegrees = image.imageInfo.rotationDegrees
 
-                // Early exit: image analysis is in paused state
-                if (pauseAnalysis) {
+                // Early exit: image analysis is in paused state, or the model is not ready yet
+                val detector = detector
+                if (pauseAnalysis || detector == null) {
                     image.close()
                     return@Analyzer
                 }
 
-                // Convert the image to RGB and place it in our shared buffer
-                image.use { converter.yuvToRgb(image.image!!, bitmapBuffer) }
-
-                // Process the image in Tensorflow
-                val tfImage =  tfImageProcessor.process(tfImageBuffer.apply { load(bitmapBuffer) })
-
-                // Perform the object detection for the current frame
-                val predictions = detector.predict(tfImage)
-
-                // Report only the top prediction
-                reportPrediction(predictions.maxBy { it.score })
+                // Freeze this frame, which is the only one ever converted to a bitmap
+                if (freezeRequested) {
+                    freezeRequested = false
+                    if (!::bitmapBuffer.isInitialized) {
+                        bitmapBuffer = Bitmap.createBitmap(
+                            image.width, image.height, Bitmap.Config.ARGB_8888)
+                    }
+                    image.use { converter.yuvToRgb(image.image!!, bitmapBuffer) }
+                    pauseAnalysis = true
+                    view_finder.post { showFrozenFrame() }
+                    return@Analyzer
+                }
 
-                // Compute the FPS of the entire pipeline
-                val frameCount = 10
-                if (++frameCounter % frameCount == 0) {
-                    frameCounter = 0
-                    val now = System.currentTimeMillis()
-                    val delta = now - lastFpsTimestamp
-                    val fps = 1000 * frameCount.toFloat() / delta
-                    Log.d(TAG, "FPS: ${"%.02f".format(fps)}")
-                    lastFpsTimestamp = now
+                // Preprocess the image into a free slot of the pipeline, which runs it through
+                // Tensorflow and reports the results on its own threads. If every slot is busy
+                // the frame is dropped
+                image.use {
+                    pipeline.submit { frame ->
+                        frame.allocate(detector)
+                        frame.sensorTimestamp = image.imageInfo.timestamp
+                        if (detector.inputType == DataType.FLOAT32) {
+                            tfPreprocessor.processFloat(image.image!!, imageRotationDegrees,
+                                frame.input, detector.inputMean, detector.inputStd)
+                        } else {
+                            tfPreprocessor.process(
+                                image.image!!, imageRotationDegrees, frame.input)
+                        }
+                        trackingPreprocessor.processLuma(
+                            image.image!!, imageRotationDegrees, frame.luma)
+                    }
                 }
             })
 
@@ -216,19 +312,66 @@ class CameraActivity : AppCompatActivity() {
         }, ContextCompat.getMainExecutor(this))
     }
 
-    private fun reportPrediction(
-        prediction: ObjectDetectionHelper.ObjectPrediction?
-    ) = view_finder.post {
+    /**
+     * Applies non-maximum suppression to the detections of the frame and updates the tracks
+     * built from previous frames, keeping the top one for display
+     */
+    private fun smooth(frame: DetectionFrame) {
+        smoother.update(frame.results)
+        val track = smoother.best()
+        frame.hasOverlay = track != null && track.score >= ACCURACY_THRESHOLD
+        if (track != null && frame.hasOverlay) {
+            frame.overlay.location.set(track.box[0], track.box[1], track.box[2], track.box[3])
+            frame.overlay.label = track.label ?: ""
+            frame.overlay.score = track.score
+        }
+    }
+
+    /** Last stage of the pipeline, called with each frame that made it through detection */
+    private fun onFrameProcessed(frame: DetectionFrame) {
+
+        // Report only the top track. Frames may be processed faster than the UI draws them, so
+        // an update is posted only if the previous one already ran
+        synchronized(overlayLock) {
+            pendingOverlayVisible = frame.hasOverlay
+            if (frame.hasOverlay) copyPrediction(frame.overlay, pendingOverlay)
+        }
+        if (overlayPosted.compareAndSet(false, true)) view_finder.post(overlayUpdate)
+
+        // Compute the FPS of the entire pipeline, and its latency from the sensor
+        frameRateMeter.onFrame(frame.sensorTimestamp)
+        if (frameRateMeter.frameCount % frameRateMeter.capacity == 0L) {
+            Log.d(TAG, "FPS: $frameRateMeter")
+            Log.d(TAG, "Stages: ${pipeline.statsSummary()}")
+            Log.d(TAG, "Duty cycle: $trackingDetector")
+        }
+    }
+
+    private fun copyPrediction(
+        source: ObjectDetectionHelper.ObjectPrediction,
+        target: ObjectDetectionHelper.ObjectPrediction
+    ) {
+        target.location.set(source.location)
+        target.label = source.label
+        target.score = source.score
+    }
+
+    /** Shows [prediction] over the preview, on the UI thread */
+    private fun reportPrediction(prediction: ObjectDetectionHelper.ObjectPrediction?) {
 
         // Early exit: if prediction is not good enough, don't report it
         if (prediction == null || prediction.score < ACCURACY_THRESHOLD) {
             box_prediction.visibility = View.GONE
             text_prediction.visibility = View.GONE
-            return@post
+            return
         }
 
-        // Location has to be mapped to our local coordinates
-        val location = mapOutputCoordinates(prediction.location)
+        // Location has to be mapped to our local coordinates. The transform is only recomputed
+        // when the size of the view or the lens changed
+        boxMapper.configure(view_finder.width, view_finder.height, isFrontFacing)
+        val location = prediction.location.let {
+            boxMapper.map(it.left, it.top, it.right, it.bottom, mappedLocation)
+        }
 
         // Update the text and UI
         text_prediction.text = "${"%.2f".format(prediction.score)} ${prediction.label}"
@@ -244,52 +387,20 @@ class CameraActivity : AppCompatActivity() {
         text_prediction.visibility = View.VISIBLE
     }
 
-    /**
-     * Helper function used to map the coordinates for objects coming out of
-     * the model into the coordinates that the user sees on the screen.
-     */
-    private fun mapOutputCoordinates(location: RectF): RectF {
-
-        // Step 1: map location to the preview coordinates
-        val previewLocation = RectF(
-            location.left * view_finder.width,
-            location.top * view_finder.height,
-            location.right * view_finder.width,
-            location.bottom * view_finder.height
-        )
-
-        // Step 2: compensate for camera sensor orientation and mirroring
-        val isFrontFacing = lensFacing == CameraSelector.LENS_FACING_FRONT
-        val correctedLocation = if (isFrontFacing) {
-            RectF(
-                view_finder.width - previewLocation.right,
-                previewLocation.top,
-                view_finder.width - previewLocation.left,
-                previewLocation.bottom)
-        } else {
-            previewLocation
-        }
-
-        // Step 3: compensate for 1:1 to 4:3 aspect ratio conversion + small margin
-        val margin = 0.1f
-        val requestedRatio = 4f / 3f
-        val midX = (correctedLocation.left + correctedLocation.right) / 2f
-        val midY = (correctedLocation.top + correctedLocation.bottom) / 2f
-        return if (view_finder.width < view_finder.height) {
-            RectF(
-                midX - (1f + margin) * requestedRatio * correctedLocation.width() / 2f,
-                midY - (1f - margin) * correctedLocation.height() / 2f,
-                midX + (1f + margin) * requestedRatio * correctedLocation.width() / 2f,
-                midY + (1f - margin) * correctedLocation.height() / 2f
-            )
-        } else {
-            RectF(
-                midX - (1f - margin) * correctedLocation.width() / 2f,
-                midY - (1f + margin) * requestedRatio * correctedLocation.height() / 2f,
-                midX + (1f - margin) * correctedLocation.width() / 2f,
-                midY + (1f + margin) * requestedRatio * correctedLocation.height() / 2f
-            )
+    override fun onDestroy() {
+        // Stop the threads of the detection pipeline
+        pipeline.close()
+        // Release the interpreters once no stage can run inference on them anymore. This runs
+        // after the task that created the detector, on a thread that may wait for the stages
+        modelExecutor.execute {
+            pipeline.join()
+            detector = null
+            interpreterFactory.close()
         }
+        modelExecutor.shutdown()
+        // The converter only exists if a frame was frozen
+        if (lazyConverter.isInitialized()) converter.shutdown()
+        super.onDestroy()
     }
 
     override fun onResume() {
@@ -326,7 +437,19 @@ class CameraActivity : AppCompatActivity() {
         private val TAG = CameraActivity::class.java.simpleName
 
         private const val ACCURACY_THRESHOLD = 0.5f
-        private const val MODEL_PATH = "coco_ssd_mobilenet_v1_1.0_quant.tflite"
-        private const val LABELS_PATH = "coco_ssd_mobilenet_v1_1.0_labels.txt"
+
+        /** Detections under this score are ignored, even to keep an existing track going */
+        private const val MIN_DETECTION_SCORE = 0.3f
+
+        /** Frames between two runs of the detector while an object is tracked */
+        private const val DETECTION_INTERVAL = 5
+
+        /** Tracking confidence under which the detector runs again right away */
+        private const val REDETECT_THRESHOLD = 0.6f
+
+        /** Width and height of the luma images used for tracking */
+        private const val TRACKING_SIZE = 64
+        internal const val MODEL_PATH = "coco_ssd_mobilenet_v1_1.0_quant.tflite"
+        internal const val LABELS_PATH = "coco_ssd_mobilenet_v1_1.0_labels.txt"
     }
 }
\ No newline at end of file
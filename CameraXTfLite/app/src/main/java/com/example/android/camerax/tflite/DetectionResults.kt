@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+import com.example.android.camerax.tflite.ObjectDetectionHelper.ObjectPrediction
+
+/**
+ * Caller owned storage for the output of one run of an object detection model, filled in place
+ * by [ObjectDetectionHelper.predict] so that no memory is allocated per frame.
+ *
+ * Detection `i` out of [count] has its box in [boxes] at `4 * i`, as [0, 1] floats in
+ * left, top, right, bottom order, its score in [scores] and its class in [classIds] and [labels].
+ * Callers that prefer objects can use [predictions], which recycles the same instances.
+ * Instances are not thread-safe, but each thread or pipeline slot can own one.
+ */
+class DetectionResults(val capacity: Int = ObjectDetectionHelper.OBJECT_COUNT) {
+
+    /** Number of valid detections */
+    var count = 0
+        internal set
+
+    val boxes = FloatArray(capacity * 4)
+    val scores = FloatArray(capacity)
+    val classIds = IntArray(capacity)
+    val labels = arrayOfNulls<String>(capacity)
+
+    // Recycled objects returned by predictions, allocated on first use
+    private val pool by lazy { Array(capacity) { ObjectPrediction() } }
+    private val poolView by lazy { ArrayList<ObjectPrediction>(capacity) }
+
+    /**
+     * Writes into [indices] the indices of the detections with the [k] highest scores that are
+     * at least [minScore], best first, and returns how many were written.
+     */
+    fun top(k: Int, indices: IntArray, minScore: Float = 0f): Int {
+        require(k <= indices.size) { "Not enough room for $k indices" }
+        var selected = 0
+        for (i in 0 until count) {
+            val score = scores[i]
+            if (score < minScore) continue
+
+            // Insertion into the sorted selection, dropping its last entry when it is full
+            var position = minOf(selected, k)
+            while (position > 0 && scores[indices[position - 1]] < score) position--
+            if (position == k) continue
+            val end = minOf(selected, k - 1)
+            for (j in end downTo position + 1) indices[j] = indices[j - 1]
+            indices[position] = i
+            if (selected < k) selected++
+        }
+        return selected
+    }
+
+    /** Returns the index of the detection with the highest score, or -1 if there are none */
+    fun best(): Int {
+        var best = -1
+        for (i in 0 until count) if (best == -1 || scores[i] > scores[best]) best = i
+        return best
+    }
+
+    /**
+     * Object view of the detections. The returned list and its elements are recycled, so they
+     * are only valid until these results are filled again.
+     */
+    val predictions: List<ObjectPrediction>
+        get() {
+            poolView.clear()
+            for (i in 0 until count) poolView.add(prediction(i, pool[i]))
+            return poolView
+        }
+
+    /** Copies detection [index] into [out], e.g. to hand it over to another thread */
+    fun prediction(index: Int, out: ObjectPrediction): ObjectPrediction {
+        out.location.set(
+            boxes[4 * index], boxes[4 * index + 1], boxes[4 * index + 2], boxes[4 * index + 3])
+        out.label = labels[index] ?: ""
+        out.score = scores[index]
+        return out
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+/**
+ * Turns the raw detections of consecutive frames into stable tracks for display.
+ *
+ * Each call to [update] first applies class-aware non-maximum suppression to the detections
+ * scoring at least [minScore]: a detection is dropped if it overlaps a better one of the same
+ * class by more than [nmsThreshold] intersection over union. Remaining detections are associated
+ * with the existing track of the same class they overlap the most, if by at least
+ * [matchThreshold], and blended into its box and score with an exponential moving average of
+ * weight [smoothingFactor]. Other detections start new tracks. Tracks that get no detection
+ * have their score decayed and are dropped after [maxMissedFrames] frames, which keeps boxes
+ * on screen through the occasional missed detection.
+ *
+ * Tracks are preallocated, so updates don't allocate. Instances are not thread-safe.
+ */
+class DetectionSmoother(
+    val capacity: Int = ObjectDetectionHelper.OBJECT_COUNT,
+    private val minScore: Float = 0f,
+    private val nmsThreshold: Float = DEFAULT_NMS_THRESHOLD,
+    private val matchThreshold: Float = DEFAULT_MATCH_THRESHOLD,
+    private val smoothingFactor: Float = DEFAULT_SMOOTHING_FACTOR,
+    private val maxMissedFrames: Int = DEFAULT_MAX_MISSED_FRAMES
+) {
+    /** An object followed across frames */
+    class Track {
+        /** Identifier, unique for the lifetime of the smoother */
+        var id = 0L
+            internal set
+        var classId = 0
+            internal set
+        var label: String? = null
+            internal set
+
+        /** Smoothed box as left, top, right, bottom */
+        val box = FloatArray(4)
+
+        /** Smoothed score */
+        var score = 0f
+            internal set
+
+        /** Number of consecutive frames without a matching detection */
+        var missedFrames = 0
+            internal set
+
+        internal var active = false
+        internal var matched = false
+    }
+
+    private val tracks = Array(capacity) { Track() }
+    private val kept = IntArray(capacity)
+    private val suppressed = BooleanArray(capacity)
+    private var nextId = 1L
+
+    /** Number of tracks currently followed */
+    val trackCount get() = tracks.count { it.active }
+
+    /** Applies the detections of a new frame to the tracks */
+    fun update(results: DetectionResults) {
+        tracks.forEach { it.matched = false }
+
+        val count = suppress(results, kept)
+        for (k in 0 until count) {
+            val i = kept[k]
+            val track = match(results, i)
+            if (track != null) {
+                blend(track, results, i)
+            } else {
+                start(results, i)
+            }
+        }
+
+        for (track in tracks) {
+            if (!track.active || track.matched) continue
+            track.missedFrames++
+            track.score *= 1f - smoothingFactor
+            if (track.missedFrames > maxMissedFrames) track.active = false
+        }
+    }
+
+    /** Returns the track with the highest smoothed score, or null if there is none */
+    fun best(): Track? {
+        var best: Track? = null
+        for (track in tracks) {
+            if (track.active && (best == null || track.score > best.score)) best = track
+        }
+        return best
+    }
+
+    /** Forgets all tracks, e.g. when the camera is switched */
+    fun reset() = tracks.forEach { it.active = false }
+
+    /**
+     * Writes into [indices] the indices of the detections that survive class-aware non-maximum
+     * suppression, best first, and returns how many there are
+     */
+    internal fun suppress(results: DetectionResults, indices: IntArray): Int {
+        val candidates = results.top(minOf(results.count, indices.size), indices, minScore)
+        suppressed.fill(false)
+        var count = 0
+        for (c in 0 until candidates) {
+            if (suppressed[c]) continue
+            val i = indices[c]
+            indices[count++] = i
+            for (other in c + 1 until candidates) {
+                val j = indices[other]
+                if (!suppressed[other] && results.classIds[i] == results.classIds[j] &&
+                    iou(results.boxes, 4 * i, results.boxes, 4 * j) > nmsThreshold) {
+                    suppressed[other] = true
+                }
+            }
+        }
+        return count
+    }
+
+    /** Returns the unmatched track of the same class that detection [i] overlaps the most */
+    private fun match(results: DetectionResults, i: Int): Track? {
+        var best: Track? = null
+        var bestIou = matchThreshold
+        for (track in tracks) {
+            if (!track.active || track.matched || track.classId != results.classIds[i]) continue
+            val iou = iou(track.box, 0, results.boxes, 4 * i)
+            if (iou >= bestIou) {
+                best = track
+                bestIou = iou
+            }
+        }
+        return best
+    }
+
+    private fun blend(track: Track, results: DetectionResults, i: Int) {
+        for (j in 0 until 4) {
+            track.box[j] += smoothingFactor * (results.boxes[4 * i + j] - track.box[j])
+        }
+        track.score += smoothingFactor * (results.scores[i] - track.score)
+        track.label = results.labels[i]
+        track.missedFrames = 0
+        track.matched = true
+    }
+
+    /** Starts a track in a free slot, or in place of the weakest track if all are taken */
+    private fun start(results: DetectionResults, i: Int) {
+        var slot: Track? = null
+        for (track in tracks) {
+            if (!track.active) {
+                slot = track
+                break
+            }
+            if (!track.matched && (slot == null || track.score < slot.score)) slot = track
+        }
+        if (slot == null) return
+
+        slot.id = nextId++
+        slot.classId = results.classIds[i]
+        slot.label = results.labels[i]
+        System.arraycopy(results.boxes, 4 * i, slot.box, 0, 4)
+        slot.score = results.scores[i]
+        slot.missedFrames = 0
+        slot.active = true
+        slot.matched = true
+    }
+
+    companion object {
+        const val DEFAULT_NMS_THRESHOLD = 0.5f
+        const val DEFAULT_MATCH_THRESHOLD = 0.3f
+        const val DEFAULT_SMOOTHING_FACTOR = 0.5f
+        const val DEFAULT_MAX_MISSED_FRAMES = 3
+
+        /** Intersection over union of the boxes at offsets [i] of [a] and [j] of [b] */
+        internal fun iou(a: FloatArray, i: Int, b: FloatArray, j: Int): Float {
+            val width = minOf(a[i + 2], b[j + 2]) - maxOf(a[i], b[j])
+            val height = minOf(a[i + 3], b[j + 3]) - maxOf(a[i + 1], b[j + 1])
+            if (width <= 0f || height <= 0f) return 0f
+            val intersection = width * height
+            val union = (a[i + 2] - a[i]) * (a[i + 3] - a[i + 1]) +
+                (b[j + 2] - b[j]) * (b[j + 3] - b[j + 1]) - intersection
+            return if (union <= 0f) 0f else intersection / union
+        }
+    }
+}
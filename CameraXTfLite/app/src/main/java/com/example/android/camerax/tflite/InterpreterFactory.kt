@@ -0,0 +1,220 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+import android.os.Build
+import android.util.Log
+import org.tensorflow.lite.Delegate
+import org.tensorflow.lite.Interpreter
+import org.tensorflow.lite.nnapi.NnApiDelegate
+import java.io.Closeable
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Arrays
+import java.util.Locale
+import kotlin.random.Random
+
+/**
+ * Creates interpreters for a [model] on the backend that runs it fastest on this device.
+ *
+ * The fastest backend depends on the device and the model: NNAPI drivers are much faster than
+ * the CPU on some devices and much slower on others. [select] runs the model with synthetic
+ * inputs on each of the [backends] that can be created, measures the median latency of each and
+ * keeps the fastest one, already warmed up. Since this takes from tens of milliseconds to a few
+ * seconds, it should run on a background thread before the first frame needs inference.
+ */
+class InterpreterFactory(
+    private val model: ByteBuffer,
+    private val backends: List<Backend> = defaultBackends()
+) {
+    /** A way of running the model, creating the delegate it needs if any */
+    class Backend(
+        val name: String,
+        private val threads: Int,
+        private val useXnnpack: Boolean = false,
+        private val delegateFactory: (() -> Delegate)? = null
+    ) {
+        internal fun create(model: ByteBuffer): BackendInterpreter {
+            val delegate = delegateFactory?.invoke()
+            val options = Interpreter.Options().setNumThreads(threads).setUseXNNPACK(useXnnpack)
+            delegate?.let { options.addDelegate(it) }
+            return try {
+                BackendInterpreter(Interpreter(model, options), delegate)
+            } catch (exc: RuntimeException) {
+                (delegate as? AutoCloseable)?.close()
+                throw exc
+            }
+        }
+
+        override fun toString() = name
+    }
+
+    /** Outcome of [select], the backend chosen and the latency measured for each backend */
+    class Selection(
+        val backend: Backend,
+        val latencyNanos: Long,
+        val latencies: Map<Backend, Long>
+    ) {
+        override fun toString() = String.format(Locale.US, "%s (%.2f ms) out of %s",
+            backend, latencyNanos / 1e6, latencies.entries.joinToString {
+                String.format(Locale.US, "%s %.2f ms", it.key, it.value / 1e6)
+            })
+    }
+
+    /** An interpreter along with the delegate it owns, both closed together */
+    internal class BackendInterpreter(
+        val interpreter: Interpreter,
+        private val delegate: Delegate?
+    ) : Closeable {
+        override fun close() {
+            interpreter.close()
+            (delegate as? AutoCloseable)?.close()
+        }
+    }
+
+    /** Interpreters created on the selected backend, including the warmed up benchmark winner */
+    private val created = ArrayList<BackendInterpreter>()
+    private var spare: BackendInterpreter? = null
+
+    /** Result of [select], null until it ran */
+    @Volatile var selection: Selection? = null
+        private set
+
+    /**
+     * Benchmarks every backend and keeps the fastest one. Backends that fail to initialize or
+     * to run the model, e.g. NNAPI without a driver for some of its ops, are skipped.
+     */
+    @Synchronized fun select(): Selection {
+        selection?.let { return it }
+        val latencies = LinkedHashMap<Backend, Long>()
+        var best: BackendInterpreter? = null
+        var bestBackend: Backend? = null
+        for (backend in backends) {
+            val candidate = try {
+                backend.create(model)
+            } catch (exc: RuntimeException) {
+                Log.w(TAG, "Backend $backend is not available", exc)
+                continue
+            }
+            val latency = try {
+                measure(candidate.interpreter)
+            } catch (exc: RuntimeException) {
+                Log.w(TAG, "Backend $backend failed to run the model", exc)
+                candidate.close()
+                continue
+            }
+            latencies[backend] = latency
+            if (bestBackend == null || latency < latencies.getValue(bestBackend)) {
+                best?.close()
+                best = candidate
+                bestBackend = backend
+            } else {
+                candidate.close()
+            }
+        }
+        checkNotNull(bestBackend) { "No backend can run the model" }
+
+        spare = best
+        created.add(best!!)
+        return Selection(bestBackend, latencies.getValue(bestBackend), latencies).also {
+            Log.i(TAG, "Selected backend $it")
+            selection = it
+        }
+    }
+
+    /**
+     * Returns a warmed up interpreter on the selected backend, running [select] first if needed.
+     * The first call returns the interpreter used for the benchmark. Interpreters are closed
+     * along with the factory.
+     */
+    @Synchronized fun create(): Interpreter {
+        val backend = select().backend
+        spare?.let {
+            spare = null
+            return it.interpreter
+        }
+        return backend.create(model).also {
+            created.add(it)
+            warmUp(it.interpreter)
+        }.interpreter
+    }
+
+    /** Closes every interpreter created by this factory */
+    @Synchronized fun close() {
+        created.forEach { it.close() }
+        created.clear()
+        spare = null
+    }
+
+    /** Returns the median latency of the model on [interpreter] after warming it up */
+    private fun measure(interpreter: Interpreter): Long {
+        val (inputs, outputs) = syntheticIO(interpreter)
+        repeat(WARMUP_RUNS) { interpreter.runForMultipleInputsOutputs(inputs, outputs) }
+        val latencies = LongArray(MEASURED_RUNS) {
+            val start = System.nanoTime()
+            interpreter.runForMultipleInputsOutputs(inputs, outputs)
+            System.nanoTime() - start
+        }
+        Arrays.sort(latencies)
+        return latencies[MEASURED_RUNS / 2]
+    }
+
+    private fun warmUp(interpreter: Interpreter) {
+        val (inputs, outputs) = syntheticIO(interpreter)
+        repeat(WARMUP_RUNS) { interpreter.runForMultipleInputsOutputs(inputs, outputs) }
+    }
+
+    /** Random inputs and raw output buffers sized after the tensors of [interpreter] */
+    private fun syntheticIO(interpreter: Interpreter): Pair<Array<Any>, Map<Int, Any>> {
+        val random = Random(0)
+        val inputs = Array<Any>(interpreter.inputTensorCount) {
+            val bytes = ByteArray(interpreter.getInputTensor(it).numBytes())
+            random.nextBytes(bytes)
+            directBuffer(bytes.size).put(bytes).apply { rewind() }
+        }
+        val outputs = HashMap<Int, Any>()
+        for (i in 0 until interpreter.outputTensorCount) {
+            outputs[i] = directBuffer(interpreter.getOutputTensor(i).numBytes())
+        }
+        return Pair(inputs, outputs)
+    }
+
+    private fun directBuffer(size: Int) =
+        ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder())
+
+    companion object {
+        private val TAG = InterpreterFactory::class.java.simpleName
+
+        private const val WARMUP_RUNS = 3
+        private const val MEASURED_RUNS = 10
+
+        /** Past four threads inference rarely gets faster, and steals cores from the camera */
+        private const val MAX_THREADS = 4
+
+        /** CPU with and without XNNPACK, plus NNAPI on Android versions where it is usable */
+        fun defaultBackends(): List<Backend> {
+            val threads = minOf(MAX_THREADS, Runtime.getRuntime().availableProcessors())
+            val backends = mutableListOf(
+                Backend("CPU x$threads", threads),
+                Backend("XNNPACK x$threads", threads, useXnnpack = true))
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                backends.add(Backend("NNAPI", 1, delegateFactory = { NnApiDelegate() }))
+            }
+            return backends
+        }
+    }
+}
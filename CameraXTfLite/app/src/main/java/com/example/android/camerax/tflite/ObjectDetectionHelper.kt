@@ -17,52 +17,215 @@
 package com.example.android.camerax.tflite
 
 import android.graphics.RectF
+import android.util.Log
+import org.tensorflow.lite.DataType
 import org.tensorflow.lite.Interpreter
+import org.tensorflow.lite.Tensor
 import org.tensorflow.lite.support.image.TensorImage
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 
 /**
- * Helper class used to communicate between our app and the TF object detection model
+ * Helper class used to communicate between our app and a TF object detection model with the
+ * outputs of the TFLite detection post-processing op, like SSD MobileNet: boxes, classes, scores
+ * and number of detections.
+ *
+ * Input size and type, the number of detections and the type and quantization of each output are
+ * read from the model, so both quantized and float models work without code changes. Float
+ * inputs are expected to be normalized with [inputMean] and [inputStd]. Class indices are offset
+ * by [labelOffset] to find their label, which skips the background class that label files of
+ * SSD MobileNet v1 start with.
  */
-class ObjectDetectionHelper(private val tflite: Interpreter, private val labels: List<String>) {
+class ObjectDetectionHelper(
+    private val tflite: Interpreter,
+    private val labels: List<String>,
+    private val labelOffset: Int = if (labels.firstOrNull() == BACKGROUND_LABEL) 1 else 0,
+    override val inputMean: Float = DEFAULT_INPUT_MEAN,
+    override val inputStd: Float = DEFAULT_INPUT_STD
+) : ObjectDetector {
 
-    /** Abstraction object that wraps a prediction output in an easy to parse way */
-    data class ObjectPrediction(val location: RectF, val label: String, val score: Float)
+    /**
+     * Abstraction object that wraps a prediction output in an easy to parse way. Fields are
+     * mutable so that [DetectionResults] can recycle instances, which is why this is not a data
+     * class: its equality and hash code would change as instances are reused
+     */
+    class ObjectPrediction(
+        val location: RectF = RectF(),
+        var label: String = "",
+        var score: Float = 0f
+    )
 
-    private val locations = arrayOf(Array(OBJECT_COUNT) { FloatArray(4) })
-    private val labelIndices =  arrayOf(FloatArray(OBJECT_COUNT))
-    private val scores =  arrayOf(FloatArray(OBJECT_COUNT))
+    /** Raw output tensor, read as floats whatever its type */
+    private class Output(tensor: Tensor) {
+        val type: DataType = tensor.dataType()
+        private val scale = tensor.quantizationParams().scale
+        private val zeroPoint = tensor.quantizationParams().zeroPoint
+        var buffer: ByteBuffer = allocate(tensor.numBytes())
 
-    private val outputBuffer = mapOf(
-        0 to locations,
-        1 to labelIndices,
-        2 to scores,
-        3 to FloatArray(1)
-    )
+        /** Returns element [index], dequantized if needed */
+        fun get(index: Int): Float = when (type) {
+            DataType.FLOAT32 -> buffer.getFloat(4 * index)
+            DataType.UINT8 -> ((buffer.get(index).toInt() and 0xFF) - zeroPoint) * scale
+            DataType.INT8 -> (buffer.get(index) - zeroPoint) * scale
+            else -> throw IllegalStateException("Unsupported output type $type")
+        }
 
-    val predictions get() = (0 until OBJECT_COUNT).map {
-        ObjectPrediction(
+        fun resize(tensor: Tensor) {
+            if (buffer.capacity() != tensor.numBytes()) buffer = allocate(tensor.numBytes())
+        }
+    }
 
-            // The locations are an array of [0, 1] floats for [top, left, bottom, right]
-            location = locations[0][it].let {
-                RectF(it[1], it[0], it[3], it[2])
-            },
-
-            // SSD Mobilenet V1 Model assumes class 0 is background class
-            // in label file and class labels start from 1 to number_of_classes + 1,
-            // while outputClasses correspond to class index from 0 to number_of_classes
-            label = labels[1 + labelIndices[0][it].toInt()],
-
-            // Score is a single value of [0, 1]
-            score = scores[0][it]
-        )
+    // Shape of the input of a single frame, whose first dimension is the batch size
+    private val frameShape = tflite.getInputTensor(0).shape()
+
+    override val inputHeight = frameShape[1]
+    override val inputWidth = frameShape[2]
+    override val inputType: DataType = tflite.getInputTensor(0).dataType().also {
+        require(it == DataType.UINT8 || it == DataType.FLOAT32) { "Unsupported input type $it" }
+    }
+    override val frameInputSize = tflite.getInputTensor(0).numBytes() / frameShape[0]
+
+    // Locations, classes, scores and number of detections, in the order of the model outputs
+    private val outputs = List(OUTPUT_COUNT) { Output(tflite.getOutputTensor(it)) }
+    private val locations = outputs[0]
+    private val classes = outputs[1]
+    private val scores = outputs[2]
+    private val detectionCount = outputs[3]
+
+    /** Number of detections of each frame, the second dimension of the locations output */
+    override val maxDetections = tflite.getOutputTensor(0).shape()[1]
+
+    private val inputs = arrayOfNulls<Any>(1)
+    private val outputBuffer = HashMap<Int, Any>().apply {
+        outputs.forEachIndexed { i, output -> put(i, output.buffer) }
     }
 
-    fun predict(image: TensorImage): List<ObjectPrediction> {
-        tflite.runForMultipleInputsOutputs(arrayOf(image.buffer), outputBuffer)
+    // Batch size the interpreter input is currently resized to, with outputs for every frame
+    private var batchSize = frameShape[0]
+
+    /** Whether the model ran with more than one frame at a time, cleared after a failure */
+    var batchingSupported = true
+        private set
+
+    /** Results of the last run of the allocating API */
+    private val lastResults = DetectionResults(maxDetections)
+
+    /** Predictions of the last run, allocated anew on each call, see [DetectionResults] */
+    val predictions get() = (0 until lastResults.count).map {
+        lastResults.prediction(it, ObjectPrediction())
+    }
+
+    fun predict(image: TensorImage): List<ObjectPrediction> = predict(image.buffer)
+
+    /** Runs the model on an [input] buffer already laid out like the input tensor */
+    fun predict(input: ByteBuffer): List<ObjectPrediction> {
+        predict(input, lastResults)
         return predictions
     }
 
+    /**
+     * Runs the model on [input] like [predict], but writes the detections into caller owned
+     * [results] without allocating any memory
+     */
+    override fun predict(input: ByteBuffer, results: DetectionResults) {
+        resizeBatch(1)
+        inputs[0] = input
+        tflite.runForMultipleInputsOutputs(inputs, outputBuffer)
+        fill(results, 0)
+    }
+
+    /** Allocates a direct buffer holding the input of [frames] frames, one after the other */
+    fun allocateBatch(frames: Int): ByteBuffer = allocate(frames * frameInputSize)
+
+    /**
+     * Runs the model once on a [batch] of `results.size` frames, laid out like the buffers of
+     * [allocateBatch], and writes the detections of each frame into the matching [results].
+     *
+     * The interpreter input is resized to `[N, H, W, 3]` when the batch size changes, which is
+     * costly, so batches should keep the same size. Models or delegates that can't run batches,
+     * like ones whose post-processing only handles a single frame, fall back to running the
+     * frames one at a time, see [batchingSupported].
+     */
+    fun predictBatch(batch: ByteBuffer, results: List<DetectionResults>) {
+        val frames = results.size
+        require(frames > 0) { "Batch is empty" }
+        require(batch.capacity() >= frames * frameInputSize) { "Batch buffer is too small" }
+
+        if (frames > 1 && batchingSupported) {
+            try {
+                resizeBatch(frames)
+                inputs[0] = batch.rewind()
+                tflite.runForMultipleInputsOutputs(inputs, outputBuffer)
+                results.forEachIndexed { i, it -> fill(it, i) }
+                return
+            } catch (exc: RuntimeException) {
+                Log.w(TAG, "Batched inference failed, running frames one at a time", exc)
+                batchingSupported = false
+            }
+        }
+
+        // Each frame is a slice of the batch buffer
+        results.forEachIndexed { i, it ->
+            val frame = batch.duplicate().apply {
+                position(i * frameInputSize)
+                limit((i + 1) * frameInputSize)
+            }
+            predict(frame.slice().order(batch.order()), it)
+        }
+    }
+
+    /** Resizes the interpreter input to [frames] frames, along with the output buffers */
+    private fun resizeBatch(frames: Int) {
+        if (frames == batchSize) return
+
+        // Updated first so that a failed resize is undone by the next single frame run
+        batchSize = frames
+        tflite.resizeInput(0, frameShape.copyOf().also { it[0] = frames })
+        tflite.allocateTensors()
+        outputs.forEachIndexed { i, output ->
+            output.resize(tflite.getOutputTensor(i))
+            outputBuffer[i] = output.buffer
+        }
+    }
+
+    /** Copies the outputs of frame [frame] of the last run into [results] */
+    private fun fill(results: DetectionResults, frame: Int) {
+        val count = minOf(detectionCount.get(frame).toInt(), maxDetections, results.capacity)
+        val first = frame * maxDetections
+        for (i in 0 until count) {
+            // The locations are an array of [0, 1] floats for [top, left, bottom, right]
+            val location = 4 * (first + i)
+            results.boxes[4 * i] = locations.get(location + 1)
+            results.boxes[4 * i + 1] = locations.get(location)
+            results.boxes[4 * i + 2] = locations.get(location + 3)
+            results.boxes[4 * i + 3] = locations.get(location + 2)
+            results.classIds[i] = classes.get(first + i).toInt()
+            results.labels[i] = label(results.classIds[i])
+            results.scores[i] = scores.get(first + i)
+        }
+        results.count = count
+    }
+
+    /** Label of class [classId], or an empty string for classes missing from the label file */
+    private fun label(classId: Int) = labels.getOrElse(labelOffset + classId) { "" }
+
     companion object {
+        private val TAG = ObjectDetectionHelper::class.java.simpleName
+
+        /** Number of detections of SSD MobileNet v1, the default capacity of results */
         const val OBJECT_COUNT = 10
+
+        /** Number of outputs of the TFLite detection post-processing op */
+        private const val OUTPUT_COUNT = 4
+
+        /** First line of label files whose first class is the background */
+        private const val BACKGROUND_LABEL = "???"
+
+        /** Float models are typically trained on inputs normalized to [-1, 1] */
+        const val DEFAULT_INPUT_MEAN = 127.5f
+        const val DEFAULT_INPUT_STD = 127.5f
+
+        private fun allocate(size: Int) =
+            ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder())
     }
-}
\ No newline at end of file
+}
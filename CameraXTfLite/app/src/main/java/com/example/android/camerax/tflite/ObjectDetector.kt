@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+import org.tensorflow.lite.DataType
+import java.nio.ByteBuffer
+
+/**
+ * An object detection model, described by the layout of the input it expects so that frames can
+ * be prepared for it without knowing which model it is.
+ */
+interface ObjectDetector {
+
+    /** Width of the RGB input image in pixels */
+    val inputWidth: Int
+
+    /** Height of the RGB input image in pixels */
+    val inputHeight: Int
+
+    /** Type of each channel value in the input, either [DataType.UINT8] or [DataType.FLOAT32] */
+    val inputType: DataType
+
+    /**
+     * Mean and standard deviation that float inputs are normalized with, i.e. each channel value
+     * c in [0, 255] is fed as (c - mean) / std. Unused for UINT8 inputs.
+     */
+    val inputMean: Float
+    val inputStd: Float
+
+    /** Number of bytes of the input of a single frame */
+    val frameInputSize: Int
+
+    /** Largest number of detections a single frame can produce */
+    val maxDetections: Int
+
+    /**
+     * Runs the model on [input], laid out as described by the properties above in native byte
+     * order, and writes the detections into [results] without allocating any memory
+     */
+    fun predict(input: ByteBuffer, results: DetectionResults)
+}
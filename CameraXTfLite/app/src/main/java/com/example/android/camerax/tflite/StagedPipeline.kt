@@ -0,0 +1,166 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+import java.util.Locale
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs the stages of a frame processing pipeline concurrently, so that while a frame is in one
+ * stage the next frame can already be in the stage before it. Throughput is then bounded by the
+ * slowest stage rather than by the sum of all stages.
+ *
+ * Frames are carried by a fixed set of slots of type [T] created with [slotFactory], which hold
+ * all the per-frame buffers and are recycled once a frame leaves the pipeline. Frames enter the
+ * pipeline through [submit], which fills a slot on the calling thread, typically the camera
+ * analyzer thread. Each of the [stages] then runs on a thread of its own fed by a bounded queue
+ * of [queueCapacity] frames. When a queue is full the oldest frame waiting in it is dropped,
+ * since for a live camera feed a stale frame is worth less than a fresh one.
+ *
+ * After the last stage, each frame is kept as the latest result until a newer one replaces it,
+ * see [withLatest]. Average processing time and drops of [submit], named [sourceName], and of
+ * each stage are tracked in [stats].
+ */
+class StagedPipeline<T : Any>(
+    sourceName: String,
+    private val stages: List<Stage<T>>,
+    queueCapacity: Int = 1,
+    slotFactory: () -> T
+) {
+    /** A named step of the pipeline, which processes the frame held in a slot in place */
+    class Stage<T>(val name: String, val process: (T) -> Unit)
+
+    /** Statistics of a stage, safe to read from any thread */
+    class StageStats(val name: String) {
+        /** Exponential moving average of the processing time of the stage in nanoseconds */
+        @Volatile var averageNanos: Double = 0.0
+            internal set
+
+        /** Number of frames fully processed by the stage */
+        @Volatile var processed: Long = 0L
+            internal set
+
+        /** Number of frames dropped before reaching the stage, due to backpressure */
+        val dropped = AtomicLong()
+
+        internal fun record(nanos: Long) {
+            averageNanos = if (processed == 0L) nanos.toDouble() else
+                averageNanos + SMOOTHING_FACTOR * (nanos - averageNanos)
+            processed++
+        }
+    }
+
+    init {
+        require(stages.isNotEmpty()) { "Pipeline needs at least one stage" }
+        require(queueCapacity > 0) { "Queue capacity must be positive, got $queueCapacity" }
+    }
+
+    /** Statistics of [submit] followed by those of each stage */
+    val stats = listOf(StageStats(sourceName)) + stages.map { StageStats(it.name) }
+
+    // Enough slots for a frame being submitted, a full queue plus a frame in progress for every
+    // stage, and the latest result
+    private val slotCount = 2 + stages.size * (queueCapacity + 1)
+    private val freeSlots = ArrayBlockingQueue<T>(slotCount).apply {
+        repeat(slotCount) { add(slotFactory()) }
+    }
+    private val queues = List(stages.size) { ArrayBlockingQueue<T>(queueCapacity) }
+    private val latestLock = Any()
+    private var latest: T? = null
+
+    private val threads = List(stages.size) { i ->
+        Thread({ runStage(i) }, "$TAG-${stages[i].name}").apply { start() }
+    }
+
+    /**
+     * Takes a free slot, fills it with [source] on the calling thread and hands it over to the
+     * first stage. Returns false if no slot was available, in which case the frame is dropped
+     * without calling [source].
+     */
+    fun submit(source: (T) -> Unit): Boolean {
+        val slot = freeSlots.poll()
+        if (slot == null) {
+            stats[0].dropped.incrementAndGet()
+            return false
+        }
+        val start = System.nanoTime()
+        source(slot)
+        stats[0].record(System.nanoTime() - start)
+        forward(0, slot)
+        return true
+    }
+
+    /**
+     * Runs [block] on the last frame that went through all the stages, if any. The frame cannot
+     * be recycled while [block] runs, but newer frames keep flowing through the pipeline.
+     */
+    fun <R> withLatest(block: (T) -> R): R? = synchronized(latestLock) { latest?.let(block) }
+
+    /** Returns the average time and drops of each stage, formatted for logging */
+    fun statsSummary(): String = stats.joinToString { String.format(Locale.US,
+        "%s %.2f ms (%d dropped)", it.name, it.averageNanos / 1e6, it.dropped.get()) }
+
+    /** Stops all stage threads, frames still in flight are discarded */
+    fun close() = threads.forEach { it.interrupt() }
+
+    /**
+     * Waits for the stage threads to exit after [close]. A stage that was processing a frame
+     * finishes it first, so this is needed before releasing resources that the stages use.
+     */
+    fun join() = threads.forEach { it.join() }
+
+    private fun runStage(index: Int) {
+        val queue = queues[index]
+        try {
+            while (true) {
+                val slot = queue.take()
+                val start = System.nanoTime()
+                stages[index].process(slot)
+                stats[index + 1].record(System.nanoTime() - start)
+                forward(index + 1, slot)
+            }
+        } catch (exc: InterruptedException) {
+            // The pipeline was closed
+        }
+    }
+
+    /** Hands a slot over to the stage at [index], or makes it the latest result after the last */
+    private fun forward(index: Int, slot: T) {
+        if (index == stages.size) {
+            val previous = synchronized(latestLock) { latest.also { latest = slot } }
+            previous?.let { freeSlots.add(it) }
+            return
+        }
+
+        // Make room for the new frame by dropping the oldest one waiting for the stage
+        val queue = queues[index]
+        while (!queue.offer(slot)) {
+            queue.poll()?.let {
+                stats[index + 1].dropped.incrementAndGet()
+                freeSlots.add(it)
+            }
+        }
+    }
+
+    companion object {
+        private val TAG = StagedPipeline::class.java.simpleName
+
+        /** Weight of the newest sample in the moving average of processing times */
+        private const val SMOOTHING_FACTOR = 0.1
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+/**
+ * Follows a box from frame to frame by template matching on small [width] by [height] luma
+ * images, e.g. produced by `YuvToTensorPreprocessor.processLuma`.
+ *
+ * [start] copies the pixels under the box as the template. Each call to [update] then searches
+ * the translations of up to [searchRadius] pixels around the last position for the one with the
+ * smallest mean absolute difference to the template, and moves the box there. Boxes are in
+ * [0, 1] coordinates of the luma image, like the locations of the detector. Nothing is allocated
+ * after construction.
+ */
+class TemplateTracker(
+    val width: Int,
+    val height: Int,
+    private val searchRadius: Int = DEFAULT_SEARCH_RADIUS
+) {
+    /** Tracked box as left, top, right, bottom */
+    val box = FloatArray(4)
+
+    /**
+     * Quality of the last match, from 1 for a perfect match down to 0 when the mean absolute
+     * difference reaches [MAX_MEAN_DIFFERENCE]
+     */
+    var confidence = 0f
+        private set
+
+    /** Whether a box is being tracked, false until [start] and after the target is lost */
+    var isTracking = false
+        private set
+
+    private val template = ByteArray(width * height)
+    private var templateWidth = 0
+    private var templateHeight = 0
+
+    // Top left corner of the template in the last frame, in pixels
+    private var templateX = 0
+    private var templateY = 0
+
+    /**
+     * Starts tracking the box given by [left], [top], [right] and [bottom] in [luma]. Returns
+     * false, and stops tracking, if the box covers less than [MIN_TEMPLATE_SIZE] pixels in either
+     * direction.
+     */
+    fun start(luma: ByteArray, left: Float, top: Float, right: Float, bottom: Float): Boolean {
+        val x0 = (left * width).roundToInt().coerceIn(0, width)
+        val y0 = (top * height).roundToInt().coerceIn(0, height)
+        val x1 = (right * width).roundToInt().coerceIn(0, width)
+        val y1 = (bottom * height).roundToInt().coerceIn(0, height)
+        templateWidth = x1 - x0
+        templateHeight = y1 - y0
+        isTracking = templateWidth >= MIN_TEMPLATE_SIZE && templateHeight >= MIN_TEMPLATE_SIZE
+        if (!isTracking) {
+            confidence = 0f
+            return false
+        }
+
+        for (y in 0 until templateHeight) {
+            System.arraycopy(luma, (y0 + y) * width + x0, template, y * templateWidth,
+                templateWidth)
+        }
+        templateX = x0
+        templateY = y0
+        box[0] = left
+        box[1] = top
+        box[2] = right
+        box[3] = bottom
+        confidence = 1f
+        return true
+    }
+
+    /** Moves the box to its best match in [luma] and returns the [confidence] of the match */
+    fun update(luma: ByteArray): Float {
+        if (!isTracking) return 0f
+
+        var bestDifference = Long.MAX_VALUE
+        var bestX = templateX
+        var bestY = templateY
+        val minX = maxOf(0, templateX - searchRadius)
+        val maxX = minOf(width - templateWidth, templateX + searchRadius)
+        val minY = maxOf(0, templateY - searchRadius)
+        val maxY = minOf(height - templateHeight, templateY + searchRadius)
+        for (y in minY..maxY) for (x in minX..maxX) {
+            val difference = difference(luma, x, y, bestDifference)
+            // Ties go to the smallest move, which keeps a box still over flat areas
+            if (difference < bestDifference || (difference == bestDifference &&
+                        abs(x - templateX) + abs(y - templateY) <
+                        abs(bestX - templateX) + abs(bestY - templateY))) {
+                bestDifference = difference
+                bestX = x
+                bestY = y
+            }
+        }
+
+        val dx = (bestX - templateX).toFloat() / width
+        val dy = (bestY - templateY).toFloat() / height
+        box[0] += dx
+        box[1] += dy
+        box[2] += dx
+        box[3] += dy
+        templateX = bestX
+        templateY = bestY
+
+        val meanDifference = bestDifference.toFloat() / (templateWidth * templateHeight)
+        confidence = (1f - meanDifference / MAX_MEAN_DIFFERENCE).coerceAtLeast(0f)
+        if (confidence == 0f) isTracking = false
+        return confidence
+    }
+
+    /** Stops tracking, e.g. when the detector no longer finds the object */
+    fun stop() {
+        isTracking = false
+        confidence = 0f
+    }
+
+    /**
+     * Sum of absolute differences between the template and [luma] at [x], [y], which stops early
+     * once it exceeds [limit] since that position can't be the best one anymore
+     */
+    private fun difference(luma: ByteArray, x: Int, y: Int, limit: Long): Long {
+        var sum = 0L
+        for (row in 0 until templateHeight) {
+            val lumaOffset = (y + row) * width + x
+            val templateOffset = row * templateWidth
+            for (column in 0 until templateWidth) {
+                sum += abs((luma[lumaOffset + column].toInt() and 0xFF) -
+                    (template[templateOffset + column].toInt() and 0xFF))
+            }
+            if (sum > limit) return sum
+        }
+        return sum
+    }
+
+    companion object {
+        /** Fastest motion followed, in pixels of the luma image per frame */
+        const val DEFAULT_SEARCH_RADIUS = 4
+
+        /** Mean absolute difference at which a match is considered lost */
+        const val MAX_MEAN_DIFFERENCE = 48f
+
+        /** Smaller boxes hold too few pixels to match reliably */
+        const val MIN_TEMPLATE_SIZE = 4
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+import java.nio.ByteBuffer
+import java.util.Locale
+
+/**
+ * Runs the full detector only on some frames and tracks its top detection in between.
+ *
+ * The detector runs on the first frame, then again once [detectionInterval] frames went by since
+ * the last detection, and whenever the tracker loses the object or its confidence drops below
+ * [redetectThreshold]. While nothing scoring at least [minScore] is detected, the detector runs
+ * on every frame so that new objects are picked up right away. On the other frames only the
+ * [tracker] runs, on the luma of the frame, and the results hold the tracked box with the label
+ * and score of the last detection.
+ *
+ * Meant to be used from a single thread, like the inference stage of a pipeline.
+ */
+class TrackingDetector(
+    private val detect: (input: ByteBuffer, results: DetectionResults) -> Unit,
+    private val tracker: TemplateTracker,
+    val detectionInterval: Int = DEFAULT_DETECTION_INTERVAL,
+    val redetectThreshold: Float = DEFAULT_REDETECT_THRESHOLD,
+    private val minScore: Float = 0f
+) {
+    init {
+        require(detectionInterval > 0) { "Detection interval must be positive" }
+    }
+
+    // Detection being tracked
+    private var classId = 0
+    private var label: String? = null
+    private var score = 0f
+    private var framesSinceDetection = 0
+
+    /** Number of frames processed */
+    var frames = 0L
+        private set
+
+    /** Number of frames on which the detector ran */
+    var detections = 0L
+        private set
+
+    /** Fraction of the frames on which the detector ran */
+    val dutyCycle: Double get() = if (frames == 0L) 0.0 else detections.toDouble() / frames
+
+    /**
+     * Fills [results] for a frame, given both its model [input] and its [luma] image as expected
+     * by the tracker. Returns true if the detector ran on this frame.
+     */
+    fun process(input: ByteBuffer, luma: ByteArray, results: DetectionResults): Boolean {
+        frames++
+        framesSinceDetection++
+        if (tracker.isTracking && framesSinceDetection < detectionInterval &&
+            tracker.update(luma) >= redetectThreshold) {
+            results.boxes[0] = tracker.box[0]
+            results.boxes[1] = tracker.box[1]
+            results.boxes[2] = tracker.box[2]
+            results.boxes[3] = tracker.box[3]
+            results.classIds[0] = classId
+            results.labels[0] = label
+            results.scores[0] = score
+            results.count = 1
+            return false
+        }
+
+        detect(input, results)
+        detections++
+        framesSinceDetection = 0
+        val best = results.best()
+        if (best < 0 || results.scores[best] < minScore || !tracker.start(luma,
+                results.boxes[4 * best], results.boxes[4 * best + 1],
+                results.boxes[4 * best + 2], results.boxes[4 * best + 3])) {
+            tracker.stop()
+            return true
+        }
+        classId = results.classIds[best]
+        label = results.labels[best]
+        score = results.scores[best]
+        return true
+    }
+
+    override fun toString() = String.format(Locale.US,
+        "detector ran on %d of %d frames (%.1f%%)", detections, frames, dutyCycle * 100)
+
+    companion object {
+        const val DEFAULT_DETECTION_INTERVAL = 5
+        const val DEFAULT_REDETECT_THRESHOLD = 0.6f
+    }
+}
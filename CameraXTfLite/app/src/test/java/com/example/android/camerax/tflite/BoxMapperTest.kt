@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camerax.tflite
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+
+class BoxMapperTest {
+
+    private val boxes = floatArrayOf(
+        0.1f, 0.2f, 0.4f, 0.6f,
+        0.5f, 0.5f, 0.9f, 0.7f,
+        0f, 0f, 1f, 1f)
+
+    @Test
+    fun matchesStepByStepMappingInEveryConfiguration() {
+        val mapper = BoxMapper()
+        val sizes = listOf(1080 to 1440, 1440 to 1080)
+        for ((width, height) in sizes) for (mirrored in listOf(false, true)) {
+            mapper.configure(width, height, mirrored)
+            val mapped = FloatArray(boxes.size)
+            mapper.map(boxes, 0, mapped, 0, 3)
+            assertArrayEquals("${width}x$height mirrored $mirrored",
+                reference(width.toFloat(), height.toFloat(), mirrored), mapped, 1e-3f)
+        }
+    }
+
+    @Test
+    fun mapsInPlaceWithOffsets() {
+        val mapper = BoxMapper().apply { configure(1080, 1440, false) }
+        val expected = FloatArray(8).also { mapper.map(boxes, 4, it, 0, 2) }
+        val inPlace = boxes.copyOf()
+        mapper.map(inPlace, 4, inPlace, 4, 2)
+        assertArrayEquals(expected, inPlace.copyOfRange(4, 12), 0f)
+    }
+
+    /**
+     * Scales to the view, mirrors, then stretches each box around its center to compensate for
+     * the square crop of a 4:3 preview, as the activity used to do one step at a time
+     */
+    private fun reference(width: Float, height: Float, mirrored: Boolean): FloatArray {
+        val result = FloatArray(boxes.size)
+        for (i in 0 until boxes.size / 4) {
+            var left = boxes[4 * i] * width
+            var right = boxes[4 * i + 2] * width
+            val top = boxes[4 * i + 1] * height
+            val bottom = boxes[4 * i + 3] * height
+            if (mirrored) {
+                left = width - right.also { right = width - left }
+            }
+            val midX = (left + right) / 2f
+            val midY = (top + bottom) / 2f
+            val stretch = 1.1f * 4f / 3f
+            val (scaleX, scaleY) = if (width < height) stretch to 0.9f else 0.9f to stretch
+            result[4 * i] = midX - scaleX * (right - left) / 2f
+            result[4 * i + 1] = midY - scaleY * (bottom - top) / 2f
+            result[4 * i + 2] = midX + scaleX * (right - left) / 2f
+            result[4 * i + 3] = midY + scaleY * (bottom - top) / 2f
+        }
+        return result
+    }
+}
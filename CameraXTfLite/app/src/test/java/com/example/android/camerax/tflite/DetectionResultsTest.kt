@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+import android.graphics.RectF
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class DetectionResultsTest {
+
+    private val results = DetectionResults(capacity = 6).apply {
+        val values = floatArrayOf(0.3f, 0.9f, 0.1f, 0.7f, 0.9f, 0.5f)
+        values.forEachIndexed { i, score ->
+            scores[i] = score
+            classIds[i] = i
+            labels[i] = "label$i"
+            for (j in 0 until 4) boxes[4 * i + j] = i + j / 10f
+        }
+        count = values.size
+    }
+
+    @Test
+    fun topSelectsHighestScoresInOrder() {
+        val indices = IntArray(3)
+        assertEquals(3, results.top(3, indices))
+        assertArrayEquals(intArrayOf(1, 4, 3), indices)
+
+        // Everything above the minimum score fits
+        val all = IntArray(6)
+        assertEquals(4, results.top(6, all, minScore = 0.4f))
+        assertArrayEquals(intArrayOf(1, 4, 3, 5), all.copyOf(4))
+    }
+
+    @Test
+    fun bestIsFirstOfTop() {
+        assertEquals(1, results.best())
+        results.count = 0
+        assertEquals(-1, results.best())
+        assertEquals(0, results.top(3, IntArray(3)))
+    }
+
+    @Test
+    fun predictionsRecycleObjects() {
+        val first = results.predictions
+        assertEquals(6, first.size)
+        assertEquals(RectF(3f, 3.1f, 3.2f, 3.3f), first[3].location)
+        assertEquals("label3", first[3].label)
+        assertEquals(0.7f, first[3].score)
+
+        val recycled = first[0]
+        results.scores[0] = 0.2f
+        val second = results.predictions
+        assertSame(first, second)
+        assertSame(recycled, second[0])
+        assertEquals(0.2f, second[0].score)
+    }
+}
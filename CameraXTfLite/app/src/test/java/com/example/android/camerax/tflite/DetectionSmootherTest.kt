@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camerax.tflite
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class DetectionSmootherTest {
+
+    private val smoother = DetectionSmoother(
+        minScore = 0.3f, smoothingFactor = 0.5f, maxMissedFrames = 2)
+
+    @Test
+    fun suppressionIsClassAware() {
+        val results = results(
+            Detection(0, 0.6f, 0.1f, 0.1f, 0.5f, 0.5f),
+            Detection(0, 0.9f, 0.12f, 0.1f, 0.52f, 0.5f),
+            Detection(1, 0.8f, 0.1f, 0.1f, 0.5f, 0.5f),
+            Detection(0, 0.2f, 0.6f, 0.6f, 0.9f, 0.9f),
+            Detection(0, 0.7f, 0.6f, 0.6f, 0.9f, 0.9f))
+        val indices = IntArray(results.capacity)
+        val count = smoother.suppress(results, indices)
+
+        // The weaker overlapping box of class 0 and the one under the minimum score are dropped
+        assertArrayEquals(intArrayOf(1, 2, 4), indices.copyOf(count))
+    }
+
+    @Test
+    fun tracksAreSmoothedAcrossFrames() {
+        smoother.update(results(Detection(0, 0.8f, 0.2f, 0.2f, 0.6f, 0.6f)))
+        val id = smoother.best()!!.id
+        smoother.update(results(Detection(0, 0.6f, 0.3f, 0.2f, 0.7f, 0.6f)))
+
+        val track = smoother.best()!!
+        assertEquals(id, track.id)
+        assertArrayEquals(floatArrayOf(0.25f, 0.2f, 0.65f, 0.6f), track.box, 1e-6f)
+        assertEquals(0.7f, track.score, 1e-6f)
+        assertEquals(1, smoother.trackCount)
+    }
+
+    @Test
+    fun missedTracksDecayThenDisappear() {
+        smoother.update(results(Detection(0, 0.8f, 0.2f, 0.2f, 0.6f, 0.6f)))
+        smoother.update(results())
+        assertEquals(0.4f, smoother.best()!!.score, 1e-6f)
+        smoother.update(results())
+        assertEquals(2, smoother.best()!!.missedFrames)
+        smoother.update(results())
+        assertNull(smoother.best())
+    }
+
+    @Test
+    fun distantDetectionsStartNewTracks() {
+        smoother.update(results(Detection(0, 0.8f, 0.1f, 0.1f, 0.3f, 0.3f)))
+        val id = smoother.best()!!.id
+        smoother.update(results(Detection(0, 0.9f, 0.6f, 0.6f, 0.9f, 0.9f)))
+        assertNotEquals(id, smoother.best()!!.id)
+        assertEquals(2, smoother.trackCount)
+    }
+
+    private class Detection(
+        val classId: Int,
+        val score: Float,
+        val left: Float,
+        val top: Float,
+        val right: Float,
+        val bottom: Float
+    )
+
+    private fun results(vararg detections: Detection) = DetectionResults().apply {
+        detections.forEachIndexed { i, it ->
+            boxes[4 * i] = it.left
+            boxes[4 * i + 1] = it.top
+            boxes[4 * i + 2] = it.right
+            boxes[4 * i + 3] = it.bottom
+            classIds[i] = it.classId
+            labels[i] = "class${it.classId}"
+            scores[i] = it.score
+        }
+        count = detections.size
+    }
+}
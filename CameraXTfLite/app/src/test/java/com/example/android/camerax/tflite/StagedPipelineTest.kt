@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camerax.tflite
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class StagedPipelineTest {
+
+    private class Frame {
+        var id = -1
+        val trace = ArrayList<String>()
+    }
+
+    @Test
+    fun stagesProcessDifferentFramesConcurrently() {
+        val secondStageStarted = CountDownLatch(1)
+        val overlapped = CountDownLatch(1)
+        val pipeline = StagedPipeline(
+            sourceName = "source",
+            stages = listOf(
+                StagedPipeline.Stage<Frame>("first") { frame ->
+                    if (frame.id == 1) overlapped.countDown()
+                },
+                StagedPipeline.Stage("second") { frame ->
+                    // Hold the first frame until the next one went through the previous stage
+                    if (frame.id == 0) {
+                        secondStageStarted.countDown()
+                        overlapped.await(5, TimeUnit.SECONDS)
+                    }
+                }
+            ),
+            slotFactory = { Frame() }
+        )
+
+        pipeline.submit { it.id = 0 }
+        assertTrue(secondStageStarted.await(5, TimeUnit.SECONDS))
+        pipeline.submit { it.id = 1 }
+        assertTrue(overlapped.await(5, TimeUnit.SECONDS))
+        pipeline.close()
+    }
+
+    @Test
+    fun fullQueuesDropOldestFrames() {
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val reported = Collections.synchronizedList(ArrayList<Int>())
+        val pipeline = StagedPipeline(
+            sourceName = "source",
+            stages = listOf(
+                StagedPipeline.Stage<Frame>("blocked") {
+                    started.countDown()
+                    release.await()
+                },
+                StagedPipeline.Stage("report") { frame -> reported.add(frame.id) }
+            ),
+            slotFactory = { Frame() }
+        )
+
+        // While the first frame blocks the first stage, every later frame replaces the one
+        // waiting for it
+        assertTrue(pipeline.submit { it.id = 0 })
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        for (id in 1 until 10) assertTrue(pipeline.submit { it.id = id })
+        release.countDown()
+        waitFor { pipeline.withLatest { it.id } == 9 }
+
+        // The first frame may itself be replaced by the last one before being reported
+        assertEquals(9, reported.last())
+        assertTrue(reported.all { it == 0 || it == 9 })
+        assertEquals(8L, pipeline.stats[1].dropped.get())
+        assertEquals(10L, pipeline.stats[0].processed)
+        pipeline.close()
+    }
+
+    @Test
+    fun slotsAreRecycled() {
+        val pipeline = StagedPipeline(
+            sourceName = "source",
+            stages = listOf(StagedPipeline.Stage<Frame>("trace") { it.trace.add("trace") }),
+            slotFactory = { Frame() }
+        )
+
+        // Far more frames than slots go through the pipeline without any being dropped
+        for (id in 0 until 100) {
+            assertTrue(pipeline.submit { frame ->
+                frame.id = id
+                frame.trace.clear()
+            })
+            waitFor { pipeline.withLatest { it.id } == id }
+        }
+        assertEquals(listOf("trace"), pipeline.withLatest { it.trace.toList() })
+        assertEquals(0L, pipeline.stats.map { it.dropped.get() }.sum())
+        pipeline.close()
+    }
+
+    @Test
+    fun joinWaitsForFrameInProgress() {
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val pipeline = StagedPipeline(
+            sourceName = "source",
+            stages = listOf(StagedPipeline.Stage<Frame>("busy") {
+                // Uninterruptible work, like inference
+                started.countDown()
+                while (release.count > 0) Thread.yield()
+            }),
+            slotFactory = { Frame() }
+        )
+        pipeline.submit { it.id = 0 }
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        pipeline.close()
+
+        val joined = CountDownLatch(1)
+        Thread { pipeline.join(); joined.countDown() }.start()
+        assertFalse(joined.await(50, TimeUnit.MILLISECONDS))
+        release.countDown()
+        assertTrue(joined.await(5, TimeUnit.SECONDS))
+    }
+
+    private fun waitFor(condition: () -> Boolean) {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+        while (!condition()) {
+            assertTrue("Timed out", System.nanoTime() < deadline)
+            Thread.sleep(1)
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camerax.tflite
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class TemplateTrackerTest {
+
+    @Test
+    fun followsMovingObject() {
+        val tracker = TemplateTracker(SIZE, SIZE)
+        assertTrue(tracker.start(frameWithSquare(20, 24), 20f / SIZE, 24f / SIZE,
+            36f / SIZE, 40f / SIZE))
+
+        // Moves of up to the search radius per frame are followed exactly
+        var x = 20
+        var y = 24
+        repeat(5) {
+            x += 3
+            y -= 2
+            assertEquals(1f, tracker.update(frameWithSquare(x, y)), 0f)
+        }
+        assertEquals(x.toFloat() / SIZE, tracker.box[0], 1e-6f)
+        assertEquals(y.toFloat() / SIZE, tracker.box[1], 1e-6f)
+        assertEquals((x + 16).toFloat() / SIZE, tracker.box[2], 1e-6f)
+        assertEquals((y + 16).toFloat() / SIZE, tracker.box[3], 1e-6f)
+    }
+
+    @Test
+    fun losesObjectThatDisappears() {
+        val tracker = TemplateTracker(SIZE, SIZE)
+        tracker.start(frameWithSquare(20, 20), 20f / SIZE, 20f / SIZE, 36f / SIZE, 36f / SIZE)
+        assertEquals(0f, tracker.update(ByteArray(SIZE * SIZE)), 0f)
+        assertFalse(tracker.isTracking)
+    }
+
+    @Test
+    fun tinyBoxesAreNotTracked() {
+        val tracker = TemplateTracker(SIZE, SIZE)
+        assertFalse(tracker.start(frameWithSquare(20, 20), 0.5f, 0.5f, 0.51f, 0.6f))
+        assertFalse(tracker.isTracking)
+    }
+
+    companion object {
+        const val SIZE = 64
+
+        /** A flat frame with a textured 16 by 16 square whose top left corner is at [x], [y] */
+        fun frameWithSquare(x: Int, y: Int) = ByteArray(SIZE * SIZE).also {
+            for (row in 0 until 16) for (column in 0 until 16) {
+                it[(y + row) * SIZE + x + column] = (100 + (row * 16 + column) * 37 % 150).toByte()
+            }
+        }
+    }
+}
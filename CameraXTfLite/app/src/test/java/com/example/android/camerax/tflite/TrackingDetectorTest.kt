@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.camerax.tflite
+
+import com.example.android.camerax.tflite.TemplateTrackerTest.Companion.SIZE
+import com.example.android.camerax.tflite.TemplateTrackerTest.Companion.frameWithSquare
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class TrackingDetectorTest {
+
+    private val input = ByteBuffer.allocate(1)
+    private var detectedAt = IntArray(0)
+    private var score = 0.9f
+
+    /** Detects the square of [frameWithSquare] at the position set in [detectedAt] */
+    private val detector = TrackingDetector(
+        detect = { _, results ->
+            results.boxes[0] = detectedAt[0].toFloat() / SIZE
+            results.boxes[1] = detectedAt[1].toFloat() / SIZE
+            results.boxes[2] = (detectedAt[0] + 16).toFloat() / SIZE
+            results.boxes[3] = (detectedAt[1] + 16).toFloat() / SIZE
+            results.classIds[0] = 7
+            results.labels[0] = "square"
+            results.scores[0] = score
+            results.count = 1
+        },
+        tracker = TemplateTracker(SIZE, SIZE),
+        detectionInterval = 4,
+        redetectThreshold = 0.6f,
+        minScore = 0.5f
+    )
+
+    @Test
+    fun detectsEveryIntervalAndTracksInBetween() {
+        val results = DetectionResults()
+        val ran = (0 until 8).map { frame ->
+            detectedAt = intArrayOf(10 + frame, 10)
+            detector.process(input, frameWithSquare(10 + frame, 10), results)
+        }
+        assertEquals(listOf(true, false, false, false, true, false, false, false), ran)
+        assertEquals(0.25, detector.dutyCycle, 0.0)
+
+        // Tracked frames carry the last detection, at the tracked position
+        assertEquals(1, results.count)
+        assertEquals("square", results.labels[0])
+        assertEquals(7, results.classIds[0])
+        assertEquals(17f / SIZE, results.boxes[0], 1e-6f)
+    }
+
+    @Test
+    fun detectsAgainWhenTrackingIsLost() {
+        val results = DetectionResults()
+        detectedAt = intArrayOf(10, 10)
+        detector.process(input, frameWithSquare(10, 10), results)
+        assertEquals(true, detector.process(input, ByteArray(SIZE * SIZE), results))
+    }
+
+    @Test
+    fun detectsEveryFrameWithoutConfidentDetections() {
+        val results = DetectionResults()
+        detectedAt = intArrayOf(10, 10)
+        score = 0.2f
+        repeat(3) { assertEquals(true, detector.process(input, frameWithSquare(10, 10), results)) }
+        assertEquals(1.0, detector.dutyCycle, 0.0)
+    }
+}
@@ -69,6 +69,15 @@ fun <T>getPreviewOutputSize(
     val allSizes = if (format == null)
         config.getOutputSizes(targetClass) else config.getOutputSizes(format)
 
+    return getLargestOutputSize(allSizes, maxSize)
+}
+
+/**
+ * Returns the size with the largest area out of [allSizes] that fits within [maxSize] in any
+ * orientation. This is the framework-independent part of [getPreviewOutputSize].
+ */
+fun getLargestOutputSize(allSizes: Array<Size>, maxSize: SmartSize): Size {
+
     // Get available sizes and sort them by area from largest to smallest
     val validSizes = allSizes
             .sortedWith(compareBy { it.height * it.width })
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.hardware.camera2.CameraCaptureSession
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession
+import android.hardware.camera2.CaptureRequest
+import android.view.Surface
+
+/**
+ * Builds [CaptureRequest]s once and hands out the same instances afterwards, so that the
+ * shutter path only submits a request instead of going through `createCaptureRequest`, which
+ * is a call into the camera service, and copying the template settings on every press.
+ *
+ * Requests are identified by their template, their targets and the settings that override the
+ * template, and belong to the session they were built for: asking for a request of another
+ * session, e.g. after the camera is reopened or the session is reconfigured, drops all the
+ * requests of the previous one. Override values are compared with `equals`, so they should not
+ * be arrays. Requests can be built ahead of time, right after the session is configured, by
+ * asking for them once. Instances are thread-safe.
+ */
+class CaptureRequestCache {
+
+    /** Identity of a request within a session */
+    internal data class Key(
+            val template: Int,
+            val targets: List<Surface>,
+            val overrides: Map<CaptureRequest.Key<*>, Any>,
+            val highSpeed: Boolean
+    )
+
+    private var session: Any? = null
+    private val requests = HashMap<Key, Any>()
+
+    /** Number of requests built, and of requests found in the cache, since it was created */
+    var buildCount = 0
+        private set
+    var hitCount = 0
+        private set
+
+    /**
+     * Returns the request of [session] created from [template], targeting [targets] and with
+     * [overrides] applied on top of the template, building it on first use.
+     */
+    fun get(
+            session: CameraCaptureSession,
+            template: Int,
+            targets: List<Surface>,
+            overrides: Map<CaptureRequest.Key<*>, Any> = emptyMap()
+    ): CaptureRequest = getOrBuild(session, Key(template, targets, overrides.toMap(), false)) {
+        builder(session, it).build()
+    }
+
+    /**
+     * Returns the burst of requests of the high speed [session] derived from the request
+     * described by [template], [targets] and [overrides], see
+     * [CameraConstrainedHighSpeedCaptureSession.createHighSpeedRequestList].
+     */
+    fun getHighSpeed(
+            session: CameraConstrainedHighSpeedCaptureSession,
+            template: Int,
+            targets: List<Surface>,
+            overrides: Map<CaptureRequest.Key<*>, Any> = emptyMap()
+    ): List<CaptureRequest> =
+            getOrBuild(session, Key(template, targets, overrides.toMap(), true)) {
+                session.createHighSpeedRequestList(builder(session, it).build())
+            }
+
+    /** Drops all requests, e.g. once the camera is closed, so that their surfaces are released */
+    @Synchronized
+    fun invalidate() {
+        session = null
+        requests.clear()
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    @Synchronized
+    internal fun <T : Any> getOrBuild(session: Any, key: Key, build: (Key) -> T): T {
+        if (session !== this.session) {
+            requests.clear()
+            this.session = session
+        }
+        val cached = requests[key]
+        if (cached != null) {
+            hitCount++
+            return cached as T
+        }
+        val request = build(key)
+        requests[key] = request
+        buildCount++
+        return request
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun builder(session: CameraCaptureSession, key: Key) =
+            session.device.createCaptureRequest(key.template).apply {
+                key.targets.forEach { addTarget(it) }
+                key.overrides.forEach { (setting, value) ->
+                    set(setting as CaptureRequest.Key<Any>, value)
+                }
+            }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.hardware.camera2.CameraCharacteristics
+import android.hardware.camera2.CaptureResult
+import android.hardware.camera2.params.ColorSpaceTransform
+import android.os.Build
+
+/**
+ * Metadata written by [DngWriter] next to the pixels of a RAW image, i.e. what a DNG reader
+ * needs to turn the Bayer mosaic into colors. Use [create] to read it from the camera, the
+ * constructor is mostly meant for tests and for images that don't come from the camera.
+ *
+ * Matrices hold 9 values in row-major order, as in the DNG specification.
+ */
+class DngMetadata(
+        /** Colors of the 2x2 CFA pattern in row-major order, 0 for red, 1 green and 2 blue */
+        val cfaPattern: ByteArray,
+        /** Black level of each pixel of the 2x2 CFA pattern, in row-major order */
+        val blackLevel: FloatArray,
+        /** Largest value a pixel can take */
+        val whiteLevel: Int,
+        /** Matrix from XYZ to camera colors under [calibrationIlluminant1] */
+        val colorMatrix1: FloatArray,
+        /** Matrix from XYZ to camera colors under [calibrationIlluminant2], if known */
+        val colorMatrix2: FloatArray? = null,
+        /** Per-device calibration of [colorMatrix1], if known */
+        val cameraCalibration1: FloatArray? = null,
+        /** Per-device calibration of [colorMatrix2], if known */
+        val cameraCalibration2: FloatArray? = null,
+        /** Matrix from white balanced camera colors to XYZ under [calibrationIlluminant1] */
+        val forwardMatrix1: FloatArray? = null,
+        /** Matrix from white balanced camera colors to XYZ under [calibrationIlluminant2] */
+        val forwardMatrix2: FloatArray? = null,
+        /** EXIF light source of the first calibration, 0 if unknown */
+        val calibrationIlluminant1: Int = 0,
+        /** EXIF light source of the second calibration, 0 if unknown */
+        val calibrationIlluminant2: Int = 0,
+        /** Camera colors of a neutral object in the scene, as estimated by auto white balance */
+        val asShotNeutral: FloatArray? = null,
+        /** EXIF orientation of the image, one of the `ExifInterface.ORIENTATION_*` constants */
+        val orientation: Int = 1,
+        val make: String = Build.MANUFACTURER ?: "",
+        val model: String = Build.MODEL ?: ""
+) {
+    init {
+        require(cfaPattern.size == 4 && cfaPattern.all { it in 0..2 }) { "Invalid CFA pattern" }
+        require(blackLevel.size == 4) { "Expected 4 black levels, got ${blackLevel.size}" }
+        listOf(colorMatrix1, colorMatrix2, cameraCalibration1, cameraCalibration2,
+                forwardMatrix1, forwardMatrix2).forEach {
+            require(it == null || it.size == 9) { "Matrices must hold 9 values" }
+        }
+        require(asShotNeutral == null || asShotNeutral.size == 3) { "Expected 3 neutral values" }
+    }
+
+    companion object {
+
+        /**
+         * Reads the metadata of a RAW_SENSOR capture from the [characteristics] of the camera
+         * and the [result] of the capture, like `DngCreator` does. [orientation] is the EXIF
+         * orientation, e.g. as returned by [computeExifOrientation].
+         */
+        fun create(
+                characteristics: CameraCharacteristics,
+                result: CaptureResult,
+                orientation: Int = 1
+        ): DngMetadata {
+            val arrangement =
+                    characteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)
+            val cfaPattern = when (arrangement) {
+                CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_RGGB ->
+                    byteArrayOf(0, 1, 1, 2)
+                CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GRBG ->
+                    byteArrayOf(1, 0, 2, 1)
+                CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GBRG ->
+                    byteArrayOf(1, 2, 0, 1)
+                CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_BGGR ->
+                    byteArrayOf(2, 1, 1, 0)
+                else -> throw IllegalArgumentException(
+                        "Unsupported color filter arrangement $arrangement")
+            }
+
+            val blackLevelPattern =
+                    characteristics.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN)!!
+            val blackLevel = FloatArray(4) {
+                blackLevelPattern.getOffsetForIndex(it % 2, it / 2).toFloat()
+            }
+
+            return DngMetadata(
+                    cfaPattern = cfaPattern,
+                    blackLevel = blackLevel,
+                    whiteLevel =
+                            characteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL)!!,
+                    colorMatrix1 = characteristics.get(
+                            CameraCharacteristics.SENSOR_COLOR_TRANSFORM1)!!.toFloatArray(),
+                    colorMatrix2 = characteristics.get(
+                            CameraCharacteristics.SENSOR_COLOR_TRANSFORM2)?.toFloatArray(),
+                    cameraCalibration1 = characteristics.get(
+                            CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM1)?.toFloatArray(),
+                    cameraCalibration2 = characteristics.get(
+                            CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM2)?.toFloatArray(),
+                    forwardMatrix1 = characteristics.get(
+                            CameraCharacteristics.SENSOR_FORWARD_MATRIX1)?.toFloatArray(),
+                    forwardMatrix2 = characteristics.get(
+                            CameraCharacteristics.SENSOR_FORWARD_MATRIX2)?.toFloatArray(),
+                    calibrationIlluminant1 = characteristics.get(
+                            CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT1) ?: 0,
+                    calibrationIlluminant2 = characteristics.get(
+                            CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT2)?.toInt() ?: 0,
+                    asShotNeutral = result.get(CaptureResult.SENSOR_NEUTRAL_COLOR_POINT)
+                            ?.let { neutral -> FloatArray(3) { neutral[it].toFloat() } },
+                    orientation = orientation)
+        }
+
+        private fun ColorSpaceTransform.toFloatArray() =
+                FloatArray(9) { getElement(it % 3, it / 3).toFloat() }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.GatheringByteChannel
+
+/**
+ * Writes JPEG images straight from the buffer they were encoded into, typically the plane of a
+ * [android.media.Image] from an `ImageReader`, setting their EXIF orientation along the way.
+ *
+ * Setting the orientation with `ExifInterface` once the file is written means reading and
+ * writing the whole file a second time. Instead, the JPEG is written in a single gathering write
+ * of slices of its buffer, so it is never copied to the heap, with the orientation spliced in:
+ * the value of an existing orientation tag is replaced, and JPEGs without EXIF data get a
+ * minimal APP1 segment holding only the orientation.
+ */
+object ExifOrientationWriter {
+
+    private const val MARKER_SOI = 0xD8
+    private const val MARKER_SOS = 0xDA
+    private const val MARKER_APP0 = 0xE0
+    private const val MARKER_APP1 = 0xE1
+    private const val TAG_ORIENTATION = 0x0112
+    private const val TYPE_SHORT = 3
+
+    /** Marker, length, EXIF identifier, TIFF header and an IFD0 holding a single entry */
+    private const val EXIF_SEGMENT_SIZE = 2 + 2 + 6 + 8 + 2 + 12 + 4
+
+    /** "Exif" followed by two zero bytes, which starts the APP1 segment of EXIF data */
+    private val EXIF_IDENTIFIER = byteArrayOf(0x45, 0x78, 0x69, 0x66, 0, 0)
+
+    /** Where the orientation goes in a JPEG, as found by [locate] */
+    private class Location(
+            /** Offset of the orientation value to replace, or -1 if there is none */
+            val valueOffset: Int,
+            /** Byte order of the EXIF data holding the orientation value */
+            val order: ByteOrder,
+            /** Offset at which to insert an EXIF segment, or -1 if the JPEG has EXIF data */
+            val insertOffset: Int
+    )
+
+    /**
+     * Writes the JPEG between the position and the limit of [jpeg] into [channel], with its EXIF
+     * orientation set to [orientation], one of the `ExifInterface.ORIENTATION_*` constants. The
+     * position of [jpeg] is left untouched.
+     *
+     * Returns false if the JPEG already holds EXIF data but without an orientation tag, which
+     * can't be added in place. The JPEG is then written unchanged, and the orientation must be
+     * set afterwards, e.g. with `ExifInterface`.
+     */
+    fun write(jpeg: ByteBuffer, channel: GatheringByteChannel, orientation: Int): Boolean {
+        val location = locate(jpeg)
+        val start = jpeg.position()
+        val end = jpeg.limit()
+        val buffers = when {
+            location.valueOffset >= 0 -> {
+                val value = ByteBuffer.allocate(2).order(location.order)
+                value.putShort(0, orientation.toShort())
+                arrayOf(slice(jpeg, start, location.valueOffset), value,
+                        slice(jpeg, location.valueOffset + 2, end))
+            }
+            location.insertOffset >= 0 -> arrayOf(slice(jpeg, start, location.insertOffset),
+                    exifSegment(orientation), slice(jpeg, location.insertOffset, end))
+            else -> arrayOf(slice(jpeg, start, end))
+        }
+
+        var remaining = buffers.fold(0L) { sum, it -> sum + it.remaining() }
+        while (remaining > 0L) remaining -= channel.write(buffers)
+        return location.valueOffset >= 0 || location.insertOffset >= 0
+    }
+
+    /**
+     * Returns the EXIF orientation of the JPEG in [jpeg], 0 if it has EXIF data without an
+     * orientation tag, or -1 if it has no EXIF data
+     */
+    fun read(jpeg: ByteBuffer): Int {
+        val location = locate(jpeg)
+        return when {
+            location.valueOffset >= 0 ->
+                jpeg.duplicate().order(location.order).getShort(location.valueOffset).toInt()
+            location.insertOffset >= 0 -> -1
+            else -> 0
+        }
+    }
+
+    /** Finds the orientation tag of the JPEG in [jpeg], or where to insert one */
+    private fun locate(jpeg: ByteBuffer): Location {
+        val start = jpeg.position()
+        val end = jpeg.limit()
+        require(end - start >= 4 && unsigned(jpeg, start) == 0xFF &&
+                unsigned(jpeg, start + 1) == MARKER_SOI) { "Not a JPEG image" }
+
+        // Walk the segments that precede the image data. A JFIF APP0 segment must stay first
+        var insertOffset = start + 2
+        var offset = start + 2
+        while (offset + 4 <= end && unsigned(jpeg, offset) == 0xFF) {
+            val marker = unsigned(jpeg, offset + 1)
+            if (marker == MARKER_SOS) break
+            val length = unsigned(jpeg, offset + 2) shl 8 or unsigned(jpeg, offset + 3)
+            val data = offset + 4
+            val next = offset + 2 + length
+            if (length < 2 || next > end) break
+
+            if (marker == MARKER_APP0 && offset == start + 2) insertOffset = next
+            if (marker == MARKER_APP1 && isExif(jpeg, data, next)) {
+                return locateInTiff(jpeg, data + EXIF_IDENTIFIER.size, next)
+            }
+            offset = next
+        }
+        return Location(-1, ByteOrder.BIG_ENDIAN, insertOffset)
+    }
+
+    /** Finds the orientation tag in IFD0 of the TIFF structure between [tiff] and [end] */
+    private fun locateInTiff(jpeg: ByteBuffer, tiff: Int, end: Int): Location {
+        val noTag = Location(-1, ByteOrder.BIG_ENDIAN, -1)
+        if (tiff + 8 > end) return noTag
+        val order = when (unsigned(jpeg, tiff)) {
+            'I'.toInt() -> ByteOrder.LITTLE_ENDIAN
+            'M'.toInt() -> ByteOrder.BIG_ENDIAN
+            else -> return noTag
+        }
+        val data = jpeg.duplicate().order(order)
+        val ifd = tiff + data.getInt(tiff + 4)
+        if (ifd < tiff || ifd + 2 > end) return noTag
+
+        val count = data.getShort(ifd).toInt() and 0xFFFF
+        for (i in 0 until count) {
+            val entry = ifd + 2 + 12 * i
+            if (entry + 12 > end) break
+            if (data.getShort(entry).toInt() and 0xFFFF == TAG_ORIENTATION &&
+                    data.getShort(entry + 2).toInt() == TYPE_SHORT) {
+                return Location(entry + 8, order, -1)
+            }
+        }
+        return noTag
+    }
+
+    /** APP1 segment holding big endian EXIF data with only an orientation tag in IFD0 */
+    internal fun exifSegment(orientation: Int): ByteBuffer {
+        val segment = ByteBuffer.allocate(EXIF_SEGMENT_SIZE)
+        segment.put(0xFF.toByte()).put(MARKER_APP1.toByte())
+        segment.putShort((EXIF_SEGMENT_SIZE - 2).toShort())
+        segment.put(EXIF_IDENTIFIER)
+        // TIFF header: byte order, magic number and offset of IFD0
+        segment.put('M'.toByte()).put('M'.toByte()).putShort(42).putInt(8)
+        // IFD0: a single entry of one SHORT, padded to four bytes, and no next IFD
+        segment.putShort(1)
+        segment.putShort(TAG_ORIENTATION.toShort()).putShort(TYPE_SHORT.toShort()).putInt(1)
+        segment.putShort(orientation.toShort()).putShort(0)
+        segment.putInt(0)
+        segment.flip()
+        return segment
+    }
+
+    private fun isExif(jpeg: ByteBuffer, data: Int, end: Int): Boolean {
+        if (data + EXIF_IDENTIFIER.size > end) return false
+        return EXIF_IDENTIFIER.indices.all { jpeg.get(data + it) == EXIF_IDENTIFIER[it] }
+    }
+
+    private fun slice(jpeg: ByteBuffer, from: Int, to: Int): ByteBuffer =
+            jpeg.duplicate().apply {
+                limit(to)
+                position(from)
+            }
+
+    private fun unsigned(buffer: ByteBuffer, offset: Int) = buffer.get(offset).toInt() and 0xFF
+}
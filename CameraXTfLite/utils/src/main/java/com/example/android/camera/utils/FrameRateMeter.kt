@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.os.SystemClock
+import java.util.Arrays
+import java.util.Locale
+import kotlin.math.ceil
+import kotlin.math.sqrt
+
+/**
+ * Rolling frame rate and latency statistics over the last [capacity] frames of a stream.
+ *
+ * Each call to [onFrame] records the time at which a frame reached the caller, e.g. once an
+ * analyzer is done with it, and the time at which the sensor captured it. The frame rate and the
+ * jitter, i.e. the standard deviation of the interval between frames, are derived from the
+ * former; the difference between both gives the sensor to analyzer latency.
+ *
+ * Timestamps are kept in primitive ring buffers, so recording a frame never allocates. Latency
+ * percentiles are computed on demand by sorting a preallocated copy of the window, at most once
+ * per recorded frame. Instances are not thread-safe and are meant to be used from the thread
+ * that processes frames.
+ */
+class FrameRateMeter(val capacity: Int = DEFAULT_CAPACITY) {
+
+    init {
+        require(capacity > 1) { "Capacity must be at least 2, got $capacity" }
+    }
+
+    private val arrivals = LongArray(capacity)
+    private val latencies = LongArray(capacity)
+    private val sortedLatencies = LongArray(capacity)
+    private var sorted = true
+    private var next = 0
+
+    /** Number of frames recorded since the last [reset], including the ones out of the window */
+    var frameCount: Long = 0L
+        private set
+
+    /** Number of frames currently in the window */
+    val size: Int get() = minOf(frameCount, capacity.toLong()).toInt()
+
+    /**
+     * Records a frame captured at [sensorTimestamp] and processed at [now], both in nanoseconds.
+     * Camera timestamps, like [android.media.Image.getTimestamp] or CameraX's
+     * `ImageInfo.getTimestamp`, are only comparable with
+     * [SystemClock.elapsedRealtimeNanos] when the timestamp source of the camera is realtime.
+     */
+    fun onFrame(sensorTimestamp: Long, now: Long = SystemClock.elapsedRealtimeNanos()) {
+        arrivals[next] = now
+        latencies[next] = now - sensorTimestamp
+        next = (next + 1) % capacity
+        frameCount++
+        sorted = false
+    }
+
+    /** Forgets all recorded frames, e.g. after the camera is restarted */
+    fun reset() {
+        next = 0
+        frameCount = 0L
+        sorted = true
+    }
+
+    /** Average number of frames per second in the window, or zero for less than two frames */
+    val framesPerSecond: Double
+        get() {
+            val size = size
+            if (size < 2) return 0.0
+            val elapsed = arrivals[(next - 1 + capacity) % capacity] - arrivals[oldestIndex()]
+            return if (elapsed <= 0L) 0.0 else (size - 1) * 1e9 / elapsed
+        }
+
+    /** Standard deviation of the intervals between frames of the window, in nanoseconds */
+    val jitterNanos: Double
+        get() {
+            val intervals = size - 1
+            if (intervals < 1) return 0.0
+            val oldest = oldestIndex()
+            var sum = 0.0
+            var sumSquares = 0.0
+            var previous = arrivals[oldest]
+            for (i in 1..intervals) {
+                val current = arrivals[(oldest + i) % capacity]
+                val interval = (current - previous).toDouble()
+                sum += interval
+                sumSquares += interval * interval
+                previous = current
+            }
+            val mean = sum / intervals
+            return sqrt(maxOf(0.0, sumSquares / intervals - mean * mean))
+        }
+
+    /**
+     * Returns the smallest sensor to analyzer latency, in nanoseconds, that is greater than or
+     * equal to the latency of [fraction] of the frames in the window, e.g. 0.95 for the 95th
+     * percentile. Returns zero if no frame has been recorded.
+     */
+    fun latencyPercentile(fraction: Double): Long {
+        require(fraction in 0.0..1.0) { "Fraction must be in [0, 1], got $fraction" }
+        val size = size
+        if (size == 0) return 0L
+        if (!sorted) {
+            System.arraycopy(latencies, 0, sortedLatencies, 0, size)
+            Arrays.sort(sortedLatencies, 0, size)
+            sorted = true
+        }
+        val rank = ceil(fraction * size).toInt().coerceIn(1, size)
+        return sortedLatencies[rank - 1]
+    }
+
+    /** Index of the oldest frame in the window */
+    private fun oldestIndex() = if (frameCount < capacity) 0 else next
+
+    override fun toString() = String.format(Locale.US,
+            "%.2f fps, jitter %.2f ms, latency p50/p95/p99 %.2f/%.2f/%.2f ms",
+            framesPerSecond, jitterNanos / 1e6,
+            latencyPercentile(0.5) / 1e6,
+            latencyPercentile(0.95) / 1e6,
+            latencyPercentile(0.99) / 1e6)
+
+    companion object {
+        /** Roughly one second of frames for a camera running at 30 fps */
+        const val DEFAULT_CAPACITY = 30
+    }
+}
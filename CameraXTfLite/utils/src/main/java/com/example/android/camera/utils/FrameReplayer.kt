@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import java.util.Arrays
+import java.util.Locale
+import java.util.concurrent.locks.LockSupport
+import kotlin.math.ceil
+
+/**
+ * Feeds the frames of a [source] to analysis code and measures how fast it keeps up, without a
+ * camera.
+ *
+ * When [realtime] is false frames are delivered as fast as they are analyzed, which measures
+ * the throughput of the analysis. When it is true each frame is delivered when it would have
+ * come out of the camera, based on the timestamps of the frames relative to the first one, the
+ * way an analyzer sees a live stream. The latency of a frame is the time from its delivery to
+ * the end of its analysis; in realtime mode it includes the time spent waiting for the analysis
+ * of previous frames, which grows when the analysis is slower than the camera.
+ *
+ * [clock] and [sleep] default to the system ones and can be replaced to replay deterministically
+ * in tests.
+ */
+class FrameReplayer(
+        private val source: FrameSource,
+        val realtime: Boolean = false,
+        private val clock: () -> Long = System::nanoTime,
+        private val sleep: (Long) -> Unit = LockSupport::parkNanos
+) {
+    /** Outcome of [run]: number of frames analyzed, wall time and latency of each frame */
+    class Result internal constructor(
+            val frames: Int,
+            val elapsedNanos: Long,
+            private val sortedLatencies: LongArray
+    ) {
+        /** Average number of frames analyzed per second over the whole replay */
+        val framesPerSecond: Double
+            get() = if (elapsedNanos <= 0L) 0.0 else frames * 1e9 / elapsedNanos
+
+        /**
+         * Returns the smallest latency, in nanoseconds, that is greater than or equal to the
+         * latency of [fraction] of the frames, or zero if no frame was analyzed
+         */
+        fun latencyPercentile(fraction: Double): Long {
+            require(fraction in 0.0..1.0) { "Fraction must be in [0, 1], got $fraction" }
+            if (frames == 0) return 0L
+            val rank = ceil(fraction * frames).toInt().coerceIn(1, frames)
+            return sortedLatencies[rank - 1]
+        }
+
+        override fun toString() = String.format(Locale.US,
+                "%d frames, %.2f fps, latency p50/p95/p99 %.2f/%.2f/%.2f ms",
+                frames, framesPerSecond,
+                latencyPercentile(0.5) / 1e6,
+                latencyPercentile(0.95) / 1e6,
+                latencyPercentile(0.99) / 1e6)
+    }
+
+    private val frame = YuvFrame()
+
+    /**
+     * Delivers up to [maxFrames] frames of the source to [analyze], along with the rotation of
+     * each frame, and returns the measurements. The frame is only valid during the call.
+     */
+    fun run(
+            maxFrames: Int = Int.MAX_VALUE,
+            analyze: (frame: YuvFrame, rotationDegrees: Int) -> Unit
+    ): Result {
+        var latencies = LongArray(INITIAL_CAPACITY)
+        var frames = 0
+        var firstTimestamp = 0L
+        val start = clock()
+
+        while (frames < maxFrames && source.next(frame)) {
+            if (frames == 0) firstTimestamp = frame.timestamp
+            val delivery = if (realtime) start + frame.timestamp - firstTimestamp else clock()
+            if (realtime) {
+                val wait = delivery - clock()
+                if (wait > 0L) sleep(wait)
+            }
+
+            analyze(frame, source.rotationDegrees)
+
+            if (frames == latencies.size) latencies = latencies.copyOf(frames * 2)
+            latencies[frames++] = clock() - delivery
+        }
+
+        val elapsed = clock() - start
+        Arrays.sort(latencies, 0, frames)
+        return Result(frames, elapsed, latencies)
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 256
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import kotlin.math.ceil
+
+/**
+ * Luma statistics of a single frame computed by [FrameStatsAnalyzer]. Instances are recycled by
+ * the analyzer, so the arrays are allocated once and overwritten in place for later frames.
+ */
+class FrameStats(val tileColumns: Int, val tileRows: Int) {
+
+    /** Sequence number of the frame these statistics belong to, zero if none was analyzed */
+    var frameNumber: Long = 0L
+        internal set
+
+    /** Timestamp of the analyzed frame, see [YuvFrame.timestamp] */
+    var timestamp: Long = 0L
+        internal set
+
+    /** Size of the crop rectangle of the analyzed frame */
+    var width: Int = 0
+        internal set
+    var height: Int = 0
+        internal set
+
+    /** Average and variance of all the luma values of the frame */
+    var mean: Double = 0.0
+        internal set
+    var variance: Double = 0.0
+        internal set
+
+    /**
+     * Variance of the 4-neighbour Laplacian of the luma plane. Higher values mean more high
+     * frequency content, which makes it useful to compare the focus of frames of the same scene.
+     */
+    var sharpness: Double = 0.0
+        internal set
+
+    /** Number of pixels found for each luma value */
+    val histogram = IntArray(256)
+
+    /**
+     * Returns the smallest luma value such that at least [fraction] of the pixels are less than
+     * or equal to it, e.g. 0.5 for the median or 0.95 for the 95th percentile, derived from the
+     * [histogram]. Returns zero if the frame had no pixels.
+     */
+    fun percentile(fraction: Double): Int {
+        require(fraction in 0.0..1.0) { "Fraction must be in [0, 1], got $fraction" }
+        val total = histogram.fold(0L) { sum, count -> sum + count }
+        if (total == 0L) return 0
+        val target = maxOf(1L, ceil(fraction * total).toLong())
+        var accumulated = 0L
+        for (value in histogram.indices) {
+            accumulated += histogram[value]
+            if (accumulated >= target) return value
+        }
+        return histogram.lastIndex
+    }
+
+    /**
+     * Average luma of each tile of a [tileColumns] by [tileRows] grid laid over the frame, in row
+     * major order. Tiles that contain no pixels, which happens for frames smaller than the grid,
+     * have an average of zero.
+     */
+    val tileMeans = DoubleArray(tileColumns * tileRows)
+
+    /** Returns the average luma of the tile at the given grid position */
+    fun tileMean(column: Int, row: Int) = tileMeans[row * tileColumns + column]
+}
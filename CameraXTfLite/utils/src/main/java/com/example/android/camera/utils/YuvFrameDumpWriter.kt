@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import java.io.Closeable
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.WritableByteChannel
+
+/**
+ * Appends [YuvFrame]s to a [channel] in the YUV frame dump format, so that they can be replayed
+ * later with [YuvFrameDumpReader]. Chroma planes that alias each other, like the interleaved
+ * planes of most camera HALs, are stored separately and read back as distinct buffers.
+ */
+class YuvFrameDumpWriter(private val channel: WritableByteChannel) : Closeable {
+
+    private val header = ByteBuffer.allocate(YuvFrameDump.RECORD_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN)
+
+    /** Number of frames written so far */
+    var frameCount: Long = 0L
+        private set
+
+    init {
+        val fileHeader = ByteBuffer.allocate(YuvFrameDump.FILE_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN)
+        YuvFrameDump.putFileHeader(fileHeader, 0)
+        writeFully(fileHeader)
+    }
+
+    /**
+     * Appends [frame], which was rotated by [rotationDegrees] with respect to the upright
+     * orientation. The positions of the plane buffers are left untouched.
+     */
+    fun write(frame: YuvFrame, rotationDegrees: Int = 0) {
+        YuvFrameDump.putRecordHeader(header, 0, frame, rotationDegrees, frameCount)
+        header.clear()
+        writeFully(header)
+        writeFully(frame.yBuffer.duplicate().apply { rewind() })
+        writeFully(frame.uBuffer.duplicate().apply { rewind() })
+        writeFully(frame.vBuffer.duplicate().apply { rewind() })
+        frameCount++
+    }
+
+    override fun close() = channel.close()
+
+    private fun writeFully(buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) channel.write(buffer)
+    }
+
+    companion object {
+        /** Creates a writer for a new dump in [file], replacing any existing content */
+        fun create(file: File) = YuvFrameDumpWriter(FileOutputStream(file).channel)
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.media.Image
+import java.io.Closeable
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Records camera frames into a YUV frame dump that is preallocated and memory-mapped, so that
+ * recording a frame only copies its planes into memory and never waits for the disk. Dumps are
+ * read back with [YuvFrameDumpReader], e.g. on a workstation to feed [FrameReplayer].
+ *
+ * A recorder created by [linear] appends frames until the file is full and then drops the
+ * following ones. A recorder created by [ring] overwrites its oldest frame instead, so that the
+ * file always holds the last frames of the stream, e.g. the few seconds before something worth
+ * investigating happened. Each frame takes a slot of fixed size, see [recordSize] to size them.
+ *
+ * [record] can be called from an `ImageAnalysis.Analyzer` with `imageProxy.image` and the
+ * rotation of `imageProxy.imageInfo`, or from an `ImageReader` listener. Frames are written into
+ * the page cache of the file, which the system flushes to disk on its own, including when the
+ * app is killed; a record only becomes visible to readers once completely written. Instances are
+ * not thread-safe.
+ */
+class YuvFrameRecorder private constructor(
+        file: File,
+        size: Long,
+        private val slotSize: Int,
+        private val slotCount: Int
+) : Closeable {
+
+    private val channel: FileChannel
+    private val buffer: MappedByteBuffer
+    private val yuvFrame = YuvFrame()
+    private var position = YuvFrameDump.FILE_HEADER_SIZE
+
+    /** Number of frames recorded so far, including the ones since overwritten in a ring */
+    var frameCount: Long = 0L
+        private set
+
+    /** Number of frames that did not fit in the file or in a slot, and were not recorded */
+    var droppedFrames: Long = 0L
+        private set
+
+    init {
+        require(size <= Int.MAX_VALUE) { "Dumps are limited to ${Int.MAX_VALUE} bytes" }
+        val randomAccessFile = RandomAccessFile(file, "rw")
+        // Drop any previous content, so that the unused part of the file reads back as zeros
+        randomAccessFile.setLength(0L)
+        randomAccessFile.setLength(size)
+        channel = randomAccessFile.channel
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, size)
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+        YuvFrameDump.putFileHeader(buffer, 0, slotSize, slotCount)
+    }
+
+    /** Records [image], which must be in YUV_420_888 format, see [record] */
+    fun record(image: Image, rotationDegrees: Int = 0) =
+            record(yuvFrame.set(image), rotationDegrees)
+
+    /**
+     * Records [frame], which was rotated by [rotationDegrees] with respect to the upright
+     * orientation. Returns false if the frame was dropped for lack of room, see [droppedFrames].
+     */
+    fun record(frame: YuvFrame, rotationDegrees: Int = 0): Boolean {
+        val recordSize = YuvFrameDump.recordSize(frame)
+        val offset = if (slotCount > 0) {
+            if (recordSize > slotSize) return drop()
+            YuvFrameDump.FILE_HEADER_SIZE + (frameCount % slotCount).toInt() * slotSize
+        } else {
+            // The rest of the file is still zeros, which ends the dump right after this record
+            if (position.toLong() + recordSize > buffer.capacity()) return drop()
+            position
+        }
+
+        // The slot may hold an older record, which must not look valid while being overwritten
+        buffer.putInt(offset + YuvFrameDump.RECORD_SIZE_OFFSET, 0)
+        var planeOffset = offset + YuvFrameDump.RECORD_HEADER_SIZE
+        planeOffset = copyPlane(frame.yBuffer, planeOffset)
+        planeOffset = copyPlane(frame.uBuffer, planeOffset)
+        copyPlane(frame.vBuffer, planeOffset)
+        YuvFrameDump.putRecordHeader(buffer, offset, frame, rotationDegrees, frameCount)
+
+        if (slotCount == 0) position += recordSize
+        frameCount++
+        return true
+    }
+
+    /** Forces the frames recorded so far to be written to the disk */
+    fun flush() {
+        buffer.force()
+    }
+
+    override fun close() {
+        flush()
+        channel.close()
+    }
+
+    private fun drop(): Boolean {
+        droppedFrames++
+        return false
+    }
+
+    /** Copies [plane] at [offset] in the file and returns the offset that follows it */
+    private fun copyPlane(plane: ByteBuffer, offset: Int): Int {
+        val planePosition = plane.position()
+        plane.rewind()
+        buffer.position(offset)
+        buffer.put(plane)
+        plane.position(planePosition)
+        return buffer.position()
+    }
+
+    companion object {
+        /** Creates a recorder appending frames to [file], which is preallocated to [size] bytes */
+        fun linear(file: File, size: Long): YuvFrameRecorder {
+            require(size >= YuvFrameDump.FILE_HEADER_SIZE) { "Size is too small, got $size" }
+            return YuvFrameRecorder(file, size, 0, 0)
+        }
+
+        /**
+         * Creates a recorder keeping the last [slotCount] frames in [file], each taking up to
+         * [slotSize] bytes. The file is preallocated to hold every slot.
+         */
+        fun ring(file: File, slotCount: Int, slotSize: Int): YuvFrameRecorder {
+            require(slotCount > 0) { "Slot count must be positive, got $slotCount" }
+            require(slotSize >= YuvFrameDump.RECORD_HEADER_SIZE) { "Slots are too small" }
+            return YuvFrameRecorder(file,
+                    YuvFrameDump.FILE_HEADER_SIZE + slotCount.toLong() * slotSize,
+                    slotSize, slotCount)
+        }
+
+        /** Number of bytes needed to record [frame], e.g. to size the slots of a ring */
+        fun recordSize(frame: YuvFrame) = YuvFrameDump.recordSize(frame)
+
+        /** Number of bytes needed to record [image], which must be in YUV_420_888 format */
+        fun recordSize(image: Image) = recordSize(YuvFrame().set(image))
+    }
+}
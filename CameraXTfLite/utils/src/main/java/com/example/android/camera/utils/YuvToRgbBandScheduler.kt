@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+
+/**
+ * Converts a [YuvFrame] into ARGB pixels using several cores, by splitting the crop rectangle
+ * into horizontal bands of rows which are handed to separate [YuvToRgbKernel] instances in a
+ * dedicated [ForkJoinPool] of size [parallelism].
+ *
+ * Band boundaries fall on even rows of the full image, so each row of the subsampled chroma
+ * planes is read by a single band. Frames smaller than [minParallelPixels] are converted on the
+ * calling thread, since for those the cost of waking up the workers dominates.
+ *
+ * Tasks and kernels are allocated once and recycled for every frame; the only per-frame
+ * allocations are the views of the plane buffers given to each band, since buffer positions
+ * cannot be shared between threads. Calls to [convert] are serialized.
+ */
+class YuvToRgbBandScheduler(
+        val parallelism: Int = Runtime.getRuntime().availableProcessors(),
+        private val minParallelPixels: Int = DEFAULT_MIN_PARALLEL_PIXELS
+) {
+    init {
+        require(parallelism > 0) { "Parallelism must be positive, got $parallelism" }
+    }
+
+    // Frames too small to split never need the pool, which is then never started
+    private val lazyPool = lazy { ForkJoinPool(parallelism) }
+    private val pool by lazyPool
+    private val serialKernel = YuvToRgbKernel()
+    private val bands = Array(parallelism) { BandTask() }
+    private val root = RootTask()
+
+    @Synchronized
+    fun convert(frame: YuvFrame, output: IntArray) {
+        val height = frame.cropHeight
+        if (parallelism == 1 || frame.cropWidth * height < minParallelPixels || height < 4) {
+            serialKernel.convert(frame, output)
+            return
+        }
+
+        // Use an even number of rows per band, at most one band per worker
+        val bandCount = minOf(parallelism, height / 2)
+        val bandRows = ((height + bandCount - 1) / bandCount + 1) and 1.inv()
+
+        // If the crop starts on an odd row, shift the boundaries so they stay on even rows
+        val shift = frame.cropTop and 1
+
+        var count = 0
+        var rowStart = 0
+        while (rowStart < height) {
+            val rowEnd = if (count == bandCount - 1) height else
+                ((count + 1) * bandRows - shift).coerceAtMost(height)
+            bands[count++].set(frame, output, rowStart, rowEnd)
+            rowStart = rowEnd
+        }
+
+        root.bandCount = count
+        root.reinitialize()
+        pool.invoke(root)
+    }
+
+    /** Stops the worker threads. The scheduler cannot be used afterwards */
+    fun shutdown() {
+        if (lazyPool.isInitialized()) pool.shutdown()
+    }
+
+    /** Forks all bands but the first, converts the first one in place and waits for the rest */
+    private inner class RootTask : RecursiveAction() {
+        var bandCount = 0
+
+        override fun compute() {
+            for (i in 1 until bandCount) {
+                bands[i].reinitialize()
+                bands[i].fork()
+            }
+            bands[0].run()
+            for (i in 1 until bandCount) bands[i].join()
+        }
+    }
+
+    /** Converts a contiguous range of rows of the crop rectangle */
+    private class BandTask : RecursiveAction() {
+        private val kernel = YuvToRgbKernel()
+        private val frame = YuvFrame()
+        private lateinit var output: IntArray
+        private var rowStart = 0
+        private var rowEnd = 0
+
+        fun set(frame: YuvFrame, output: IntArray, rowStart: Int, rowEnd: Int) {
+            this.frame.set(frame)
+            this.output = output
+            this.rowStart = rowStart
+            this.rowEnd = rowEnd
+        }
+
+        fun run() = kernel.convert(frame, output, rowStart, rowEnd)
+
+        override fun compute() = run()
+    }
+
+    companion object {
+        /** Roughly a 640x480 frame, below which the serial path is usually faster */
+        const val DEFAULT_MIN_PARALLEL_PIXELS = 640 * 480
+    }
+}
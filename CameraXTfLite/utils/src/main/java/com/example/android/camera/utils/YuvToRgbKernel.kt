@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import java.nio.ByteBuffer
+
+/**
+ * Pure Kotlin YUV to ARGB conversion using BT.601 limited range coefficients in 10-bit fixed
+ * point, which are the same ones used by [android.graphics.YuvImage] and the RenderScript
+ * intrinsic.
+ *
+ * Each row of the planes of a [YuvFrame] is bulk copied into a small scratch array owned by
+ * this instance before converting it, since reading direct buffers one byte at a time is much
+ * slower than a single copy. There is no intermediate NV21 frame, and once the scratch arrays
+ * have grown to the width of the frame no more memory is allocated.
+ *
+ * Converting moves the position of the plane buffers. An instance must not be used from
+ * multiple threads at once, and threads converting the same frame concurrently must each use
+ * their own instance and their own views of the plane buffers, see [YuvFrame.set].
+ */
+class YuvToRgbKernel {
+
+    private var yRow = ByteArray(0)
+    private var uRow = ByteArray(0)
+    private var vRow = ByteArray(0)
+
+    /**
+     * Converts the rows in the range [[rowStart], [rowEnd]) of the crop rectangle of [frame]
+     * into [output], which is laid out as `cropWidth * cropHeight` packed ARGB pixels.
+     */
+    fun convert(
+            frame: YuvFrame,
+            output: IntArray,
+            rowStart: Int = 0,
+            rowEnd: Int = frame.cropHeight
+    ) {
+        val cropWidth = frame.cropWidth
+        require(output.size >= cropWidth * frame.cropHeight) { "Output buffer is too small" }
+        require(rowStart in 0..rowEnd && rowEnd <= frame.cropHeight) {
+            "Invalid row range [$rowStart, $rowEnd)"
+        }
+        if (cropWidth == 0) return
+
+        val left = frame.cropLeft
+        val right = frame.cropRight
+        val yPixelStride = frame.yPixelStride
+        val uPixelStride = frame.uPixelStride
+        val vPixelStride = frame.vPixelStride
+
+        // Chroma planes are subsampled by two in both directions
+        val chromaLeft = left shr 1
+        val chromaRight = (right - 1) shr 1
+        val yLength = (cropWidth - 1) * yPixelStride + 1
+        val uLength = (chromaRight - chromaLeft) * uPixelStride + 1
+        val vLength = (chromaRight - chromaLeft) * vPixelStride + 1
+        if (yRow.size < yLength) yRow = ByteArray(yLength)
+        if (uRow.size < uLength) uRow = ByteArray(uLength)
+        if (vRow.size < vLength) vRow = ByteArray(vLength)
+        val yRow = yRow
+        val uRow = uRow
+        val vRow = vRow
+
+        var chromaRow = -1
+        var outputIndex = rowStart * cropWidth
+        for (row in frame.cropTop + rowStart until frame.cropTop + rowEnd) {
+            copyRow(frame.yBuffer, row * frame.yRowStride + left * yPixelStride, yRow, yLength)
+
+            // Each chroma row is shared by two consecutive rows of pixels
+            if (row shr 1 != chromaRow) {
+                chromaRow = row shr 1
+                copyRow(frame.uBuffer, chromaRow * frame.uRowStride + chromaLeft * uPixelStride,
+                        uRow, uLength)
+                copyRow(frame.vBuffer, chromaRow * frame.vRowStride + chromaLeft * vPixelStride,
+                        vRow, vLength)
+            }
+
+            var x = left
+            while (x < right) {
+                // Each chroma sample is shared by two horizontally adjacent pixels, so the
+                // chroma terms are computed once and reused for the odd pixel that follows
+                val chromaColumn = (x shr 1) - chromaLeft
+                val u = uRow[chromaColumn * uPixelStride].toInt() and 0xFF
+                val v = vRow[chromaColumn * vPixelStride].toInt() and 0xFF
+                val rv = 1634 * (v - 128)
+                val guv = 833 * (v - 128) + 400 * (u - 128)
+                val bu = 2066 * (u - 128)
+
+                output[outputIndex++] = toArgb(
+                        yRow[(x - left) * yPixelStride].toInt() and 0xFF, rv, guv, bu)
+                x++
+
+                if (x < right && (x and 1) == 1) {
+                    output[outputIndex++] = toArgb(
+                            yRow[(x - left) * yPixelStride].toInt() and 0xFF, rv, guv, bu)
+                    x++
+                }
+            }
+        }
+    }
+
+    /** Copies [length] bytes starting at [offset] of [buffer] into the start of [row] */
+    private fun copyRow(buffer: ByteBuffer, offset: Int, row: ByteArray, length: Int) {
+        buffer.position(offset)
+        buffer.get(row, 0, length)
+    }
+}
+
+/** Largest intermediate value of a channel, i.e. 255 in 10-bit fixed point */
+private const val MAX_CHANNEL_VALUE = 262143
+
+/**
+ * Converts a single pixel to ARGB with the same coefficients as [YuvToRgbKernel], for callers
+ * that only sample a few pixels of each frame.
+ */
+internal fun yuvToArgb(y: Int, u: Int, v: Int): Int = toArgb(
+        y, 1634 * (v - 128), 833 * (v - 128) + 400 * (u - 128), 2066 * (u - 128))
+
+/**
+ * Combines a luma value with precomputed chroma terms into a single ARGB pixel. Channels are
+ * clamped with bit tricks rather than comparisons, since with noisy camera data branches
+ * are mispredicted often enough to dominate the cost of the conversion.
+ */
+@Suppress("NOTHING_TO_INLINE")
+private inline fun toArgb(y: Int, rv: Int, guv: Int, bu: Int): Int {
+    val y1192 = 1192 * clampToZero(y - 16)
+    val r = saturate(clampToZero(y1192 + rv))
+    val g = saturate(clampToZero(y1192 - guv))
+    val b = saturate(clampToZero(y1192 + bu))
+    return -0x1000000 or
+            ((r shl 6) and 0xFF0000) or
+            ((g shr 2) and 0xFF00) or
+            ((b shr 10) and 0xFF)
+}
+
+/** Returns zero for negative values, and the value itself otherwise */
+@Suppress("NOTHING_TO_INLINE")
+private inline fun clampToZero(value: Int) = value and (value shr 31).inv()
+
+/**
+ * Sets all bits of values above [MAX_CHANNEL_VALUE], so that masking any channel out of the
+ * result yields 255. Values in range are returned unchanged.
+ */
+@Suppress("NOTHING_TO_INLINE")
+private inline fun saturate(value: Int) = value or ((MAX_CHANNEL_VALUE - value) shr 31)
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import android.media.Image
+import java.nio.ByteBuffer
+
+/**
+ * Produces the RGB888 input tensor of an image model straight from a YUV frame, fusing center
+ * crop, nearest neighbor resize, rotation and color conversion in a single step.
+ *
+ * The result is the same as converting the whole frame to an ARGB bitmap and then applying the
+ * TensorFlow Lite support ops `ResizeWithCropOrPadOp` to a square of the shorter side,
+ * `ResizeOp` with nearest neighbor sampling and `Rot90Op` to make the image upright. Instead of
+ * touching every pixel of the frame several times, only the [tensorWidth] by [tensorHeight]
+ * pixels sampled by the resize are read and converted, using the same coefficients as
+ * [YuvToRgbKernel].
+ *
+ * [processFloat] writes the same tensor as normalized 32 bit floats, for models with a float
+ * input. [processLuma] samples the same pixels but only keeps their luma, e.g. for a cheap
+ * tracker that works in the coordinates of the model input.
+ *
+ * Sampling positions are computed once per frame geometry and reused for later frames, so no
+ * memory is allocated per frame. Instances are not thread-safe.
+ */
+class YuvToTensorPreprocessor(val tensorWidth: Int, val tensorHeight: Int) {
+
+    init {
+        require(tensorWidth > 0 && tensorHeight > 0) {
+            "Invalid tensor size ${tensorWidth}x$tensorHeight"
+        }
+    }
+
+    /** Number of bytes written into the output buffer for each frame */
+    val outputSize = tensorWidth * tensorHeight * 3
+
+    /** Number of bytes written into the output buffer for each frame by [processFloat] */
+    val floatOutputSize = outputSize * 4
+
+    private val yuvFrame = YuvFrame()
+    private val rgb = ByteArray(outputSize)
+
+    // Normalized value of each channel value, for the mean and standard deviation last used
+    private val normalized = FloatArray(256)
+    private var normalizedMean = Float.NaN
+    private var normalizedStd = Float.NaN
+
+    // Geometry the sampling offsets below were computed for
+    private var cropLeft = -1
+    private var cropTop = -1
+    private var cropWidth = -1
+    private var cropHeight = -1
+    private var rotation = -1
+    private var yPixelStride = -1
+    private var uPixelStride = -1
+    private var vPixelStride = -1
+
+    // Offsets into each plane of the pixels sampled in each column and row of the resized image
+    private var yColumnOffsets = IntArray(0)
+    private var uColumnOffsets = IntArray(0)
+    private var vColumnOffsets = IntArray(0)
+    private var rows = IntArray(0)
+
+    /**
+     * Writes the tensor for [image], which must be in YUV_420_888 format, into [output]. See
+     * [process] for the meaning of [rotationDegrees].
+     */
+    fun process(image: Image, rotationDegrees: Int, output: ByteBuffer) =
+            process(yuvFrame.set(image), rotationDegrees, output)
+
+    /**
+     * Writes the tensor for [frame] into the first [outputSize] bytes of [output], in row major
+     * order with interleaved RGB channels, leaving the position of [output] at zero.
+     * [rotationDegrees] is the clockwise rotation that makes the frame upright, a multiple of 90.
+     */
+    fun process(frame: YuvFrame, rotationDegrees: Int, output: ByteBuffer) {
+        require(output.capacity() >= outputSize) { "Output buffer is too small" }
+        convert(frame, rotationDegrees)
+        output.rewind()
+        output.put(rgb, 0, outputSize)
+        output.rewind()
+    }
+
+    /** Writes the float tensor for [image] into [output], see [processFloat] */
+    fun processFloat(
+            image: Image,
+            rotationDegrees: Int,
+            output: ByteBuffer,
+            mean: Float,
+            std: Float
+    ) = processFloat(yuvFrame.set(image), rotationDegrees, output, mean, std)
+
+    /**
+     * Writes the tensor for [frame] like [process], but with each channel value c stored as the
+     * float (c - [mean]) / [std] in the byte order of [output], which takes [floatOutputSize]
+     * bytes. The position of [output] is left at zero.
+     */
+    fun processFloat(
+            frame: YuvFrame,
+            rotationDegrees: Int,
+            output: ByteBuffer,
+            mean: Float,
+            std: Float
+    ) {
+        require(output.capacity() >= floatOutputSize) { "Output buffer is too small" }
+        convert(frame, rotationDegrees)
+        if (mean != normalizedMean || std != normalizedStd) {
+            for (value in 0 until 256) normalized[value] = (value - mean) / std
+            normalizedMean = mean
+            normalizedStd = std
+        }
+        val rgb = rgb
+        val normalized = normalized
+        for (i in 0 until outputSize) {
+            output.putFloat(4 * i, normalized[rgb[i].toInt() and 0xFF])
+        }
+        output.rewind()
+    }
+
+    /** Converts the pixels sampled for [frame] into the RGB888 scratch array */
+    private fun convert(frame: YuvFrame, rotationDegrees: Int) {
+        require(rotationDegrees % 90 == 0) { "Invalid rotation $rotationDegrees" }
+        require(frame.cropWidth > 0 && frame.cropHeight > 0) { "Frame is empty" }
+        updateGeometry(frame, rotationDegrees)
+        val resizedWidth = resizedWidth()
+        val resizedHeight = resizedHeight()
+        val step = 3 * columnStep()
+
+        val yBuffer = frame.yBuffer
+        val uBuffer = frame.uBuffer
+        val vBuffer = frame.vBuffer
+        val yColumnOffsets = yColumnOffsets
+        val uColumnOffsets = uColumnOffsets
+        val vColumnOffsets = vColumnOffsets
+        val rgb = rgb
+
+        for (row in 0 until resizedHeight) {
+            val y = rows[row]
+            val yRowOffset = y * frame.yRowStride
+            val uRowOffset = (y shr 1) * frame.uRowStride
+            val vRowOffset = (y shr 1) * frame.vRowStride
+            var index = 3 * firstIndex(row)
+            for (column in 0 until resizedWidth) {
+                val argb = yuvToArgb(
+                        yBuffer.get(yRowOffset + yColumnOffsets[column]).toInt() and 0xFF,
+                        uBuffer.get(uRowOffset + uColumnOffsets[column]).toInt() and 0xFF,
+                        vBuffer.get(vRowOffset + vColumnOffsets[column]).toInt() and 0xFF)
+                rgb[index] = (argb shr 16).toByte()
+                rgb[index + 1] = (argb shr 8).toByte()
+                rgb[index + 2] = argb.toByte()
+                index += step
+            }
+        }
+    }
+
+    /** Writes the luma of the pixels sampled for [image] into [output], see [processLuma] */
+    fun processLuma(image: Image, rotationDegrees: Int, output: ByteArray) =
+            processLuma(yuvFrame.set(image), rotationDegrees, output)
+
+    /**
+     * Writes the luma of the pixels that [process] would sample for [frame] into the first
+     * [tensorWidth] times [tensorHeight] bytes of [output], in row major order.
+     */
+    fun processLuma(frame: YuvFrame, rotationDegrees: Int, output: ByteArray) {
+        require(rotationDegrees % 90 == 0) { "Invalid rotation $rotationDegrees" }
+        require(output.size >= tensorWidth * tensorHeight) { "Output array is too small" }
+        require(frame.cropWidth > 0 && frame.cropHeight > 0) { "Frame is empty" }
+        updateGeometry(frame, rotationDegrees)
+        val resizedWidth = resizedWidth()
+        val step = columnStep()
+        val yBuffer = frame.yBuffer
+        val yColumnOffsets = yColumnOffsets
+
+        for (row in 0 until resizedHeight()) {
+            val yRowOffset = rows[row] * frame.yRowStride
+            var index = firstIndex(row)
+            for (column in 0 until resizedWidth) {
+                output[index] = yBuffer.get(yRowOffset + yColumnOffsets[column])
+                index += step
+            }
+        }
+    }
+
+    // Size of the resized image before it is rotated
+    private fun resizedWidth() = if (rotation % 180 == 0) tensorWidth else tensorHeight
+    private fun resizedHeight() = if (rotation % 180 == 0) tensorHeight else tensorWidth
+
+    /** Moving along a row of the resized image moves the output pixel by this many pixels */
+    private fun columnStep() = when (rotation) {
+        0 -> 1
+        90 -> tensorWidth
+        180 -> -1
+        else -> -tensorWidth
+    }
+
+    /** Output pixel of the first column of a [row] of the resized image */
+    private fun firstIndex(row: Int) = when (rotation) {
+        0 -> row * tensorWidth
+        90 -> resizedHeight() - 1 - row
+        180 -> (resizedHeight() - 1 - row) * tensorWidth + resizedWidth() - 1
+        else -> (resizedWidth() - 1) * tensorWidth + row
+    }
+
+    /** Recomputes the sampled columns and rows if the geometry of the frame changed */
+    private fun updateGeometry(frame: YuvFrame, rotationDegrees: Int) {
+        val rotation = (rotationDegrees % 360 + 360) % 360
+        if (frame.cropLeft == cropLeft && frame.cropTop == cropTop &&
+                frame.cropWidth == cropWidth && frame.cropHeight == cropHeight &&
+                rotation == this.rotation && frame.yPixelStride == yPixelStride &&
+                frame.uPixelStride == uPixelStride && frame.vPixelStride == vPixelStride) {
+            return
+        }
+        cropLeft = frame.cropLeft
+        cropTop = frame.cropTop
+        cropWidth = frame.cropWidth
+        cropHeight = frame.cropHeight
+        this.rotation = rotation
+        yPixelStride = frame.yPixelStride
+        uPixelStride = frame.uPixelStride
+        vPixelStride = frame.vPixelStride
+
+        val resizedWidth = resizedWidth()
+        val resizedHeight = resizedHeight()
+
+        // Center crop a square out of the longer side of the frame
+        val cropSize = minOf(cropWidth, cropHeight)
+        val left = cropLeft + (cropWidth - cropSize) / 2
+        val top = cropTop + (cropHeight - cropSize) / 2
+
+        yColumnOffsets = IntArray(resizedWidth)
+        uColumnOffsets = IntArray(resizedWidth)
+        vColumnOffsets = IntArray(resizedWidth)
+        for (column in 0 until resizedWidth) {
+            val x = left + sample(column, cropSize, resizedWidth)
+            yColumnOffsets[column] = x * yPixelStride
+            uColumnOffsets[column] = (x shr 1) * uPixelStride
+            vColumnOffsets[column] = (x shr 1) * vPixelStride
+        }
+        rows = IntArray(resizedHeight) { top + sample(it, cropSize, resizedHeight) }
+    }
+
+    companion object {
+        /**
+         * Returns the source coordinate sampled by nearest neighbor resizing for [index], which
+         * is the one under the center of the resized pixel, i.e. floor((index + 0.5) * scale)
+         */
+        private fun sample(index: Int, sourceSize: Int, targetSize: Int) =
+                ((2L * index + 1) * sourceSize / (2L * targetSize)).toInt()
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class CaptureStartLatencyTest {
+
+    private val latency = CaptureStartLatency("test")
+
+    @Test
+    fun onlyFirstCaptureAfterPressIsMeasured() {
+        assertNull(latency.onStarted(1_000_000L))
+        latency.onPressed(10_000_000L)
+        assertEquals("Press to capture started: 40.00 ms, p50/p95 40.00/40.00 ms over 1 presses",
+                latency.onStarted(50_000_000L))
+        assertNull(latency.onStarted(83_000_000L))
+
+        latency.onPressed(100_000_000L)
+        assertEquals("Press to capture started: 20.00 ms, p50/p95 20.00/40.00 ms over 2 presses",
+                latency.onStarted(120_000_000L))
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.zip.Inflater
+import javax.imageio.ImageIO
+
+class DngWriterTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val width = 70
+    private val height = 45
+
+    private val metadata = DngMetadata(
+            cfaPattern = byteArrayOf(2, 1, 1, 0),
+            blackLevel = floatArrayOf(64f, 64f, 64f, 65f),
+            whiteLevel = 1023,
+            colorMatrix1 = floatArrayOf(1.5f, -0.25f, 0f, -0.5f, 1.25f, 0.125f, 0f, 0.5f, 0.75f),
+            asShotNeutral = floatArrayOf(0.5f, 1f, 0.625f),
+            calibrationIlluminant1 = 21,
+            orientation = 6,
+            make = "Test",
+            model = "Sensor")
+
+    /** Synthetic 10-bit Bayer samples, with a gradient per color and some noise */
+    private val samples = IntArray(width * height) {
+        val x = it % width
+        val y = it / width
+        val color = (x and 1) + 2 * (y and 1)
+        64 + (x * 7 + y * 5 + color * 100 + (it * 31 % 17)) % 960
+    }
+
+    /** Direct buffer holding [samples] as the plane of a RAW_SENSOR image, after [offset] bytes */
+    private fun plane(rowStride: Int, offset: Int): ByteBuffer {
+        val plane = ByteBuffer.allocateDirect(offset + rowStride * height)
+                .order(ByteOrder.LITTLE_ENDIAN)
+        for (y in 0 until height) for (x in 0 until width) {
+            plane.putShort(offset + y * rowStride + x * 2, samples[y * width + x].toShort())
+        }
+        plane.position(offset)
+        return plane
+    }
+
+    /** Minimal TIFF reader, returning the entries of IFD0 by tag as raw values */
+    private class Tiff(val data: ByteBuffer) {
+        val entries = HashMap<Int, LongArray>()
+        val rationals = HashMap<Int, FloatArray>()
+        val strings = HashMap<Int, String>()
+
+        init {
+            assertEquals('I'.toByte(), data.get(0))
+            assertEquals(42, data.getShort(2).toInt())
+            val ifd = data.getInt(4)
+            assertEquals(0, ifd % 2)
+            val count = data.getShort(ifd).toInt()
+            var previous = 0
+            for (i in 0 until count) {
+                val entry = ifd + 2 + 12 * i
+                val tag = data.getShort(entry).toInt() and 0xFFFF
+                val type = data.getShort(entry + 2).toInt()
+                val n = data.getInt(entry + 4)
+                assertTrue("Tags must be sorted", tag > previous)
+                previous = tag
+                val size = n * when (type) {
+                    1, 2 -> 1
+                    3 -> 2
+                    4 -> 4
+                    else -> 8
+                }
+                val offset = if (size <= 4) entry + 8 else data.getInt(entry + 8)
+                when (type) {
+                    1 -> entries[tag] = LongArray(n) { data.get(offset + it).toLong() }
+                    2 -> strings[tag] = String(ByteArray(n - 1) { data.get(offset + it) })
+                    3 -> entries[tag] = LongArray(n) {
+                        data.getShort(offset + 2 * it).toLong() and 0xFFFF
+                    }
+                    4 -> entries[tag] = LongArray(n) {
+                        data.getInt(offset + 4 * it).toLong() and 0xFFFFFFFFL
+                    }
+                    else -> rationals[tag] = FloatArray(n) {
+                        data.getInt(offset + 8 * it).toFloat() / data.getInt(offset + 8 * it + 4)
+                    }
+                }
+            }
+        }
+
+        fun value(tag: Int) = entries.getValue(tag).single().toInt()
+
+        /** Decodes the strips of the image into samples */
+        fun samples(): IntArray {
+            val width = value(256)
+            val height = value(257)
+            val rowsPerStrip = value(278)
+            val offsets = entries.getValue(273)
+            val counts = entries.getValue(279)
+            val deflated = value(259) == 8
+            val output = IntArray(width * height)
+            for (strip in offsets.indices) {
+                val bytes = ByteArray(counts[strip].toInt())
+                data.position(offsets[strip].toInt())
+                data.get(bytes)
+                val stripBytes = if (deflated) inflate(bytes) else bytes
+                val stripData = ByteBuffer.wrap(stripBytes).order(ByteOrder.LITTLE_ENDIAN)
+                val firstRow = strip * rowsPerStrip
+                for (i in 0 until stripBytes.size / 2) {
+                    var sample = stripData.getShort(2 * i).toInt() and 0xFFFF
+                    if (deflated && i % width != 0) {
+                        sample = (sample + output[firstRow * width + i - 1]) and 0xFFFF
+                    }
+                    output[firstRow * width + i] = sample
+                }
+            }
+            return output
+        }
+
+        private fun inflate(bytes: ByteArray): ByteArray {
+            val inflater = Inflater()
+            inflater.setInput(bytes)
+            val output = ByteArray(4 * bytes.size + 1024 * 1024)
+            val size = inflater.inflate(output)
+            assertTrue(inflater.finished())
+            inflater.end()
+            return output.copyOf(size)
+        }
+    }
+
+    private fun write(file: File, writer: DngWriter, rowStride: Int): Tiff {
+        val plane = plane(rowStride, offset = 6)
+        val size = RandomAccessFile(file, "rw").channel.use {
+            writer.write(it, plane, width, height, rowStride, metadata)
+        }
+        assertEquals(6, plane.position())
+        assertEquals(file.length(), size)
+        val data = ByteBuffer.wrap(file.readBytes()).order(ByteOrder.LITTLE_ENDIAN)
+        return Tiff(data)
+    }
+
+    private fun assertMetadata(tiff: Tiff) {
+        assertEquals(width, tiff.value(256))
+        assertEquals(height, tiff.value(257))
+        assertEquals(16, tiff.value(258))
+        assertEquals(32803, tiff.value(262))
+        assertEquals(6, tiff.value(274))
+        assertEquals(1023, tiff.value(50717))
+        assertArrayEquals(longArrayOf(2, 1, 1, 0), tiff.entries.getValue(33422))
+        assertArrayEquals(longArrayOf(1, 4, 0, 0), tiff.entries.getValue(50706))
+        assertEquals("Test", tiff.strings[271])
+        assertEquals("Test Sensor", tiff.strings[50708])
+        assertArrayEquals(metadata.blackLevel, tiff.rationals.getValue(50714), 1e-4f)
+        assertArrayEquals(metadata.colorMatrix1, tiff.rationals.getValue(50721), 1e-4f)
+        assertArrayEquals(metadata.asShotNeutral, tiff.rationals.getValue(50728), 1e-4f)
+        assertEquals(21, tiff.value(50778))
+    }
+
+    @Test
+    fun uncompressedImageRoundTrips() {
+        // Padded rows are written one slice at a time, contiguous ones one strip at a time
+        for (rowStride in listOf(width * 2, width * 2 + 12)) {
+            val file = folder.newFile()
+            val tiff = write(file, DngWriter(rowsPerStrip = 8), rowStride)
+            assertEquals(1, tiff.value(259))
+            assertEquals(6, tiff.entries.getValue(273).size)
+            assertMetadata(tiff)
+            assertArrayEquals(samples, tiff.samples())
+
+            // Also readable by a regular TIFF reader, which the JDK only ships since Java 9
+            if (ImageIO.getImageReadersByFormatName("tiff").hasNext()) {
+                val image = ImageIO.read(file)
+                val decoded = image.raster.getSamples(0, 0, width, height, 0, null as IntArray?)
+                assertArrayEquals(samples, decoded)
+            }
+        }
+    }
+
+    @Test
+    fun deflatedImageRoundTrips() {
+        val writer = DngWriter(DngWriter.Compression.DEFLATE, parallelism = 3, rowsPerStrip = 4)
+        try {
+            val tiff = write(folder.newFile(), writer, width * 2 + 4)
+            assertEquals(8, tiff.value(259))
+            assertEquals(2, tiff.value(317))
+            assertArrayEquals(longArrayOf(1, 4, 0, 0), tiff.entries.getValue(50707))
+            assertMetadata(tiff)
+            assertArrayEquals(samples, tiff.samples())
+        } finally {
+            writer.shutdown()
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun rejectsBufferTooSmall() {
+        RandomAccessFile(folder.newFile(), "rw").channel.use {
+            DngWriter().write(it, ByteBuffer.allocate(100), width, height, width * 2, metadata)
+        }
+    }
+}
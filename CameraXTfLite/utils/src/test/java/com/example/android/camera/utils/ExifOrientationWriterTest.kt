@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.awt.image.BufferedImage
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.Channels
+import java.nio.channels.GatheringByteChannel
+import javax.imageio.ImageIO
+
+class ExifOrientationWriterTest {
+
+    /** Collects what is written into it, like a file channel would */
+    private class Sink : GatheringByteChannel {
+        private val stream = ByteArrayOutputStream()
+        private val channel = Channels.newChannel(stream)
+        val bytes: ByteArray get() = stream.toByteArray()
+
+        override fun write(src: ByteBuffer) = channel.write(src)
+        override fun write(srcs: Array<out ByteBuffer>, offset: Int, length: Int): Long {
+            var written = 0L
+            for (i in offset until offset + length) written += write(srcs[i])
+            return written
+        }
+        override fun write(srcs: Array<out ByteBuffer>) = write(srcs, 0, srcs.size)
+        override fun isOpen() = true
+        override fun close() = Unit
+    }
+
+    /** A small JPEG as encoded by ImageIO, which starts with a JFIF APP0 segment */
+    private val jfif: ByteArray = ByteArrayOutputStream().use { stream ->
+        val image = BufferedImage(16, 8, BufferedImage.TYPE_INT_RGB)
+        for (y in 0 until 8) for (x in 0 until 16) image.setRGB(x, y, lumaAt(x, y) * 0x010101)
+        ImageIO.write(image, "jpg", stream)
+        stream.toByteArray()
+    }
+
+    /** [jfif] with its APP0 segment replaced by EXIF data holding [entries] in IFD0 */
+    private fun exifJpeg(order: ByteOrder, vararg entries: Pair<Int, Int>): ByteArray {
+        val tiff = ByteBuffer.allocate(8 + 2 + 12 * entries.size + 4).order(order)
+        tiff.put((if (order == ByteOrder.LITTLE_ENDIAN) 'I' else 'M').toByte())
+        tiff.put(tiff.get(0)).putShort(42).putInt(8).putShort(entries.size.toShort())
+        entries.forEach { (tag, value) ->
+            tiff.putShort(tag.toShort()).putShort(3).putInt(1).putShort(value.toShort())
+            tiff.putShort(0)
+        }
+        tiff.putInt(0)
+
+        val app0Length = (jfif[4].toInt() and 0xFF shl 8) or (jfif[5].toInt() and 0xFF)
+        val rest = jfif.copyOfRange(4 + app0Length, jfif.size)
+        val segmentLength = 2 + 6 + tiff.capacity()
+        return byteArrayOf(-1, 0xD8.toByte(), -1, 0xE1.toByte(), (segmentLength shr 8).toByte(),
+                segmentLength.toByte(), 0x45, 0x78, 0x69, 0x66, 0, 0) + tiff.array() + rest
+    }
+
+    private fun write(jpeg: ByteArray, orientation: Int): Pair<Boolean, ByteArray> {
+        // Leading bytes check that the JPEG is read from the position of its buffer
+        val buffer = ByteBuffer.allocateDirect(jpeg.size + 3)
+        buffer.position(3)
+        buffer.put(jpeg).position(3)
+        val sink = Sink()
+        val written = ExifOrientationWriter.write(buffer, sink, orientation)
+        assertEquals(3, buffer.position())
+        return written to sink.bytes
+    }
+
+    private fun assertDecodes(jpeg: ByteArray) =
+            assertNotNull(ImageIO.read(ByteArrayInputStream(jpeg)))
+
+    @Test
+    fun existingOrientationIsReplacedInPlace() {
+        for (order in listOf(ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN)) {
+            val original = exifJpeg(order, 0x010F to 7, 0x0112 to 1, 0x0110 to 9)
+            val (written, output) = write(original, 6)
+
+            assertTrue(written)
+            assertEquals(6, ExifOrientationWriter.read(ByteBuffer.wrap(output)))
+            // Only the two bytes of the value differ: the header, the first entry and the tag,
+            // type and count of the orientation entry come first
+            val valueOffset = 12 + 8 + 2 + 12 + 8
+            val differences = original.indices.filter { original[it] != output[it] }
+            assertEquals(original.size, output.size)
+            assertTrue(differences.all { it == valueOffset || it == valueOffset + 1 })
+            assertDecodes(output)
+        }
+    }
+
+    @Test
+    fun exifSegmentIsInsertedAfterJfifHeader() {
+        assertEquals(-1, ExifOrientationWriter.read(ByteBuffer.wrap(jfif)))
+        val (written, output) = write(jfif, 8)
+
+        assertTrue(written)
+        assertEquals(8, ExifOrientationWriter.read(ByteBuffer.wrap(output)))
+        val app0End = 4 + ((jfif[4].toInt() and 0xFF shl 8) or (jfif[5].toInt() and 0xFF))
+        assertArrayEquals(jfif.copyOfRange(0, app0End), output.copyOfRange(0, app0End))
+        assertEquals(0xE1, output[app0End + 1].toInt() and 0xFF)
+        assertArrayEquals(jfif.copyOfRange(app0End, jfif.size),
+                output.copyOfRange(output.size - jfif.size + app0End, output.size))
+        assertDecodes(output)
+    }
+
+    @Test
+    fun exifWithoutOrientationIsWrittenUnchanged() {
+        val original = exifJpeg(ByteOrder.BIG_ENDIAN, 0x010F to 7)
+        assertEquals(0, ExifOrientationWriter.read(ByteBuffer.wrap(original)))
+        val (written, output) = write(original, 3)
+
+        assertFalse(written)
+        assertArrayEquals(original, output)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun rejectsOtherData() {
+        write(ByteArray(16) { 1 }, 1)
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+
+class FrameRateMeterTest {
+
+    @Test
+    fun steadyStreamHasNoJitter() {
+        val meter = FrameRateMeter(capacity = 10)
+        for (i in 0 until 25) meter.onFrame(i * FRAME_NANOS, i * FRAME_NANOS + 5_000_000L)
+
+        assertEquals(25L, meter.frameCount)
+        assertEquals(10, meter.size)
+        assertEquals(30.0, meter.framesPerSecond, 1e-6)
+        assertEquals(0.0, meter.jitterNanos, 1e-3)
+        assertEquals(5_000_000L, meter.latencyPercentile(0.5))
+        assertEquals(5_000_000L, meter.latencyPercentile(0.99))
+    }
+
+    @Test
+    fun rateOnlyCoversTheWindow() {
+        val meter = FrameRateMeter(capacity = 4)
+
+        // A slow start at 10 fps followed by frames at 30 fps
+        var now = 0L
+        for (i in 0 until 3) {
+            meter.onFrame(now, now)
+            now += 3 * FRAME_NANOS
+        }
+        for (i in 0 until 4) {
+            meter.onFrame(now, now)
+            now += FRAME_NANOS
+        }
+
+        assertEquals(30.0, meter.framesPerSecond, 1e-6)
+    }
+
+    @Test
+    fun jitterIsStandardDeviationOfIntervals() {
+        val meter = FrameRateMeter(capacity = 5)
+
+        // Intervals alternate between 20 and 40 ms
+        val arrivals = longArrayOf(0L, 20L, 60L, 80L, 120L).map { it * 1_000_000L }
+        arrivals.forEach { meter.onFrame(it, it) }
+
+        assertEquals(10_000_000.0, meter.jitterNanos, 1e-3)
+        assertEquals(4 / 0.12, meter.framesPerSecond, 1e-6)
+    }
+
+    @Test
+    fun latencyPercentilesUseNearestRank() {
+        val meter = FrameRateMeter(capacity = 100)
+        val latencies = (1..100).shuffled(Random(42))
+        latencies.forEachIndexed { i, latency ->
+            val now = i * FRAME_NANOS
+            meter.onFrame(now - latency, now)
+        }
+
+        assertEquals(50L, meter.latencyPercentile(0.5))
+        assertEquals(95L, meter.latencyPercentile(0.95))
+        assertEquals(99L, meter.latencyPercentile(0.99))
+        assertEquals(1L, meter.latencyPercentile(0.0))
+
+        // New frames invalidate the sorted copy of the window
+        meter.onFrame(100 * FRAME_NANOS - 1000L, 100 * FRAME_NANOS)
+        assertEquals(1000L, meter.latencyPercentile(1.0))
+    }
+
+    @Test
+    fun resetForgetsFrames() {
+        val meter = FrameRateMeter()
+        meter.onFrame(0L, 10L)
+        meter.onFrame(FRAME_NANOS, FRAME_NANOS + 10L)
+        meter.reset()
+
+        assertEquals(0L, meter.frameCount)
+        assertEquals(0.0, meter.framesPerSecond, 0.0)
+        assertEquals(0L, meter.latencyPercentile(0.5))
+    }
+
+    companion object {
+        private const val FRAME_NANOS = 1_000_000_000L / 30
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class FrameReplayerTest {
+
+    /** Frames with the given timestamps, all sharing the same planes */
+    private class TimestampSource(private vararg val timestamps: Long) : FrameSource {
+        private val template = createTestFrame(16, 16, rowPadding = 0, semiPlanar = false)
+        private var next = 0
+
+        override val rotationDegrees = 90
+
+        override fun next(frame: YuvFrame): Boolean {
+            if (next == timestamps.size) return false
+            frame.set(template).timestamp = timestamps[next++]
+            return true
+        }
+
+        override fun close() = Unit
+    }
+
+    /** Fake time that only moves when the replayer sleeps or a frame is analyzed */
+    private var now = 1_000_000L
+    private val sleeps = ArrayList<Long>()
+
+    private fun replayer(source: FrameSource, realtime: Boolean) = FrameReplayer(source, realtime,
+            clock = { now }, sleep = { sleeps.add(it); now += it })
+
+    @Test
+    fun maxSpeedDeliversFramesBackToBack() {
+        val result = replayer(TimestampSource(0L, 33_000_000L, 66_000_000L), realtime = false)
+                .run { _, rotation ->
+                    assertEquals(90, rotation)
+                    now += 5_000_000L
+                }
+
+        assertTrue(sleeps.isEmpty())
+        assertEquals(3, result.frames)
+        assertEquals(15_000_000L, result.elapsedNanos)
+        assertEquals(200.0, result.framesPerSecond, 1e-9)
+        assertEquals(5_000_000L, result.latencyPercentile(1.0))
+    }
+
+    @Test
+    fun realtimeWaitsForEachTimestamp() {
+        val result = replayer(TimestampSource(500L, 33_000_500L, 66_000_500L), realtime = true)
+                .run { _, _ -> now += 10_000_000L }
+
+        assertEquals(listOf(23_000_000L, 23_000_000L), sleeps)
+        assertEquals(76_000_000L, result.elapsedNanos)
+        assertEquals(10_000_000L, result.latencyPercentile(0.0))
+        assertEquals(10_000_000L, result.latencyPercentile(1.0))
+    }
+
+    @Test
+    fun realtimeLatencyIncludesQueueingBehindSlowFrames() {
+        val result = replayer(TimestampSource(0L, 33_000_000L, 66_000_000L), realtime = true)
+                .run { _, _ -> now += 50_000_000L }
+
+        assertTrue(sleeps.isEmpty())
+        assertEquals(50_000_000L, result.latencyPercentile(0.0))
+        assertEquals(67_000_000L, result.latencyPercentile(0.5))
+        assertEquals(84_000_000L, result.latencyPercentile(1.0))
+    }
+
+    @Test
+    fun stopsAfterMaxFrames() {
+        var analyzed = 0
+        val result = replayer(TimestampSource(0L, 1L, 2L, 3L), realtime = false)
+                .run(maxFrames = 2) { _, _ -> analyzed++ }
+        assertEquals(2, analyzed)
+        assertEquals(2, result.frames)
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class FrameStatsAnalyzerTest {
+
+    @Test
+    fun matchesReferenceWithinCrop() {
+        val frame = createTestFrame(70, 46, rowPadding = 10, semiPlanar = true)
+                .setCrop(3, 5, 67, 43)
+        val stats = FrameStatsAnalyzer(tileColumns = 4, tileRows = 3).run {
+            analyze(frame)
+            latest()
+        }
+
+        val width = frame.cropWidth
+        val height = frame.cropHeight
+        val luma = { x: Int, y: Int -> lumaAt(frame.cropLeft + x, frame.cropTop + y) }
+
+        val histogram = IntArray(256)
+        var sum = 0.0
+        var sumSquares = 0.0
+        for (y in 0 until height) for (x in 0 until width) {
+            histogram[luma(x, y)]++
+            sum += luma(x, y)
+            sumSquares += luma(x, y) * luma(x, y)
+        }
+        val mean = sum / (width * height)
+        assertArrayEquals(histogram, stats.histogram)
+        assertEquals(mean, stats.mean, 1e-9)
+        assertEquals(sumSquares / (width * height) - mean * mean, stats.variance, 1e-6)
+
+        val laplacians = ArrayList<Int>()
+        for (y in 1 until height - 1) for (x in 1 until width - 1) {
+            laplacians.add(4 * luma(x, y) - luma(x - 1, y) - luma(x + 1, y) -
+                    luma(x, y - 1) - luma(x, y + 1))
+        }
+        val laplacianMean = laplacians.average()
+        val laplacianVariance = laplacians.map { (it - laplacianMean) * (it - laplacianMean) }
+                .average()
+        assertEquals(laplacianVariance, stats.sharpness, 1e-6)
+
+        // Each pixel belongs to the tile found by scaling its coordinates down to the grid
+        for (row in 0 until 3) for (column in 0 until 4) {
+            val values = ArrayList<Int>()
+            for (y in 0 until height) for (x in 0 until width) {
+                if (x * 4 / width == column && y * 3 / height == row) values.add(luma(x, y))
+            }
+            assertEquals(values.average(), stats.tileMean(column, row), 1e-9)
+        }
+    }
+
+    @Test
+    fun flatFrameHasNoVarianceOrSharpness() {
+        val frame = createTestFrame(32, 32, rowPadding = 0, semiPlanar = false)
+        frame.yBuffer.apply { while (hasRemaining()) put(100) }.rewind()
+        val stats = FrameStatsAnalyzer().run {
+            analyze(frame)
+            latest()
+        }
+
+        assertEquals(100.0, stats.mean, 0.0)
+        assertEquals(0.0, stats.variance, 0.0)
+        assertEquals(0.0, stats.sharpness, 0.0)
+        assertEquals(32 * 32, stats.histogram[100])
+        stats.tileMeans.forEach { assertEquals(100.0, it, 0.0) }
+    }
+
+    @Test
+    fun latestOnlyChangesWhenFramesArePublished() {
+        val analyzer = FrameStatsAnalyzer()
+        assertEquals(0L, analyzer.latest().frameNumber)
+
+        val frame = createTestFrame(16, 16, rowPadding = 0, semiPlanar = true)
+        frame.timestamp = 1L
+        analyzer.analyze(frame)
+        val first = analyzer.latest()
+        assertEquals(1L, first.frameNumber)
+        assertEquals(1L, first.timestamp)
+        assertSame(first, analyzer.latest())
+
+        // Frames analyzed while the reader holds a result never write into it
+        for (timestamp in 2L..5L) {
+            frame.timestamp = timestamp
+            analyzer.analyze(frame)
+            assertEquals(1L, first.timestamp)
+        }
+        val last = analyzer.latest()
+        assertNotSame(first, last)
+        assertEquals(5L, last.frameNumber)
+        assertEquals(5L, last.timestamp)
+    }
+
+    @Test
+    fun sharperFramesScoreHigher() {
+        val sharp = createTestFrame(64, 64, rowPadding = 0, semiPlanar = false)
+        val blurred = createTestFrame(64, 64, rowPadding = 0, semiPlanar = false)
+        for (y in 0 until 64) for (x in 0 until 64) {
+            sharp.yBuffer.put(y * 64 + x, (if ((x + y) % 2 == 0) 200 else 50).toByte())
+            blurred.yBuffer.put(y * 64 + x, (50 + x * 2).toByte())
+        }
+
+        val analyzer = FrameStatsAnalyzer()
+        analyzer.analyze(sharp)
+        val sharpness = analyzer.latest().sharpness
+        analyzer.analyze(blurred)
+        assertTrue(sharpness > analyzer.latest().sharpness)
+    }
+
+    @Test
+    fun sampledFrameOnlyVisitsEveryNthPixel() {
+        val frame = createTestFrame(70, 46, rowPadding = 10, semiPlanar = true)
+                .setCrop(3, 5, 67, 43)
+        val stats = FrameStatsAnalyzer(sampleStep = 3).run {
+            analyze(frame)
+            latest()
+        }
+
+        val histogram = IntArray(256)
+        var sum = 0.0
+        for (y in frame.cropTop until frame.cropBottom step 3) {
+            for (x in frame.cropLeft until frame.cropRight step 3) {
+                histogram[lumaAt(x, y)]++
+                sum += lumaAt(x, y)
+            }
+        }
+        assertArrayEquals(histogram, stats.histogram)
+        assertEquals(sum / histogram.sum(), stats.mean, 1e-9)
+        assertEquals(frame.cropWidth, stats.width)
+        assertEquals(frame.cropHeight, stats.height)
+    }
+
+    @Test
+    fun percentilesOfUniformFrame() {
+        val frame = createTestFrame(16, 16, rowPadding = 0, semiPlanar = false)
+        for (i in 0 until 256) frame.yBuffer.put(i, i.toByte())
+        val stats = FrameStatsAnalyzer().run {
+            analyze(frame)
+            latest()
+        }
+
+        assertEquals(0, stats.percentile(0.0))
+        assertEquals(127, stats.percentile(0.5))
+        assertEquals(243, stats.percentile(0.95))
+        assertEquals(255, stats.percentile(1.0))
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+
+class YuvFrameDumpTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private fun ByteBuffer.bytes() =
+            ByteArray(limit()).also { duplicate().apply { rewind() }.get(it) }
+
+    private fun assertSameFrame(expected: YuvFrame, actual: YuvFrame) {
+        assertEquals(expected.width, actual.width)
+        assertEquals(expected.height, actual.height)
+        assertEquals(expected.cropLeft, actual.cropLeft)
+        assertEquals(expected.cropTop, actual.cropTop)
+        assertEquals(expected.cropRight, actual.cropRight)
+        assertEquals(expected.cropBottom, actual.cropBottom)
+        assertEquals(expected.timestamp, actual.timestamp)
+        assertEquals(expected.yRowStride, actual.yRowStride)
+        assertEquals(expected.uPixelStride, actual.uPixelStride)
+        assertEquals(expected.vRowStride, actual.vRowStride)
+        assertArrayEquals(expected.yBuffer.bytes(), actual.yBuffer.bytes())
+        assertArrayEquals(expected.uBuffer.bytes(), actual.uBuffer.bytes())
+        assertArrayEquals(expected.vBuffer.bytes(), actual.vBuffer.bytes())
+    }
+
+    private fun writeDump(file: File, vararg frames: Pair<YuvFrame, Int>) =
+            YuvFrameDumpWriter.create(file).use { writer ->
+                frames.forEach { writer.write(it.first, it.second) }
+            }
+
+    @Test
+    fun framesReadBackAsWritten() {
+        val semiPlanar = createTestFrame(64, 48, rowPadding = 16, semiPlanar = true)
+                .setCrop(4, 2, 60, 46).apply { timestamp = 1_000L }
+        val planar = createTestFrame(32, 24, rowPadding = 0, semiPlanar = false)
+                .apply { timestamp = 34_000L }
+        val file = folder.newFile()
+        writeDump(file, semiPlanar to 90, planar to 270)
+
+        YuvFrameDumpReader.open(file).use { reader ->
+            val frame = YuvFrame()
+            assertTrue(reader.next(frame))
+            assertSameFrame(semiPlanar, frame)
+            assertEquals(90, reader.rotationDegrees)
+            assertEquals(0L, reader.sequence)
+
+            assertTrue(reader.next(frame))
+            assertSameFrame(planar, frame)
+            assertEquals(270, reader.rotationDegrees)
+            assertEquals(1L, reader.sequence)
+
+            assertFalse(reader.next(frame))
+
+            reader.rewind()
+            assertTrue(reader.next(frame))
+            assertSameFrame(semiPlanar, frame)
+        }
+    }
+
+    @Test
+    fun replayedFramesAnalyzeLikeOriginals() {
+        val original = createTestFrame(96, 64, rowPadding = 32, semiPlanar = true)
+        val file = folder.newFile()
+        writeDump(file, original to 0)
+
+        val expected = ByteArray(32 * 32 * 3)
+        val actual = ByteArray(expected.size)
+        val preprocessor = YuvToTensorPreprocessor(32, 32)
+        val output = ByteBuffer.allocateDirect(preprocessor.outputSize)
+        preprocessor.process(original, 0, output)
+        output.get(expected)
+
+        YuvFrameDumpReader.open(file).use { reader ->
+            val frame = YuvFrame()
+            assertTrue(reader.next(frame))
+            preprocessor.process(frame, reader.rotationDegrees, output)
+            output.get(actual)
+        }
+        assertArrayEquals(expected, actual)
+    }
+
+    @Test
+    fun truncatedRecordEndsTheDump() {
+        val file = folder.newFile()
+        val frame = createTestFrame(32, 32, rowPadding = 0, semiPlanar = false)
+        writeDump(file, frame to 0, frame to 0)
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 10) }
+
+        YuvFrameDumpReader.open(file).use { reader ->
+            assertTrue(reader.next(YuvFrame()))
+            assertFalse(reader.next(YuvFrame()))
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun rejectsOtherFiles() {
+        val file = folder.newFile().apply { writeBytes(ByteArray(64) { 1 }) }
+        YuvFrameDumpReader.open(file).close()
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class YuvFrameRecorderTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val frame = createTestFrame(64, 48, rowPadding = 16, semiPlanar = true)
+    private val recordSize = YuvFrameRecorder.recordSize(frame)
+
+    /** Returns the timestamps and rotations of the frames of the dump in [file] */
+    private fun readBack(file: File): List<Pair<Long, Int>> =
+            YuvFrameDumpReader.open(file).use { reader ->
+                val frames = ArrayList<Pair<Long, Int>>()
+                val read = YuvFrame()
+                while (reader.next(read)) {
+                    frames.add(read.timestamp to reader.rotationDegrees)
+                    val expected = ByteArray(frame.yBuffer.limit())
+                    frame.yBuffer.duplicate().apply { rewind() }.get(expected)
+                    val actual = ByteArray(read.yBuffer.limit())
+                    read.yBuffer.get(actual)
+                    assertArrayEquals(expected, actual)
+                }
+                frames
+            }
+
+    private fun YuvFrameRecorder.record(timestamp: Long, rotationDegrees: Int = 0) =
+            record(frame.apply { this.timestamp = timestamp }, rotationDegrees)
+
+    @Test
+    fun linearRecorderKeepsFirstFramesThatFit() {
+        val file = folder.newFile()
+        YuvFrameRecorder.linear(file, 32L + 3 * recordSize + recordSize / 2).use { recorder ->
+            for (i in 0 until 5) assertEquals(i < 3, recorder.record(i * 100L, 90))
+            assertEquals(3L, recorder.frameCount)
+            assertEquals(2L, recorder.droppedFrames)
+        }
+        assertEquals(listOf(0L to 90, 100L to 90, 200L to 90), readBack(file))
+    }
+
+    @Test
+    fun ringRecorderKeepsLastFramesInOrder() {
+        val file = folder.newFile()
+        YuvFrameRecorder.ring(file, slotCount = 3, slotSize = recordSize).use { recorder ->
+            for (i in 0 until 7) assertTrue(recorder.record(i * 100L))
+        }
+        assertEquals(listOf(400L to 0, 500L to 0, 600L to 0), readBack(file))
+    }
+
+    @Test
+    fun partiallyFilledRingOnlyHasRecordedFrames() {
+        val file = folder.newFile()
+        YuvFrameRecorder.ring(file, slotCount = 4, slotSize = recordSize + 100).use {
+            it.record(0L)
+            it.record(100L)
+        }
+        assertEquals(listOf(0L to 0, 100L to 0), readBack(file))
+    }
+
+    @Test
+    fun framesLargerThanSlotsAreDropped() {
+        val file = folder.newFile()
+        YuvFrameRecorder.ring(file, slotCount = 2, slotSize = recordSize - 1).use {
+            assertFalse(it.record(0L))
+            assertEquals(1L, it.droppedFrames)
+        }
+        assertTrue(readBack(file).isEmpty())
+    }
+
+    @Test
+    fun recordingLeavesPlanePositionsUntouched() {
+        frame.yBuffer.position(10)
+        YuvFrameRecorder.linear(folder.newFile(), 32L + recordSize).use { it.record(0L) }
+        assertEquals(10, frame.yBuffer.position())
+    }
+}
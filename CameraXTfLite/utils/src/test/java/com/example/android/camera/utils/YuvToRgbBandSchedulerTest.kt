@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class YuvToRgbBandSchedulerTest {
+
+    private val scheduler = YuvToRgbBandScheduler(parallelism = 4, minParallelPixels = 0)
+
+    @After
+    fun tearDown() = scheduler.shutdown()
+
+    /** Planar frame filled with a pseudo-random pattern */
+    private fun createFrame(width: Int, height: Int): YuvFrame {
+        var seed = 1
+        fun next(): Byte {
+            seed = seed * 1103515245 + 12345
+            return (seed ushr 16).toByte()
+        }
+        val y = ByteBuffer.allocateDirect(width * height).apply {
+            for (i in 0 until capacity()) put(i, next())
+        }
+        val u = ByteBuffer.allocateDirect(width * height / 4).apply {
+            for (i in 0 until capacity()) put(i, next())
+        }
+        val v = ByteBuffer.allocateDirect(width * height / 4).apply {
+            for (i in 0 until capacity()) put(i, next())
+        }
+        return YuvFrame()
+                .setSize(width, height)
+                .setPlane(0, y, width, 1)
+                .setPlane(1, u, width / 2, 1)
+                .setPlane(2, v, width / 2, 1)
+    }
+
+    private fun assertSameAsSerial(frame: YuvFrame) {
+        val expected = IntArray(frame.cropWidth * frame.cropHeight)
+        YuvToRgbKernel().convert(frame, expected)
+        val actual = IntArray(frame.cropWidth * frame.cropHeight)
+        scheduler.convert(frame, actual)
+        assertArrayEquals(expected, actual)
+    }
+
+    @Test
+    fun fullFrameMatchesSerialConversion() = assertSameAsSerial(createFrame(320, 240))
+
+    @Test
+    fun oddCropMatchesSerialConversion() =
+            assertSameAsSerial(createFrame(320, 240).setCrop(1, 3, 317, 238))
+
+    @Test
+    fun shortFrameMatchesSerialConversion() = assertSameAsSerial(createFrame(64, 6))
+
+    @Test
+    fun repeatedConversionsReuseTasks() {
+        val frame = createFrame(128, 96)
+        repeat(10) { assertSameAsSerial(frame.setCrop(it, it, 128 - it, 96 - it)) }
+    }
+}
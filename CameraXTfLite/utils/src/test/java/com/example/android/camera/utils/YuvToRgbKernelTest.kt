@@ -0,0 +1,87 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+class YuvToRgbKernelTest {
+
+    /** Floating point BT.601 reference for a single pixel */
+    private fun referenceArgb(x: Int, y: Int): Int {
+        val luma = 1.164 * (lumaAt(x, y) - 16).coerceAtLeast(0)
+        val u = uAt(x / 2, y / 2) - 128.0
+        val v = vAt(x / 2, y / 2) - 128.0
+        val r = (luma + 1.596 * v).roundToInt().coerceIn(0, 255)
+        val g = (luma - 0.813 * v - 0.391 * u).roundToInt().coerceIn(0, 255)
+        val b = (luma + 2.018 * u).roundToInt().coerceIn(0, 255)
+        return (0xFF shl 24) or (r shl 16) or (g shl 8) or b
+    }
+
+    private fun assertMatchesReference(frame: YuvFrame, output: IntArray) {
+        for (row in 0 until frame.cropHeight) for (col in 0 until frame.cropWidth) {
+            val actual = output[row * frame.cropWidth + col]
+            val expected = referenceArgb(col + frame.cropLeft, row + frame.cropTop)
+            assertEquals(0xFF, actual ushr 24)
+            for (shift in intArrayOf(0, 8, 16)) {
+                val delta = abs((actual shr shift and 0xFF) - (expected shr shift and 0xFF))
+                assertTrue("Pixel ($col, $row) differs by $delta", delta <= 2)
+            }
+        }
+    }
+
+    @Test
+    fun planarFrameMatchesReference() {
+        val frame = createTestFrame(64, 48, rowPadding = 16, semiPlanar = false)
+        val output = IntArray(frame.cropWidth * frame.cropHeight)
+        YuvToRgbKernel().convert(frame, output)
+        assertMatchesReference(frame, output)
+    }
+
+    @Test
+    fun semiPlanarFrameMatchesReference() {
+        val frame = createTestFrame(64, 48, rowPadding = 32, semiPlanar = true)
+        val output = IntArray(frame.cropWidth * frame.cropHeight)
+        YuvToRgbKernel().convert(frame, output)
+        assertMatchesReference(frame, output)
+    }
+
+    @Test
+    fun oddCropRectangleMatchesReference() {
+        val frame = createTestFrame(64, 48, rowPadding = 0, semiPlanar = true).setCrop(3, 5, 60, 40)
+        val output = IntArray(frame.cropWidth * frame.cropHeight)
+        YuvToRgbKernel().convert(frame, output)
+        assertMatchesReference(frame, output)
+    }
+
+    @Test
+    fun rowRangesProduceSameOutputAsFullFrame() {
+        val frame = createTestFrame(32, 32, rowPadding = 8, semiPlanar = false)
+        val expected = IntArray(32 * 32)
+        YuvToRgbKernel().convert(frame, expected)
+
+        val actual = IntArray(32 * 32)
+        val kernel = YuvToRgbKernel()
+        kernel.convert(frame, actual, 0, 9)
+        kernel.convert(frame, actual, 9, 20)
+        kernel.convert(frame, actual, 20, 32)
+        assertTrue(expected.contentEquals(actual))
+    }
+}